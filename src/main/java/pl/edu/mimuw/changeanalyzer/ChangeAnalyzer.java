@@ -178,6 +178,7 @@ public class ChangeAnalyzer {
 		ChangeAnalyzer analyzer = new ChangeAnalyzer(provider, classifier);
 		
 		if (parser.hasExtractOption()) {
+			provider.setExtractionConfig(parser.getExtractionConfig());
 			analyzer.extractData(parser.getExtractDir());
 		} else {
 			analyzer.readData(parser.getReadFile());
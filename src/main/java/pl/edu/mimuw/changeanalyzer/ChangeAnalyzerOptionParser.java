@@ -1,6 +1,8 @@
 package pl.edu.mimuw.changeanalyzer;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.commons.cli2.Argument;
 import org.apache.commons.cli2.CommandLine;
@@ -11,9 +13,12 @@ import org.apache.commons.cli2.builder.DefaultOptionBuilder;
 import org.apache.commons.cli2.builder.GroupBuilder;
 import org.apache.commons.cli2.commandline.Parser;
 import org.apache.commons.cli2.util.HelpFormatter;
+import org.apache.commons.cli2.validation.EnumValidator;
 import org.apache.commons.cli2.validation.FileValidator;
 import org.apache.commons.cli2.validation.NumberValidator;
 
+import pl.edu.mimuw.changeanalyzer.extraction.ExtractionConfig;
+import pl.edu.mimuw.changeanalyzer.extraction.OverBudgetPolicy;
 import pl.edu.mimuw.changeanalyzer.models.measures.BugPronenessMeasure;
 import pl.edu.mimuw.changeanalyzer.models.measures.GeometricMeasure;
 import pl.edu.mimuw.changeanalyzer.models.measures.LinearMeasure;
@@ -54,6 +59,21 @@ public class ChangeAnalyzerOptionParser {
 	private Option randomForest;
 	private Option svm;
 	private Option neuralNet;
+	private Option threads;
+	private Option cache;
+	private Option state;
+	private Option pathIndex;
+	private Option journal;
+	private Option resume;
+	private Option maxTime;
+	private Option maxBlobSize;
+	private Option maxRevisions;
+	private Option overBudget;
+	private Option skipNonSemantic;
+	private Option methodOnly;
+	private Option offHeap;
+	private Option buildThreads;
+	private Option sparse;
 	
 	private Parser parser;
 	private CommandLine commandLine;
@@ -73,6 +93,15 @@ public class ChangeAnalyzerOptionParser {
 		NumberValidator numberValidator = NumberValidator.getNumberInstance();
 		numberValidator.setMinimum(0.0);
 		numberValidator.setMaximum(1.0);
+		NumberValidator threadsValidator = NumberValidator.getIntegerInstance();
+		threadsValidator.setMinimum(1);
+		NumberValidator limitValidator = NumberValidator.getIntegerInstance();
+		limitValidator.setMinimum(1);
+		Set<String> policies = new HashSet<String>();
+		for (OverBudgetPolicy policy: OverBudgetPolicy.values()) {
+			policies.add(policy.name().toLowerCase());
+		}
+		EnumValidator policyValidator = new EnumValidator(policies);
 		
 		Argument extractPath = argBuilder
 				.withName("REPO_PATH")
@@ -116,6 +145,76 @@ public class ChangeAnalyzerOptionParser {
 				.withMinimum(0)
 				.withMaximum(1)
 				.create();
+		Argument numThreads = argBuilder
+				.withName("NUM_THREADS")
+				.withDescription("number of extraction threads")
+				.withValidator(threadsValidator)
+				.withMinimum(1)
+				.withMaximum(1)
+				.create();
+		Argument numBuildThreads = argBuilder
+				.withName("NUM_THREADS")
+				.withDescription("number of instance building threads")
+				.withValidator(threadsValidator)
+				.withMinimum(1)
+				.withMaximum(1)
+				.create();
+		Argument cachePath = argBuilder
+				.withName("CACHE_PATH")
+				.withDescription("path to distiller cache file")
+				.withValidator(outputPathValidator)
+				.withMinimum(1)
+				.withMaximum(1)
+				.create();
+		Argument statePath = argBuilder
+				.withName("STATE_PATH")
+				.withDescription("path to extraction state file")
+				.withValidator(outputPathValidator)
+				.withMinimum(1)
+				.withMaximum(1)
+				.create();
+		Argument pathIndexPath = argBuilder
+				.withName("INDEX_PATH")
+				.withDescription("path to changed path index file")
+				.withValidator(outputPathValidator)
+				.withMinimum(1)
+				.withMaximum(1)
+				.create();
+		Argument timeLimit = argBuilder
+				.withName("SECONDS")
+				.withDescription("time limit of distilling a file")
+				.withValidator(limitValidator)
+				.withMinimum(1)
+				.withMaximum(1)
+				.create();
+		Argument sizeLimit = argBuilder
+				.withName("BYTES")
+				.withDescription("size limit of a distilled revision")
+				.withValidator(limitValidator)
+				.withMinimum(1)
+				.withMaximum(1)
+				.create();
+		Argument revisionLimit = argBuilder
+				.withName("NUM_REVISIONS")
+				.withDescription("limit of distilled revisions of a file")
+				.withValidator(limitValidator)
+				.withMinimum(1)
+				.withMaximum(1)
+				.create();
+		Argument budgetPolicy = argBuilder
+				.withName("POLICY")
+				.withDescription("skip, truncate or defer")
+				.withValidator(policyValidator)
+				.withMinimum(1)
+				.withMaximum(1)
+				.create();
+		Argument journalPath = argBuilder
+				.withName("JOURNAL_PATH")
+				.withDescription("path to extraction journal file")
+				.withValidator(outputPathValidator)
+				.withMinimum(1)
+				.withMaximum(1)
+				.create();
 		
 		this.linMeasure = optBuilder
 				.withLongName("linear")
@@ -215,6 +314,95 @@ public class ChangeAnalyzerOptionParser {
 				.withRequired(true)
 				.create();
 		
+		this.threads = optBuilder
+				.withLongName("threads")
+				.withShortName("t")
+				.withDescription("Extract class histories using multiple threads")
+				.withArgument(numThreads)
+				.create();
+		this.cache = optBuilder
+				.withLongName("cache")
+				.withDescription("Cache distilling results in a file")
+				.withArgument(cachePath)
+				.create();
+		this.state = optBuilder
+				.withLongName("state")
+				.withDescription("Extract incrementally since the HEAD saved in a state file")
+				.withArgument(statePath)
+				.create();
+		this.pathIndex = optBuilder
+				.withLongName("path-index")
+				.withDescription("Skip commits not changing followed files using an index file")
+				.withArgument(pathIndexPath)
+				.create();
+		this.journal = optBuilder
+				.withLongName("journal")
+				.withDescription("Checkpoint extracted class histories in a journal file")
+				.withArgument(journalPath)
+				.create();
+		this.resume = optBuilder
+				.withLongName("resume")
+				.withDescription("Resume an interrupted extraction from the journal file")
+				.create();
+		this.maxTime = optBuilder
+				.withLongName("max-time")
+				.withDescription("Limit time of distilling a single file")
+				.withArgument(timeLimit)
+				.create();
+		this.maxBlobSize = optBuilder
+				.withLongName("max-blob-size")
+				.withDescription("Limit size of distilled revisions of files")
+				.withArgument(sizeLimit)
+				.create();
+		this.maxRevisions = optBuilder
+				.withLongName("max-revisions")
+				.withDescription("Limit the number of distilled revisions of a file")
+				.withArgument(revisionLimit)
+				.create();
+		this.overBudget = optBuilder
+				.withLongName("over-budget")
+				.withDescription("Handling of files exceeding limits (default: skip)")
+				.withArgument(budgetPolicy)
+				.create();
+		this.skipNonSemantic = optBuilder
+				.withLongName("skip-non-semantic")
+				.withDescription("Don't distill revisions differing only in whitespace, imports or comments outside classes")
+				.create();
+		this.methodOnly = optBuilder
+				.withLongName("method-only")
+				.withDescription("Keep only method-level changes after distilling")
+				.create();
+		this.offHeap = optBuilder
+				.withLongName("off-heap")
+				.withDescription("Keep extracted changes in a memory-mapped file")
+				.create();
+		this.buildThreads = optBuilder
+				.withLongName("build-threads")
+				.withDescription("Build data set instances using multiple threads")
+				.withArgument(numBuildThreads)
+				.create();
+		this.sparse = optBuilder
+				.withLongName("sparse")
+				.withDescription("Build sparse instances (storing only non-zero values)")
+				.create();
+		Group extractionOptions = groupBuilder
+				.withOption(this.threads)
+				.withOption(this.cache)
+				.withOption(this.state)
+				.withOption(this.pathIndex)
+				.withOption(this.journal)
+				.withOption(this.resume)
+				.withOption(this.maxTime)
+				.withOption(this.maxBlobSize)
+				.withOption(this.maxRevisions)
+				.withOption(this.overBudget)
+				.withOption(this.skipNonSemantic)
+				.withOption(this.methodOnly)
+				.withOption(this.offHeap)
+				.withOption(this.buildThreads)
+				.withOption(this.sparse)
+				.create();
+		
 		Option help = optBuilder
 				.withLongName("help")
 				.withShortName("h")
@@ -223,6 +411,7 @@ public class ChangeAnalyzerOptionParser {
 		Group options = groupBuilder
 				.withOption(inputOptions)
 				.withOption(outputOptions)
+				.withOption(extractionOptions)
 				.withOption(help)
 				.create();
 		
@@ -388,6 +577,59 @@ public class ChangeAnalyzerOptionParser {
 		throw new IllegalStateException("No classifier defined");
 	}
 
+	/**
+	 * Get the extraction settings specified in arguments parsed by this parser.
+	 * 
+	 * @return Specified extraction settings
+	 * @throws IllegalStateException if arguments have not been parsed
+	 */
+	public ExtractionConfig getExtractionConfig() {
+		this.assertParsed();
+		ExtractionConfig config = new ExtractionConfig();
+		if (this.commandLine.hasOption(this.threads)) {
+			Number numThreads = (Number) this.commandLine.getValue(this.threads);
+			config.setNumThreads(numThreads.intValue());
+		}
+		if (this.commandLine.hasOption(this.cache)) {
+			config.setCacheFile((File) this.commandLine.getValue(this.cache));
+		}
+		if (this.commandLine.hasOption(this.state)) {
+			config.setStateFile((File) this.commandLine.getValue(this.state));
+		}
+		if (this.commandLine.hasOption(this.pathIndex)) {
+			config.setPathIndexFile((File) this.commandLine.getValue(this.pathIndex));
+		}
+		if (this.commandLine.hasOption(this.journal)) {
+			config.setJournalFile((File) this.commandLine.getValue(this.journal));
+		}
+		config.setResume(this.commandLine.hasOption(this.resume));
+		if (this.commandLine.hasOption(this.maxTime)) {
+			Number maxTime = (Number) this.commandLine.getValue(this.maxTime);
+			config.setMaxFileTime(maxTime.longValue() * 1000);
+		}
+		if (this.commandLine.hasOption(this.maxBlobSize)) {
+			Number maxBlobSize = (Number) this.commandLine.getValue(this.maxBlobSize);
+			config.setMaxBlobSize(maxBlobSize.longValue());
+		}
+		if (this.commandLine.hasOption(this.maxRevisions)) {
+			Number maxRevisions = (Number) this.commandLine.getValue(this.maxRevisions);
+			config.setMaxRevisions(maxRevisions.intValue());
+		}
+		if (this.commandLine.hasOption(this.overBudget)) {
+			String policy = (String) this.commandLine.getValue(this.overBudget);
+			config.setOverBudgetPolicy(OverBudgetPolicy.valueOf(policy.toUpperCase()));
+		}
+		config.setSkipNonSemanticChanges(this.commandLine.hasOption(this.skipNonSemantic));
+		config.setMethodOnly(this.commandLine.hasOption(this.methodOnly));
+		config.setOffHeapChanges(this.commandLine.hasOption(this.offHeap));
+		if (this.commandLine.hasOption(this.buildThreads)) {
+			Number numBuildThreads = (Number) this.commandLine.getValue(this.buildThreads);
+			config.setNumBuildThreads(numBuildThreads.intValue());
+		}
+		config.setSparseInstances(this.commandLine.hasOption(this.sparse));
+		return config;
+	}
+
 	/**
 	 * Assert that arguments have been parsed.
 	 */
@@ -2,13 +2,23 @@ package pl.edu.mimuw.changeanalyzer;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
 
 import pl.edu.mimuw.changeanalyzer.exceptions.ChangeAnalyzerException;
+import pl.edu.mimuw.changeanalyzer.exceptions.DataSetBuilderException;
 import pl.edu.mimuw.changeanalyzer.extraction.ClassHistoryWrapper;
+import pl.edu.mimuw.changeanalyzer.extraction.ExtractionConfig;
+import pl.edu.mimuw.changeanalyzer.extraction.HistorySpool;
 import pl.edu.mimuw.changeanalyzer.extraction.RepoHistoryExtractor;
+import pl.edu.mimuw.changeanalyzer.models.DataSetBuilder;
+import pl.edu.mimuw.changeanalyzer.models.DataSetShard;
+import pl.edu.mimuw.changeanalyzer.models.InstanceConsumer;
 import pl.edu.mimuw.changeanalyzer.models.measures.GeometricMeasure;
 import pl.edu.mimuw.changeanalyzer.models.measures.LinearMeasure;
 import pl.edu.mimuw.changeanalyzer.models.measures.WeightedMeasure;
@@ -16,43 +26,126 @@ import pl.edu.mimuw.changeanalyzer.models.standard.StandardDataSetBuilder;
 import weka.core.Instances;
 import weka.core.converters.ArffSaver;
 import weka.core.converters.Saver;
-import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
 
 
 /**
  * Class for performing classifier evaluation experiments. It extracts
  * from repositories and saves unprocessed data sets.
+ * <p>
+ * Repositories too big for a single process can be extracted in shards:
+ * each process extracts a part of files (with "--shard i/N") into a shard file,
+ * and the shard files are merged into a data set (with "--merge").
  * 
  * @author Adam Wierzbicki
  */
 public class ExtractAndSave {
 	
 	/**
-	 * Extract data from a repository and save it under the given path.
+	 * Create the builder used for all extracted data sets and supply it with
+	 * commits of a repository.
 	 * 
-	 * @param repository Directory to extract data from
-	 * @param resultPath Path to save the extracted data
+	 * @param extractor Extractor of the repository
+	 * @return Builder with read commits
 	 * @throws IOException
 	 * @throws ChangeAnalyzerException
 	 */
-	private static void extractAndSave(File repository, String resultPath)
+	private static DataSetBuilder createBuilder(RepoHistoryExtractor extractor)
 			throws IOException, ChangeAnalyzerException {
 		
-		long startTime = System.currentTimeMillis();
-		
-		RepoHistoryExtractor extractor = new RepoHistoryExtractor(repository);
-		Map<String, ClassHistory> map =  extractor.extractClassHistories();
-		ClassHistoryWrapper wrapper = new ClassHistoryWrapper(map.values());
 		Iterable<RevCommit> commits = extractor.extractCommits();
-		
-		StandardDataSetBuilder builder = new StandardDataSetBuilder();
-		Instances cgDataSet = builder
+		return new StandardDataSetBuilder()
 				.addMeasure(new GeometricMeasure(0.5))
 				.addMeasure(new LinearMeasure(0.0))
 				.addMeasure(new WeightedMeasure())
-				.readCommits(commits)
-				.buildDataSet("changes", wrapper);
-		saveDataSet(cgDataSet, resultPath);
+				.setMailmap(extractor.extractMailmap())
+				.readCommits(commits);
+	}
+	
+	/**
+	 * Extract class histories of a repository into a spool, counting their changes.
+	 * 
+	 * @param extractor	Extractor of the repository
+	 * @param builder	Builder to count changes with
+	 * @return Spool with all extracted class histories
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private static HistorySpool extractToSpool(RepoHistoryExtractor extractor, DataSetBuilder builder)
+			throws IOException, ChangeAnalyzerException {
+		
+		HistorySpool spool = new HistorySpool(null);
+		try {
+			extractor.extractClassHistories((path, history) -> {
+				synchronized (builder) {
+					builder.countChanges(new ClassHistoryWrapper(Collections.singleton(history)));
+				}
+				spool.consume(path, history);
+			});
+		} catch (IOException | ChangeAnalyzerException | RuntimeException e) {
+			spool.close();
+			throw e;
+		}
+		return spool;
+	}
+	
+	/**
+	 * Open an incremental ARFF saver. Passed instances are written immediately;
+	 * a null instance finishes the file.
+	 * 
+	 * @param builder		Builder defining attributes of saved instances
+	 * @param resultPath	Path to save the data set
+	 * @return Consumer writing instances to the file
+	 * @throws IOException
+	 */
+	private static InstanceConsumer openSaver(DataSetBuilder builder, String resultPath) throws IOException {
+		Instances structure = new Instances("changes", builder.getAttributesVector(), 0);
+		ArffSaver saver = new ArffSaver();
+		saver.setRetrieval(Saver.INCREMENTAL);
+		saver.setStructure(structure);
+		saver.setFile(new File(resultPath));
+		return instance -> {
+			if (instance != null) {
+				instance.setDataset(structure);
+			}
+			saver.writeIncremental(instance);
+		};
+	}
+	
+	/**
+	 * Extract data from a repository and save it under the given path. Extracted
+	 * class histories are spooled to a temporary file and instances are written
+	 * to the result file as soon as they are built, so neither of them is kept
+	 * in memory.
+	 * 
+	 * @param repository	Directory to extract data from
+	 * @param resultPath	Path to save the extracted data
+	 * @param indexPath		Path to the index of changed paths of the repository (null if no index should be used)
+	 * @param sparse		Should the data be saved as sparse instances
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private static void extractAndSave(File repository, String resultPath, String indexPath, boolean sparse)
+			throws IOException, ChangeAnalyzerException {
+		
+		long startTime = System.currentTimeMillis();
+		
+		ExtractionConfig config = new ExtractionConfig().setMethodOnly(true);
+		if (indexPath != null) {
+			config.setPathIndexFile(new File(indexPath));
+		}
+		RepoHistoryExtractor extractor = new RepoHistoryExtractor(repository, config);
+		DataSetBuilder builder = createBuilder(extractor).setSparse(sparse);
+		HistorySpool spool = extractToSpool(extractor, builder);
+		try {
+			InstanceConsumer saver = openSaver(builder, resultPath);
+			builder.buildCountedInstances(spool, saver);
+			saver.consume(null);
+			extractor.finishExtraction();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			spool.close();
+		}
 		
 		long endTime = System.currentTimeMillis();
 		double execTime = ((double) (endTime - startTime)) / 1000;
@@ -61,29 +154,92 @@ public class ExtractAndSave {
 	}
 	
 	/**
-	 * Save a data set.
+	 * Extract a shard of files of a repository and save it as a shard file
+	 * (see {@link DataSetShard}).
+	 * 
+	 * @param repository	Directory to extract data from
+	 * @param shardIndex	Index of the shard
+	 * @param numShards		Number of shards
+	 * @param shardPath		Path to save the shard
+	 * @param indexPath		Path to the index of changed paths of the repository (null if no index should be used)
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private static void extractShard(File repository, int shardIndex, int numShards, String shardPath,
+			String indexPath) throws IOException, ChangeAnalyzerException {
+		
+		long startTime = System.currentTimeMillis();
+		
+		ExtractionConfig config = new ExtractionConfig().setShard(shardIndex, numShards).setMethodOnly(true);
+		if (indexPath != null) {
+			config.setPathIndexFile(new File(indexPath));
+		}
+		RepoHistoryExtractor extractor = new RepoHistoryExtractor(repository, config);
+		ObjectId head = extractor.extractHead();
+		DataSetBuilder builder = createBuilder(extractor);
+		HistorySpool spool = extractToSpool(extractor, builder);
+		try {
+			DataSetShard.write(new File(shardPath), head, shardIndex, numShards, builder, spool);
+			extractor.finishExtraction();
+		} finally {
+			spool.close();
+		}
+		
+		long endTime = System.currentTimeMillis();
+		double execTime = ((double) (endTime - startTime)) / 1000;
+		System.out.printf("Extracted shard %d/%d of %s into %s. Execution time: %.2f s%n", 
+				shardIndex, numShards, repository.getAbsolutePath(), shardPath, execTime);
+	}
+	
+	/**
+	 * Merge shard files extracted from a repository and save the data set under
+	 * the given path. The result is the same as the one of {@link #extractAndSave(File, String, String, boolean)}.
 	 * 
-	 * @param dataSet	Data set to be saved
-	 * @param path		Path to save the data det
+	 * @param repository	Directory the shards have been extracted from
+	 * @param shardPaths	Paths to all shard files
+	 * @param resultPath	Path to save the merged data
+	 * @param sparse		Should the data be saved as sparse instances
 	 * @throws IOException
+	 * @throws ChangeAnalyzerException
 	 */
-	private static void saveDataSet(Instances dataSet, String path) throws IOException {
-		Saver saver = new ArffSaver();
-		saver.setInstances(dataSet);
-		saver.setFile(new File(path));
-		saver.writeBatch();
+	private static void mergeAndSave(File repository, List<String> shardPaths, String resultPath, boolean sparse)
+			throws IOException, ChangeAnalyzerException {
+		
+		long startTime = System.currentTimeMillis();
+		
+		List<DataSetShard> shards = new ArrayList<DataSetShard>();
+		for (String shardPath: shardPaths) {
+			shards.add(new DataSetShard(new File(shardPath)));
+		}
+		RepoHistoryExtractor extractor = new RepoHistoryExtractor(repository);
+		ObjectId head = extractor.extractHead();
+		if (!shards.isEmpty() && !shards.get(0).getHead().equals(head)) {
+			throw new DataSetBuilderException("Shards have been extracted from " + shards.get(0).getHead().name()
+					+ ", but HEAD of " + repository.getAbsolutePath() + " is " + head.name());
+		}
+		DataSetBuilder builder = createBuilder(extractor).setSparse(sparse);
+		InstanceConsumer saver = openSaver(builder, resultPath);
+		DataSetShard.merge(shards, builder, saver);
+		saver.consume(null);
+		
+		long endTime = System.currentTimeMillis();
+		double execTime = ((double) (endTime - startTime)) / 1000;
+		System.out.printf("Merged %d shards into %s. Execution time: %.2f s%n", 
+				shards.size(), resultPath, execTime);
 	}
 	
 	/**
-	 * Run {@link #extractAndSave(File, String)} method, catching all exceptions
+	 * Run {@link #extractAndSave(File, String, String, boolean)} method, catching all exceptions
 	 * and printing the to the stderr.
 	 * 
 	 * @param repository
 	 * @param resultPath
+	 * @param indexPath
+	 * @param sparse
 	 */
-	private static void safeExtractAndSave(File repository, String resultPath) {
+	private static void safeExtractAndSave(File repository, String resultPath, String indexPath, boolean sparse) {
 		try {
-			extractAndSave(repository, resultPath);
+			extractAndSave(repository, resultPath, indexPath, sparse);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -94,16 +250,82 @@ public class ExtractAndSave {
 	 * three separate bug-proneness measures: linBugProneness0.0, geomBugProneness0.5
 	 * and weightBugProneness. For each repository the extracted data will saved to
 	 * file with the same name as repository main folder's name (with .arff extension).
+	 * <p>
+	 * With "--shard i/N" as the first arguments, only the i-th of N shards of files
+	 * is extracted, and it is saved to a file with ".shard-i-of-N" extension instead.
+	 * With "--merge" as the first argument, the next argument is a path to
+	 * a repository and the remaining ones are paths to all its shard files.
+	 * <p>
+	 * With "--sparse" before all other arguments, data sets are saved as sparse ARFF.
+	 * With "--path-index" before all other arguments, commits not changing followed
+	 * files are skipped using an index of changed paths (see {@link ExtractionConfig#setPathIndexFile(File)}),
+	 * kept for each repository in a file with ".paths" extension and reused by later runs.
 	 *  
-	 * @param args Paths to repositories
+	 * @param args Paths to repositories, optionally preceded by "--shard i/N"
+	 * 			   (or "--merge" followed by a path to a repository and paths to shards),
+	 * 			   all optionally preceded by "--sparse" and "--path-index"
 	 * @throws IOException
 	 * @throws ChangeAnalyzerException
 	 */
 	public static void main(String[] args) throws IOException, ChangeAnalyzerException {
-		for (int i = 0; i < args.length; ++i) {
+		boolean sparse = false;
+		boolean pathIndex = false;
+		int first = 0;
+		for (; first < args.length; ++first) {
+			if (args[first].equals("--sparse")) {
+				sparse = true;
+			} else if (args[first].equals("--path-index")) {
+				pathIndex = true;
+			} else {
+				break;
+			}
+		}
+		
+		if (args.length > first && args[first].equals("--merge")) {
+			if (args.length < first + 3) {
+				System.err.println("Usage: ExtractAndSave [--sparse] [--path-index] --merge REPO_PATH SHARD_PATH...");
+				return;
+			}
+			File repository = new File(args[first + 1]);
+			List<String> shardPaths = new ArrayList<String>();
+			for (int i = first + 2; i < args.length; ++i) {
+				shardPaths.add(args[i]);
+			}
+			mergeAndSave(repository, shardPaths, repository.getName() + ".arff", sparse);
+			return;
+		}
+		
+		int shardIndex = 0;
+		int numShards = 1;
+		if (args.length > first + 1 && args[first].equals("--shard")) {
+			String[] shard = args[first + 1].split("/");
+			try {
+				shardIndex = Integer.parseInt(shard[0]);
+				numShards = Integer.parseInt(shard[shard.length - 1]);
+			} catch (NumberFormatException e) {
+				shard = null;
+			}
+			if (shard == null || shard.length != 2 || numShards < 1 || shardIndex < 0 || shardIndex >= numShards) {
+				System.err.println("Invalid shard: " + args[first + 1] + " (expected i/N, where 0 <= i < N)");
+				return;
+			}
+			first += 2;
+		}
+		
+		for (int i = first; i < args.length; ++i) {
 			File repository = new File(args[i]);
-			String resultPath = repository.getName() + ".arff";
-			safeExtractAndSave(repository, resultPath);
+			String indexPath = pathIndex ? repository.getName() + ".paths" : null;
+			if (numShards > 1) {
+				String shardPath = repository.getName() + ".shard-" + shardIndex + "-of-" + numShards;
+				try {
+					extractShard(repository, shardIndex, numShards, shardPath, indexPath);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			} else {
+				String resultPath = repository.getName() + ".arff";
+				safeExtractAndSave(repository, resultPath, indexPath, sparse);
+			}
 		}
 	}
 
@@ -0,0 +1,33 @@
+package pl.edu.mimuw.changeanalyzer.exceptions;
+
+
+/**
+ * Exception thrown when a file exceeds its distillation budget and is skipped
+ * or deferred (see {@link pl.edu.mimuw.changeanalyzer.extraction.OverBudgetPolicy}).
+ * Its message describes the exceeded limit.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class BudgetExceededException extends ExtractionException {
+
+	private static final long serialVersionUID = 4127390550832261914L;
+
+	public BudgetExceededException() {}
+
+	public BudgetExceededException(String arg0) {
+		super(arg0);
+	}
+
+	public BudgetExceededException(Throwable arg0) {
+		super(arg0);
+	}
+
+	public BudgetExceededException(String arg0, Throwable arg1) {
+		super(arg0, arg1);
+	}
+
+	public BudgetExceededException(String arg0, Throwable arg1, boolean arg2, boolean arg3) {
+		super(arg0, arg1, arg2, arg3);
+	}
+
+}
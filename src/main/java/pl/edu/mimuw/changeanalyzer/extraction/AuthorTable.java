@@ -0,0 +1,143 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.PersonIdent;
+
+
+/**
+ * Table of commit authors. Each author gets a dense int ID, and totals
+ * of the author (numbers of commits and changes) are kept in arrays indexed
+ * by IDs. Identities are first mapped through a {@link Mailmap}, so that
+ * different spellings of the same author get the same ID. Authors are
+ * identified by their (mapped) names.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class AuthorTable {
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private Mailmap mailmap;
+	private Map<String, Integer> ids;
+	private List<String> names;
+	private List<String> emails;
+	private int[] numCommits;
+	private int[] numChanges;
+	
+	/**
+	 * Construct a new, empty AuthorTable.
+	 */
+	public AuthorTable() {
+		this.mailmap = new Mailmap();
+		this.ids = new HashMap<String, Integer>();
+		this.names = new ArrayList<String>();
+		this.emails = new ArrayList<String>();
+		this.numCommits = new int[INITIAL_CAPACITY];
+		this.numChanges = new int[INITIAL_CAPACITY];
+	}
+	
+	/**
+	 * Set the mapping of identities applied to authors added afterwards.
+	 * 
+	 * @param mailmap Mapping of identities
+	 */
+	public void setMailmap(Mailmap mailmap) {
+		this.mailmap = mailmap;
+	}
+	
+	/**
+	 * Get ID of an author, assigning a new one if the author is not in the table.
+	 * 
+	 * @param ident Identity of the author
+	 * @return Author ID
+	 */
+	public int getId(PersonIdent ident) {
+		String name = this.mailmap.getName(ident.getName(), ident.getEmailAddress());
+		Integer id = this.ids.get(name);
+		if (id == null) {
+			id = this.names.size();
+			this.ids.put(name, id);
+			this.names.add(name);
+			this.emails.add(this.mailmap.getEmail(ident.getName(), ident.getEmailAddress()));
+			if (id == this.numCommits.length) {
+				this.numCommits = Arrays.copyOf(this.numCommits, 2 * id);
+				this.numChanges = Arrays.copyOf(this.numChanges, 2 * id);
+			}
+		}
+		return id;
+	}
+	
+	/**
+	 * Get the number of authors in this table.
+	 * 
+	 * @return Number of authors
+	 */
+	public int size() {
+		return this.names.size();
+	}
+	
+	/**
+	 * Get name of an author.
+	 * 
+	 * @param id Author ID
+	 * @return Name of the author
+	 */
+	public String getName(int id) {
+		return this.names.get(id);
+	}
+	
+	/**
+	 * Get email of an author (of the first commit of the author added to the table).
+	 * 
+	 * @param id Author ID
+	 * @return Email of the author
+	 */
+	public String getEmail(int id) {
+		return this.emails.get(id);
+	}
+	
+	/**
+	 * Get the number of commits of an author.
+	 * 
+	 * @param id Author ID
+	 * @return Number of commits
+	 */
+	public int getNumCommits(int id) {
+		return this.numCommits[id];
+	}
+	
+	/**
+	 * Get the number of changes in all commits of an author.
+	 * 
+	 * @param id Author ID
+	 * @return Number of changes
+	 */
+	public int getNumChanges(int id) {
+		return this.numChanges[id];
+	}
+	
+	/**
+	 * Add a commit to totals of an author.
+	 * 
+	 * @param id			Author ID
+	 * @param numChanges	Number of changes in the commit
+	 */
+	public void addCommit(int id, int numChanges) {
+		this.numCommits[id]++;
+		this.numChanges[id] += numChanges;
+	}
+	
+	/**
+	 * Reset totals of all authors to zero.
+	 */
+	public void resetTotals() {
+		Arrays.fill(this.numCommits, 0);
+		Arrays.fill(this.numChanges, 0);
+	}
+
+}
@@ -0,0 +1,101 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+
+/**
+ * Pair of IDs of two revisions (blobs) of a file which are distilled together.
+ * Since blobs are identified by their content, the result of distilling a pair
+ * doesn't depend on the commits or paths the blobs come from.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class BlobPair {
+	
+	/**
+	 * Size of a serialized pair in bytes
+	 */
+	public static final int SIZE = 2 * Constants.OBJECT_ID_LENGTH;
+	
+	private ObjectId oldId;
+	private ObjectId newId;
+	
+	/**
+	 * Construct a new BlobPair.
+	 * 
+	 * @param oldId	ID of the old revision
+	 * @param newId	ID of the new revision
+	 */
+	public BlobPair(ObjectId oldId, ObjectId newId) {
+		this.oldId = oldId;
+		this.newId = newId;
+	}
+	
+	/**
+	 * Get ID of the old revision.
+	 * 
+	 * @return Blob ID
+	 */
+	public ObjectId getOldId() {
+		return this.oldId;
+	}
+	
+	/**
+	 * Get ID of the new revision.
+	 * 
+	 * @return Blob ID
+	 */
+	public ObjectId getNewId() {
+		return this.newId;
+	}
+	
+	/**
+	 * Write this pair into a buffer.
+	 * 
+	 * @param buffer Buffer with at least {@link #SIZE} bytes remaining
+	 */
+	public void write(ByteBuffer buffer) {
+		byte[] raw = new byte[SIZE];
+		this.oldId.copyRawTo(raw, 0);
+		this.newId.copyRawTo(raw, Constants.OBJECT_ID_LENGTH);
+		buffer.put(raw);
+	}
+	
+	/**
+	 * Read a pair from a buffer.
+	 * 
+	 * @param buffer Buffer with at least {@link #SIZE} bytes remaining
+	 * @return Read pair
+	 */
+	public static BlobPair read(ByteBuffer buffer) {
+		byte[] raw = new byte[SIZE];
+		buffer.get(raw);
+		return new BlobPair(ObjectId.fromRaw(raw, 0), ObjectId.fromRaw(raw, Constants.OBJECT_ID_LENGTH));
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof BlobPair)) {
+			return false;
+		}
+		BlobPair other = (BlobPair) obj;
+		return this.oldId.equals(other.oldId) && this.newId.equals(other.newId);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * this.oldId.hashCode() + this.newId.hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return this.oldId.name() + ".." + this.newId.name();
+	}
+
+}
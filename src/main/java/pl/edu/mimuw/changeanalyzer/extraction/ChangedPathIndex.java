@@ -0,0 +1,253 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevFlag;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import pl.edu.mimuw.changeanalyzer.io.RecordLog;
+
+
+/**
+ * Persistent index of .java paths changed by commits, similar to changed-path
+ * filters of the git commit-graph. For each commit it stores a Bloom filter of paths
+ * which differ between the commit and its first parent, so a query whether a commit
+ * changed a path answers "no" for sure or "maybe".
+ * <p>
+ * Filters use 10 bits per path and 7 hash functions (about 1% false positives).
+ * Commits changing more than {@link #MAX_CHANGED_PATHS} paths get no filter and
+ * always answer "maybe". The index is stored in a {@link RecordLog} and updated
+ * with commits which are not indexed yet, so it is reused across runs. Commits are
+ * indexed after their parents, so ancestors of an indexed commit are indexed as well.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class ChangedPathIndex {
+	
+	/**
+	 * Maximum number of changed paths of a commit having a filter
+	 */
+	public static final int MAX_CHANGED_PATHS = 512;
+	
+	private static final int MAGIC = 0x43415049;
+	private static final int FORMAT_VERSION = 2;
+	private static final int BITS_PER_PATH = 10;
+	private static final int NUM_HASHES = 7;
+	private static final byte[] ALL_PATHS = new byte[0];
+	
+	private RecordLog log;
+	private Map<ObjectId, byte[]> filters;
+	
+	/**
+	 * Open an index, creating its file if it doesn't exist.
+	 * 
+	 * @param file Index file
+	 * @throws IOException
+	 */
+	public ChangedPathIndex(File file) throws IOException {
+		this.filters = new HashMap<ObjectId, byte[]>();
+		this.log = new RecordLog(file, MAGIC, FORMAT_VERSION, (position, payload) -> {
+			byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+			payload.get(id);
+			byte[] filter = new byte[payload.remaining()];
+			payload.get(filter);
+			this.filters.put(ObjectId.fromRaw(id), filter.length > 0 ? filter : ALL_PATHS);
+		});
+	}
+	
+	/**
+	 * Index all commits reachable from a given commit which are not indexed yet.
+	 * Indexed commits are not walked, and neither are their ancestors, so only
+	 * new commits are visited.
+	 * 
+	 * @param repository	Repository containing the commits
+	 * @param head			Commit to start from
+	 * @return Number of newly indexed commits
+	 * @throws IOException
+	 */
+	public int update(Repository repository, AnyObjectId head) throws IOException {
+		ObjectReader reader = repository.newObjectReader();
+		RevWalk revWalk = new RevWalk(reader);
+		RevFlag visited = revWalk.newFlag("visited");
+		TreeFilter filter = AndTreeFilter.create(TreeFilter.ANY_DIFF, PathSuffixFilter.create(RepoHistoryWalker.JAVA_SUFFIX));
+		Deque<RevCommit> stack = new ArrayDeque<RevCommit>();
+		int numIndexed = 0;
+		
+		try {
+			RevCommit headCommit = revWalk.parseCommit(head);
+			if (!this.filters.containsKey(headCommit)) {
+				stack.push(headCommit);
+			}
+			while (!stack.isEmpty()) {
+				RevCommit commit = stack.peek();
+				if (!commit.has(visited)) {
+					commit.add(visited);
+					revWalk.parseHeaders(commit);
+					for (RevCommit parent: commit.getParents()) {
+						if (!parent.has(visited) && !this.filters.containsKey(parent)) {
+							stack.push(parent);
+						}
+					}
+					continue;
+				}
+				stack.pop();
+				if (this.filters.containsKey(commit)) {
+					continue;
+				}
+				
+				TreeWalk treeWalk = new TreeWalk(reader);
+				treeWalk.setRecursive(true);
+				treeWalk.setFilter(filter);
+				if (commit.getParentCount() == 0) {
+					treeWalk.addTree(new EmptyTreeIterator());
+				} else {
+					RevCommit parent = commit.getParent(0);
+					revWalk.parseHeaders(parent);
+					treeWalk.addTree(parent.getTree());
+				}
+				treeWalk.addTree(commit.getTree());
+				
+				List<String> paths = new ArrayList<String>();
+				while (treeWalk.next() && paths.size() <= MAX_CHANGED_PATHS) {
+					paths.add(treeWalk.getPathString());
+				}
+				this.add(commit.copy(), paths.size() <= MAX_CHANGED_PATHS ? paths : null);
+				++numIndexed;
+			}
+		} finally {
+			revWalk.dispose();
+			reader.release();
+		}
+		return numIndexed;
+	}
+	
+	/**
+	 * Add a commit to the index.
+	 * 
+	 * @param commitId	ID of the commit
+	 * @param paths		Paths changed by the commit (null if there are too many of them)
+	 * @throws IOException
+	 */
+	private void add(ObjectId commitId, List<String> paths) throws IOException {
+		byte[] filter = ALL_PATHS;
+		if (paths != null) {
+			filter = new byte[Math.max(8, (paths.size() * BITS_PER_PATH + 7) / 8)];
+			int numBits = filter.length * 8;
+			for (String path: paths) {
+				long hash = hash(path);
+				int h1 = (int) hash;
+				int h2 = (int) (hash >>> 32);
+				for (int i = 0; i < NUM_HASHES; ++i) {
+					int bit = Math.floorMod(h1 + i * h2, numBits);
+					filter[bit >>> 3] |= 1 << (bit & 7);
+				}
+			}
+		}
+		
+		ByteBuffer record = ByteBuffer.allocate(Constants.OBJECT_ID_LENGTH + filter.length);
+		commitId.copyRawTo(record);
+		record.put(filter).flip();
+		this.log.append(record);
+		this.filters.put(commitId, filter);
+	}
+	
+	/**
+	 * Check whether a commit may have changed a path (with respect to its first parent).
+	 * 
+	 * @param commitId	ID of the commit
+	 * @param path		Path relative to the main directory of the repository
+	 * @return False if the commit surely didn't change the path, true otherwise
+	 * 		   (in particular if the commit is not indexed)
+	 */
+	public boolean mayChange(AnyObjectId commitId, String path) {
+		byte[] filter = this.filters.get(commitId);
+		if (filter == null || filter == ALL_PATHS) {
+			return true;
+		}
+		
+		int numBits = filter.length * 8;
+		long hash = hash(path);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < NUM_HASHES; ++i) {
+			int bit = Math.floorMod(h1 + i * h2, numBits);
+			if ((filter[bit >>> 3] & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Check whether a commit may have changed any of given paths.
+	 * 
+	 * @param commitId	ID of the commit
+	 * @param paths		Paths relative to the main directory of the repository
+	 * @return False if the commit surely didn't change any of the paths, true otherwise
+	 */
+	public boolean mayChangeAny(AnyObjectId commitId, Collection<String> paths) {
+		for (String path: paths) {
+			if (this.mayChange(commitId, path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Get the number of indexed commits.
+	 * 
+	 * @return Number of commits
+	 */
+	public int size() {
+		return this.filters.size();
+	}
+	
+	/**
+	 * Close the index. Added commits are written to the storage device.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		this.log.force();
+		this.log.close();
+	}
+	
+	/**
+	 * Compute two 32-bit hashes of a path (64-bit FNV-1a of its UTF-8 encoding).
+	 * The second hash is made odd, so that it is never zero.
+	 * 
+	 * @param path Path to be hashed
+	 * @return Two hashes packed into a long
+	 */
+	private static long hash(String path) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b: path.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash | 1L << 32;
+	}
+
+}
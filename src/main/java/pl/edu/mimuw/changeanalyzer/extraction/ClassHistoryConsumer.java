@@ -0,0 +1,31 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.IOException;
+
+import pl.edu.mimuw.changeanalyzer.exceptions.ChangeAnalyzerException;
+import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
+
+
+/**
+ * Consumer of class histories, receiving them as soon as they are extracted
+ * (see {@link RepoHistoryExtractor#extractClassHistories(ClassHistoryConsumer)}).
+ * 
+ * @author Adam Wierzbicki
+ */
+@FunctionalInterface
+public interface ClassHistoryConsumer {
+	
+	/**
+	 * Consume an extracted class history. If the consumer stage of extraction
+	 * has more than one thread (see {@link ExtractionConfig#getNumConsumerThreads()}),
+	 * this method is called concurrently.
+	 * 
+	 * @param path		Path to the file representing the class (relative to the main
+	 * 					directory of the repository)
+	 * @param history	History of the class
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	public void consume(String path, ClassHistory history) throws IOException, ChangeAnalyzerException;
+
+}
@@ -1,38 +1,65 @@
 package pl.edu.mimuw.changeanalyzer.extraction;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.eclipse.jgit.diff.DiffConfig;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.errors.LargeObjectException;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.FollowFilter;
 import org.eclipse.jgit.revwalk.RenameCallback;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevFlag;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 
+import pl.edu.mimuw.changeanalyzer.exceptions.BudgetExceededException;
 import pl.edu.mimuw.changeanalyzer.exceptions.ChangeAnalyzerException;
 import pl.edu.mimuw.changeanalyzer.exceptions.ExtractionException;
-import ch.uzh.ifi.seal.changedistiller.ChangeDistiller;
-import ch.uzh.ifi.seal.changedistiller.ChangeDistiller.Language;
 import ch.uzh.ifi.seal.changedistiller.distilling.FileDistiller;
+import ch.uzh.ifi.seal.changedistiller.model.classifiers.java.JavaEntityType;
 import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
+import ch.uzh.ifi.seal.changedistiller.model.entities.SourceCodeChange;
+import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
 
 
 /**
  * Class responsible for extraction of class histories. It contains reference
  * to a local Git repository. Each class is identified by a relative (to the repository
  * root directory) path to the .java file which cotains it.
+ * <p>
+ * An extractor owns its own {@link ObjectReader} and {@link ScratchArea}, so it
+ * must not be shared between threads. Parallel extraction should use one extractor
+ * per thread. After use, the extractor should be closed with {@link #close()}.
+ * <p>
+ * When the time limit of distilling a file is enforced, pairs of revisions are distilled
+ * by a helper thread of the extractor, so that a pair exceeding the limit can be abandoned
+ * together with the helper thread and its {@link DistillerEnvironment}.
  * 
  * @author Adam Wierzbicki
  */
@@ -43,16 +70,44 @@ public class ClassHistoryExtractor {
 	public static final String RENAME_VALUE = "copy";
 	
 	private Repository repository;
+	private ExtractionConfig config;
+	private ObjectReader reader;
+	private DiffConfig diffConfig;
+	private ScratchArea scratchArea;
+	private ObjectId storedOldId;
+	private ObjectId storedNewId;
+	private FileDistiller distiller;
+	private ExecutorService distillThread;
+	private DistillerCache cache;
+	private TreeEntryCache treeCache;
+	private ChangedPathIndex pathIndex;
+	private ExtractionSummary summary;
+	private boolean budgetEnforced;
 	
 	/**
 	 * Construct a new ClassHistoryExtractor.
 	 * 
-	 * @param repository Repository to extract class histories from
+	 * @param repository	Repository to extract class histories from
+	 * @param config		Extraction settings
 	 */
-	public ClassHistoryExtractor(Repository repository) {
+	public ClassHistoryExtractor(Repository repository, ExtractionConfig config) {
 		this.repository = repository;
+		this.config = config;
 		this.repository.getConfig().setString(DIFF_SECTION, null, RENAME_KEY, RENAME_VALUE);
 		// Copy detection is not working in JGit 3.6.2, but maybe will be fixed
+		this.diffConfig = this.repository.getConfig().get(DiffConfig.KEY);
+		this.reader = this.repository.newObjectReader();
+		this.treeCache = new TreeEntryCache();
+		this.budgetEnforced = true;
+	}
+	
+	/**
+	 * Construct a new ClassHistoryExtractor using default extraction settings.
+	 * 
+	 * @param repository Repository to extract class histories from
+	 */
+	public ClassHistoryExtractor(Repository repository) {
+		this(repository, new ExtractionConfig());
 	}
 
 	/**
@@ -75,6 +130,62 @@ public class ClassHistoryExtractor {
 		this(new File(repoPath));		
 	}
 	
+	/**
+	 * Set the cache of distilling results used by this extractor. Pairs of revisions
+	 * found in the cache are not distilled, and results of distilling other pairs
+	 * are put into the cache. Pairs skipped as non-semantic changes (see
+	 * {@link ExtractionConfig#setSkipNonSemanticChanges(boolean)}) are not cached,
+	 * since their empty results would be wrong for runs distilling all pairs.
+	 * 
+	 * @param cache Cache of distilling results (null if no cache should be used)
+	 */
+	public void setDistillerCache(DistillerCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * Set the cache of tree entries used by this extractor to find versions of files
+	 * in commits. Extractors of the same repository can share a cache.
+	 * 
+	 * @param treeCache Cache of tree entries
+	 */
+	public void setTreeEntryCache(TreeEntryCache treeCache) {
+		this.treeCache = treeCache;
+	}
+	
+	/**
+	 * Set the index of changed paths used to follow files. If it is set, files are
+	 * followed with the same rules as with a {@link FollowFilter}, but commits surely
+	 * not changing the followed file are not diffed. The index must not be updated
+	 * while it is used.
+	 * 
+	 * @param pathIndex Index of changed paths (null if files should be followed with
+	 * 					a {@link FollowFilter})
+	 */
+	public void setChangedPathIndex(ChangedPathIndex pathIndex) {
+		this.pathIndex = pathIndex;
+	}
+	
+	/**
+	 * Set the summary in which files exceeding limits of distillation are reported.
+	 * 
+	 * @param summary Summary of the extraction run (null if files should not be reported)
+	 */
+	public void setExtractionSummary(ExtractionSummary summary) {
+		this.summary = summary;
+	}
+	
+	/**
+	 * Set whether limits of distillation (see {@link ExtractionConfig#getMaxFileTime()},
+	 * {@link ExtractionConfig#getMaxBlobSize()} and {@link ExtractionConfig#getMaxRevisions()})
+	 * are enforced by this extractor. They are enforced by default.
+	 * 
+	 * @param budgetEnforced True iff limits should be enforced
+	 */
+	public void setBudgetEnforced(boolean budgetEnforced) {
+		this.budgetEnforced = budgetEnforced;
+	}
+	
 	/**
 	 * Get all commits modifying the given file (as with 'git log' command)
 	 * 
@@ -91,11 +202,10 @@ public class ClassHistoryExtractor {
 			throw new ExtractionException("Invalid repository: " + this.repository.getWorkTree().getAbsolutePath());
 		}
 		
-		DiffConfig diffConfig = this.repository.getConfig().get(DiffConfig.KEY);
-		FollowFilter filter = FollowFilter.create(filePath, diffConfig);
+		FollowFilter filter = FollowFilter.create(filePath, this.diffConfig);
 		filter.setRenameCallback(callback);
 		
-		RevWalk revWalk = new RevWalk(this.repository);
+		RevWalk revWalk = new RevWalk(this.reader);
 		RevCommit headCommit = revWalk.parseCommit(head);
 		revWalk.markStart(headCommit);
 		revWalk.setTreeFilter(filter);
@@ -104,16 +214,21 @@ public class ClassHistoryExtractor {
 	}
 	
 	/**
-	 * Analyze all commits modyfing a given file (in a linear time order) and extract
-	 * history of the class represented by this file.
+	 * Find all revisions of a given file by following it (as with 'git log --follow')
+	 * from the repository HEAD. Commits in which the file cannot be found are discarded.
+	 * If an index of changed paths is set, commits are walked by this extractor instead
+	 * of a {@link FollowFilter} (see {@link #setChangedPathIndex(ChangedPathIndex)}).
 	 * 
-	 * @param filePath 	Path to the file which history is to be extracted (relative to the main 
-	 * 					directory of the repository). This should be a .java file.
-	 * @return History of the given file
+	 * @param filePath	Path to the file (relative to the main directory of the repository)
+	 * @return History of revisions of the given file
 	 * @throws IOException
 	 * @throws ChangeAnalyzerException
 	 */
-	public ClassHistory extractClassHistory(String filePath) throws IOException, ChangeAnalyzerException {
+	public FileHistory getFileHistory(String filePath) throws IOException, ChangeAnalyzerException {
+		if (this.pathIndex != null) {
+			return this.walkFileHistory(filePath);
+		}
+		
 		Stack<RevCommit> commits = new Stack<RevCommit>();
 		Stack<String> filePaths = new Stack<String>();
 		filePaths.add(filePath);
@@ -127,97 +242,573 @@ public class ClassHistoryExtractor {
 		for (RevCommit commit: revWalk) {
 			commits.add(commit);
 		}
+		
+		FileHistory history = this.buildFileHistory(filePath, commits, filePaths);
 		revWalk.dispose();
-		if (commits.size() < 2) {
-			return null;
+		return history;
+	}
+	
+	/**
+	 * Build the history of a followed file from commits changing it.
+	 * 
+	 * @param filePath	Path to the file in the HEAD
+	 * @param commits	Commits changing the file, the oldest one on the top
+	 * @param filePaths	Paths under which the file has been followed, the oldest one on the top
+	 * @return History of revisions of the file
+	 * @throws IOException
+	 */
+	private FileHistory buildFileHistory(String filePath, Stack<RevCommit> commits, Stack<String> filePaths)
+			throws IOException {
+		
+		FileHistory history = new FileHistory(filePath);
+		if (commits.empty()) {
+			return history;
 		}
 		
-		FileDistiller distiller = ChangeDistiller.createFileDistiller(Language.JAVA);
-		File tmpOldFile = File.createTempFile(filePath.replace('/', '.'), ".old");
-		File tmpNewFile = File.createTempFile(filePath.replace('/', '.'), ".new");
+		RevCommit commit = commits.pop();
+		String path = filePaths.pop();
+		history.addRevision(new FileRevision(commit.copy(), path, this.getFileId(commit, path)));
 		
-		RevCommit oldCommit = null;
-		RevCommit newCommit = commits.pop();
-		String oldPath = null;
-		String newPath = filePaths.pop();
-				
 		while (!commits.empty()) {
-			oldCommit = newCommit;
-			newCommit = commits.pop();
-			oldPath = newPath;
-			
-			ObjectId oldFileId = this.getFileId(oldCommit, oldPath);
-			ObjectId newFileId = this.getFileId(newCommit, newPath);
-			if (newFileId == null) {
+			commit = commits.pop();
+			String newPath = path;
+			ObjectId fileId = this.getFileId(commit, newPath);
+			if (fileId == null) {
 				if (filePaths.empty()) {
-					System.err.println("Discarding " + newCommit);
-					newCommit = oldCommit;
+					System.err.println("Discarding " + commit);
 					continue;
 				}
 				newPath = filePaths.peek();
-				newFileId = this.getFileId(newCommit, newPath);
-				if (newFileId == null) {
-					System.err.println("Discarding " + newCommit);
-					newCommit = oldCommit;
-					newPath = oldPath;
+				fileId = this.getFileId(commit, newPath);
+				if (fileId == null) {
+					System.err.println("Discarding " + commit);
 					continue;
 				}
 				filePaths.pop();
 			}
+			history.addRevision(new FileRevision(commit.copy(), newPath, fileId));
+			path = newPath;
+		}
+		return history;
+	}
+	
+	/**
+	 * Find all revisions of a given file by following it with the rules of a {@link FollowFilter}.
+	 * Commits are walked in the order of commit time, and the file is followed under a single
+	 * path, which is changed when the file has been added to a non-merge commit by renaming
+	 * (or copying) another file. A commit is considered to change the file only if the file
+	 * differs from its versions in all the parents. Otherwise the walk goes on only through
+	 * the first parent having the same version of the file. Commits which surely don't change
+	 * the file according to the index of changed paths are not diffed.
+	 * 
+	 * @param filePath	Path to the file (relative to the main directory of the repository)
+	 * @return History of revisions of the given file
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private FileHistory walkFileHistory(String filePath) throws IOException, ChangeAnalyzerException {
+		ObjectId head = ExtractionUtils.getHead(this.repository);
+		if (head == null) {
+			throw new ExtractionException("Invalid repository: " + this.repository.getWorkTree().getAbsolutePath());
+		}
+		
+		Stack<RevCommit> commits = new Stack<RevCommit>();
+		Stack<String> filePaths = new Stack<String>();
+		filePaths.add(filePath);
+		String path = filePath;
+		
+		RevWalk revWalk = new RevWalk(this.reader);
+		RevFlag queued = revWalk.newFlag("queued");
+		PriorityQueue<RevCommit> queue = new PriorityQueue<RevCommit>(11,
+				(commit1, commit2) -> Integer.compare(commit2.getCommitTime(), commit1.getCommitTime()));
+		try {
+			this.enqueue(revWalk, queue, queued, revWalk.parseCommit(head));
+			RevCommit commit;
+			while ((commit = queue.poll()) != null) {
+				if (commit.getParentCount() > 0 && !this.pathIndex.mayChange(commit, path)) {
+					this.enqueue(revWalk, queue, queued, commit.getParent(0));
+					continue;
+				}
+				
+				TreeWalk treeWalk = new TreeWalk(this.reader);
+				treeWalk.setRecursive(true);
+				treeWalk.setFilter(PathFilter.create(path));
+				treeWalk.addTree(commit.getTree());
+				for (RevCommit parent: commit.getParents()) {
+					revWalk.parseHeaders(parent);
+					treeWalk.addTree(parent.getTree());
+				}
+				
+				int sameParent = commit.getParentCount() > 0 ? 0 : -1;
+				if (treeWalk.next()) {
+					sameParent = -1;
+					for (int i = 1; i < treeWalk.getTreeCount() && sameParent < 0; ++i) {
+						if (treeWalk.getRawMode(i) == treeWalk.getRawMode(0) && treeWalk.idEqual(0, i)) {
+							sameParent = i - 1;
+						}
+					}
+					if (sameParent < 0) {
+						commits.add(commit);
+						if (commit.getParentCount() == 1 && treeWalk.getRawMode(1) == 0) {
+							String oldPath = this.findRenameSource(commit, path);
+							if (oldPath != null) {
+								filePaths.add(oldPath);
+								path = oldPath;
+							}
+						}
+					}
+				}
+				
+				if (sameParent >= 0) {
+					this.enqueue(revWalk, queue, queued, commit.getParent(sameParent));
+				} else {
+					for (RevCommit parent: commit.getParents()) {
+						this.enqueue(revWalk, queue, queued, parent);
+					}
+				}
+			}
+			return this.buildFileHistory(filePath, commits, filePaths);
+		} finally {
+			revWalk.dispose();
+		}
+	}
+	
+	/**
+	 * Add a commit to the queue of a walk, unless it has been queued already.
+	 * 
+	 * @param revWalk	Walk parsing the commit
+	 * @param queue		Queue of commits to be walked, the newest one first
+	 * @param queued	Flag of queued commits
+	 * @param commit	Commit to be queued
+	 * @throws IOException
+	 */
+	private void enqueue(RevWalk revWalk, PriorityQueue<RevCommit> queue, RevFlag queued, RevCommit commit)
+			throws IOException {
+		
+		if (!commit.has(queued)) {
+			revWalk.parseHeaders(commit);
+			commit.add(queued);
+			queue.add(commit);
+		}
+	}
+	
+	/**
+	 * Find the file renamed (or copied) to a file added in a non-merge commit,
+	 * with the rename detection of a {@link FollowFilter}.
+	 * 
+	 * @param commit	Non-merge commit adding the file
+	 * @param path		Path to the added file
+	 * @return Path to the renamed file in the parent of the commit (null if the file
+	 * 		   has not been renamed)
+	 * @throws IOException
+	 */
+	private String findRenameSource(RevCommit commit, String path) throws IOException {
+		TreeWalk treeWalk = new TreeWalk(this.reader);
+		treeWalk.setRecursive(true);
+		treeWalk.setFilter(TreeFilter.ANY_DIFF);
+		treeWalk.addTree(commit.getParent(0).getTree());
+		treeWalk.addTree(commit.getTree());
+		
+		RenameDetector renameDetector = new RenameDetector(this.repository);
+		renameDetector.addAll(DiffEntry.scan(treeWalk));
+		for (DiffEntry entry: renameDetector.compute(this.reader, NullProgressMonitor.INSTANCE)) {
+			if ((entry.getChangeType() == ChangeType.RENAME || entry.getChangeType() == ChangeType.COPY)
+					&& entry.getNewPath().equals(path)) {
+				return entry.getOldPath();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Analyze all commits modyfing a given file (in a linear time order) and extract
+	 * history of the class represented by this file.
+	 * 
+	 * @param filePath 	Path to the file which history is to be extracted (relative to the main 
+	 * 					directory of the repository). This should be a .java file.
+	 * @return History of the given file
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	public ClassHistory extractClassHistory(String filePath) throws IOException, ChangeAnalyzerException {
+		return this.extractClassHistory(this.getFileHistory(filePath));
+	}
+	
+	/**
+	 * Distill changes between all consecutive revisions of a file and extract history
+	 * of the class represented by this file. Histories of methods of inner classes
+	 * are placed directly in the returned class history.
+	 * <p>
+	 * Pairs of revisions are distilled from the newest to the oldest one, so that
+	 * the most recent revisions are kept when a file exceeds its time limit and
+	 * {@link OverBudgetPolicy#TRUNCATE} is used.
+	 * 
+	 * @param fileHistory Revisions of the file which history is to be extracted. This should be a .java file.
+	 * @return History of the given file (null if the file has less than two revisions)
+	 * @throws IOException
+	 * @throws BudgetExceededException If the file exceeds a limit of distillation and
+	 * 								   {@link OverBudgetPolicy#SKIP} or {@link OverBudgetPolicy#DEFER} is used
+	 * @throws ChangeAnalyzerException
+	 */
+	public ClassHistory extractClassHistory(FileHistory fileHistory) throws IOException, ChangeAnalyzerException {
+		List<FileRevision> revisions = fileHistory.getRevisions();
+		if (this.budgetEnforced) {
+			revisions = this.applySizeLimits(fileHistory.getPath(), revisions);
+		}
+		if (revisions.size() < 2) {
+			return null;
+		}
+		
+		long maxFileTime = this.budgetEnforced ? this.config.getMaxFileTime() : 0;
+		long startTime = System.currentTimeMillis();
+		LinkedList<List<StructureEntityVersion>> distilled = new LinkedList<List<StructureEntityVersion>>();
+		ListIterator<FileRevision> iterator = revisions.listIterator(revisions.size());
+		FileRevision revision = iterator.previous();
+		this.distiller = null;
+		
+		while (iterator.hasPrevious()) {
+			long remainingTime = maxFileTime - (System.currentTimeMillis() - startTime);
+			if (maxFileTime > 0 && remainingTime <= 0) {
+				this.overBudget(fileHistory.getPath(), "distilling took more than " + maxFileTime + " ms, "
+						+ distilled.size() + " of " + (revisions.size() - 1) + " pairs distilled");
+				break;
+			}
 			
-			this.storeFileRevision(oldFileId, tmpOldFile);
-			this.storeFileRevision(newFileId, tmpNewFile);
-			distiller.extractClassifiedSourceCodeChanges(tmpOldFile, tmpNewFile, newCommit.name());
+			FileRevision previous = iterator.previous();
+			BlobPair key = new BlobPair(previous.getBlobId(), revision.getBlobId());
+			List<StructureEntityVersion> versions = this.cache != null
+					? this.cache.get(key, revision.getCommitName())
+					: null;
+			
+			if (versions == null && this.config.isSkipNonSemanticChanges() && this.isNonSemanticChange(previous, revision)) {
+				versions = Collections.emptyList();
+				revision.setContent(null);
+				if (this.summary != null) {
+					this.summary.addNonSemanticPair();
+				}
+			}
+			if (versions == null) {
+				versions = this.distillMethodVersions(previous, revision, maxFileTime > 0 ? remainingTime : 0);
+				if (versions == null) {
+					this.overBudget(fileHistory.getPath(), "distilling took more than " + maxFileTime + " ms, "
+							+ distilled.size() + " of " + (revisions.size() - 1) + " pairs distilled");
+					break;
+				}
+				if (this.cache != null) {
+					this.cache.put(key, versions);
+				}
+			}
+			distilled.addFirst(versions);
+			revision = previous;
+		}
+		for (FileRevision remaining: revisions.subList(0, iterator.nextIndex())) {
+			remaining.setContent(null);
 		}
 		
-		if (!tmpOldFile.delete()) {
-			throw new IOException("Failed to delete file " + tmpOldFile.getAbsolutePath());
+		ClassHistory classHistory = createClassHistory(fileHistory.getPath(), revision.getCommitName());
+		for (List<StructureEntityVersion> versions: distilled) {
+			for (StructureEntityVersion version: versions) {
+				classHistory.createMethodHistory(version);
+			}
 		}
-		if (!tmpNewFile.delete()) {
-			throw new IOException("Failed to delete file " + tmpNewFile.getAbsolutePath());
+		return classHistory;
+	}
+	
+	/**
+	 * Apply limits of the number of revisions and of the size of a revision
+	 * to revisions of a file.
+	 * 
+	 * @param path		Path to the file in the HEAD
+	 * @param revisions	Revisions of the file
+	 * @return Revisions within the limits
+	 * @throws IOException
+	 * @throws BudgetExceededException If the file exceeds a limit and {@link OverBudgetPolicy#TRUNCATE}
+	 * 								   is not used
+	 */
+	private List<FileRevision> applySizeLimits(String path, List<FileRevision> revisions)
+			throws IOException, BudgetExceededException {
+		
+		int maxRevisions = this.config.getMaxRevisions();
+		if (maxRevisions > 0 && revisions.size() > maxRevisions) {
+			this.overBudget(path, revisions.size() + " revisions, limit is " + maxRevisions);
+			revisions = revisions.subList(revisions.size() - maxRevisions, revisions.size());
+		}
+		
+		long maxBlobSize = this.config.getMaxBlobSize();
+		if (maxBlobSize > 0) {
+			for (int i = revisions.size() - 1; i >= 0; --i) {
+				FileRevision revision = revisions.get(i);
+				long size = revision.getContent() != null
+						? revision.getContent().length
+						: this.reader.getObjectSize(revision.getBlobId(), Constants.OBJ_BLOB);
+				if (size > maxBlobSize) {
+					this.overBudget(path, "revision " + revision.getCommitName() + " has " + size
+							+ " bytes, limit is " + maxBlobSize);
+					revisions = revisions.subList(i + 1, revisions.size());
+					break;
+				}
+			}
+		}
+		return revisions;
+	}
+	
+	/**
+	 * Report a file exceeding a limit of distillation in the summary. Unless
+	 * {@link OverBudgetPolicy#TRUNCATE} is used, the file is not extracted further.
+	 * 
+	 * @param path		Path to the file in the HEAD
+	 * @param reason	Description of the exceeded limit
+	 * @throws BudgetExceededException If {@link OverBudgetPolicy#TRUNCATE} is not used
+	 */
+	private void overBudget(String path, String reason) throws BudgetExceededException {
+		OverBudgetPolicy policy = this.config.getOverBudgetPolicy();
+		if (this.summary != null) {
+			this.summary.addOverBudgetFile(path, reason, policy);
+		}
+		if (policy != OverBudgetPolicy.TRUNCATE) {
+			throw new BudgetExceededException(reason);
+		}
+	}
+	
+	/**
+	 * Check whether two revisions of a file differ only in whitespace, imports,
+	 * the package declaration or comments outside of type bodies. Contents of
+	 * the revisions are loaded (unless they are too large) and kept for distillation.
+	 * 
+	 * @param oldRevision	Old revision of the file
+	 * @param newRevision	New revision of the file
+	 * @return True iff the revisions surely contain no method-level changes
+	 * @throws IOException
+	 */
+	private boolean isNonSemanticChange(FileRevision oldRevision, FileRevision newRevision) throws IOException {
+		try {
+			for (FileRevision revision: new FileRevision[] {oldRevision, newRevision}) {
+				if (revision.getContent() == null) {
+					revision.setContent(this.reader.open(revision.getBlobId(), Constants.OBJ_BLOB)
+							.getCachedBytes(ExtractionPipeline.MAX_PREFETCH_SIZE));
+				}
+			}
+		} catch (LargeObjectException e) {
+			return false;
 		}
-		return distiller.getClassHistory();
+		return SemanticTokens.areEquivalent(oldRevision.getContent(), newRevision.getContent());
 	}
 	
 	/**
+	 * Create an empty history of the class represented by a .java file. Its name
+	 * is derived from the path of the file.
+	 * 
+	 * @param filePath	Path to the file (relative to the main directory of the repository)
+	 * @param commitId	ID of the commit of the first class version
+	 * @return Class history without method histories
+	 */
+	public static ClassHistory createClassHistory(String filePath, String commitId) {
+		String className = filePath.replace('/', '.');
+		if (className.endsWith(RepoHistoryWalker.JAVA_SUFFIX)) {
+			className = className.substring(0, className.length() - RepoHistoryWalker.JAVA_SUFFIX.length());
+		}
+		return new ClassHistory(new StructureEntityVersion(JavaEntityType.CLASS, className, 0, commitId));
+	}
+	
+	/**
+	 * Distill changes between two revisions of a file and group them by methods
+	 * they belong to. In the method-only mode (see {@link ExtractionConfig#isMethodOnly()})
+	 * returned versions are stripped of changed and parent entities.
+	 * <p>
+	 * If a time limit is given, the pair is distilled by the helper thread of this extractor.
+	 * When the limit is exceeded, the helper thread is abandoned with its distilling
+	 * environment and scratch area, since ChangeDistiller cannot be interrupted.
+	 * 
+	 * @param oldRevision	Old revision of the file
+	 * @param newRevision	New revision of the file
+	 * @param timeout		Time limit in milliseconds (0 if there is no limit)
+	 * @return Versions of methods changed in the new revision (null if the time limit
+	 * 		   has been exceeded)
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private List<StructureEntityVersion> distillMethodVersions(FileRevision oldRevision, FileRevision newRevision,
+			long timeout) throws IOException, ChangeAnalyzerException {
+		
+		if (newRevision.getBlobId().equals(this.storedOldId)) {
+			this.storeFileRevision(oldRevision, true);
+		} else {
+			if (!oldRevision.getBlobId().equals(this.storedNewId)) {
+				this.storeFileRevision(oldRevision, false);
+			}
+			this.storeFileRevision(newRevision, false);
+		}
+		ScratchArea scratchArea = this.getScratchArea();
+		if (timeout <= 0) {
+			return this.distillStoredRevisions(scratchArea, oldRevision, newRevision);
+		}
+		
+		if (this.distillThread == null) {
+			this.distillThread = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "distiller");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		Future<List<StructureEntityVersion>> future = this.distillThread.submit(
+				() -> this.distillStoredRevisions(scratchArea, oldRevision, newRevision));
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			this.abandonDistillThread(future);
+			return null;
+		} catch (InterruptedException e) {
+			this.abandonDistillThread(future);
+			Thread.currentThread().interrupt();
+			throw new ExtractionException("Distilling interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new ExtractionException("Distilling failed", cause);
+		}
+	}
+	
+	/**
+	 * Distill changes between two revisions of a file stored in the scratch area
+	 * with the distilling environment of the current thread.
+	 * 
+	 * @param scratchArea	Scratch area holding both revisions
+	 * @param oldRevision	Old revision of the file
+	 * @param newRevision	New revision of the file
+	 * @return Versions of methods changed in the new revision
+	 */
+	private List<StructureEntityVersion> distillStoredRevisions(ScratchArea scratchArea,
+			FileRevision oldRevision, FileRevision newRevision) {
+		
+		if (this.distiller == null || this.config.isMethodOnly()) {
+			this.distiller = DistillerEnvironment.get().createFileDistiller();
+		}
+		ReusingASTHelperFactory astHelperFactory = DistillerEnvironment.get().getASTHelperFactory();
+		astHelperFactory.setContents(scratchArea.getOldFile(), oldRevision.getBlobId(),
+				scratchArea.getNewFile(), newRevision.getBlobId());
+		this.distiller.extractClassifiedSourceCodeChanges(scratchArea.getOldFile(), scratchArea.getNewFile(),
+				newRevision.getCommitName());
+		
+		List<StructureEntityVersion> versions = new ArrayList<StructureEntityVersion>();
+		Set<StructureEntityVersion> seen = Collections.newSetFromMap(new IdentityHashMap<StructureEntityVersion, Boolean>());
+		List<SourceCodeChange> changes = this.distiller.getSourceCodeChanges();
+		if (changes != null) {
+			for (SourceCodeChange change: changes) {
+				StructureEntityVersion root = change.getRootEntity();
+				if (root != null && root.getType().isMethod() && seen.add(root)) {
+					versions.add(this.config.isMethodOnly() ? StoredSourceCodeChange.strip(root) : root);
+				}
+			}
+		}
+		return versions;
+	}
+	
+	/**
+	 * Find the version of a file in a commit. Trees are resolved through
+	 * the tree entry cache of this extractor.
 	 * 
 	 * @param commit	Commit from which file version is retrieved
 	 * @param path		Path to the versioned file (relative to the main directory of the repository)
-	 * @return
+	 * @return ID of the file content (null if the commit doesn't contain the file)
 	 * @throws IOException
 	 */
 	private ObjectId getFileId(RevCommit commit, String path) throws IOException {
-		RevTree revTree = commit.getTree();
-		PathFilter filter = PathFilter.create(path);
+		return this.treeCache.findFile(this.reader, commit.getTree(), path);
+	}
+	
+	/**
+	 * Copy the content of a git versioned file into the scratch area of this
+	 * extractor. Prefetched content of the revision is used and released,
+	 * if it is available.
+	 *
+	 * @param revision	Revision of a versioned file
+	 * @param previous	Should the revision be stored as the old one (the previously stored
+	 * 					old revision becomes the new one), instead of the new one
+	 * @throws IOException
+	 */
+	private void storeFileRevision(FileRevision revision, boolean previous) throws IOException {
+		ScratchArea scratchArea = this.getScratchArea();
+		ObjectId oldId = this.storedOldId;
+		ObjectId newId = this.storedNewId;
+		this.storedOldId = null;
+		this.storedNewId = null;
+		byte[] content = revision.getContent();
+		if (content != null && previous) {
+			scratchArea.storePrevious(content);
+		} else if (content != null) {
+			scratchArea.store(content);
+		} else if (previous) {
+			scratchArea.storePrevious(this.reader.open(revision.getBlobId(), Constants.OBJ_BLOB));
+		} else {
+			scratchArea.store(this.reader.open(revision.getBlobId(), Constants.OBJ_BLOB));
+		}
+		revision.setContent(null);
 		
-		TreeWalk treeWalk = new TreeWalk(this.repository);
-		treeWalk.addTree(revTree);
-		treeWalk.setRecursive(true);
-		treeWalk.setFilter(filter);
+		if (previous) {
+			this.storedNewId = oldId;
+			this.storedOldId = revision.getBlobId();
+		} else {
+			this.storedOldId = newId;
+			this.storedNewId = revision.getBlobId();
+		}
+	}
 	
-		if (!treeWalk.next()) {
-			return null;
+	/**
+	 * Abandon the helper thread distilling a pair of revisions, which has exceeded
+	 * the time limit. Its distilling environment and the scratch area it reads are
+	 * not used anymore; the next pair is distilled by a new helper thread.
+	 * 
+	 * @param future Result of the abandoned distillation
+	 * @throws IOException When scratch files cannot be deleted
+	 */
+	private void abandonDistillThread(Future<List<StructureEntityVersion>> future) throws IOException {
+		future.cancel(true);
+		this.distillThread.shutdownNow();
+		this.distillThread = null;
+		this.distiller = null;
+		if (this.scratchArea != null) {
+			this.scratchArea.close();
+			this.scratchArea = null;
+			this.storedOldId = null;
+			this.storedNewId = null;
 		}
-		return treeWalk.getObjectId(0);
 	}
 	
 	/**
-	 * Copy the content of a git versioned file into another file.
-	 *
-	 * @param fileId	ID of a versioned file
-	 * @param destFile 	Destination file
+	 * Get the scratch area of this extractor, creating it on first use.
+	 * 
+	 * @return Scratch area of this extractor
 	 * @throws IOException
 	 */
-	private void storeFileRevision(ObjectId fileId, File destFile) throws IOException {
-		ObjectLoader loader = this.repository.open(fileId, Constants.OBJ_BLOB);
-		OutputStream stream = new FileOutputStream(destFile);
-		
-		try {
-			loader.copyTo(stream);
-		} catch (IOException e) {
-			throw e;
-		} finally {
-			stream.close();
+	private ScratchArea getScratchArea() throws IOException {
+		if (this.scratchArea == null) {
+			this.scratchArea = new ScratchArea(this.config.getScratchDir());
+		}
+		return this.scratchArea;
+	}
+	
+	/**
+	 * Release resources held by this extractor. A closed extractor can be
+	 * used again, but should be closed after that use as well.
+	 * 
+	 * @throws IOException When scratch files cannot be deleted
+	 */
+	public void close() throws IOException {
+		this.reader.release();
+		if (this.distillThread != null) {
+			this.distillThread.shutdown();
+			this.distillThread = null;
+		}
+		if (this.scratchArea != null) {
+			this.scratchArea.close();
+			this.scratchArea = null;
+			this.storedOldId = null;
+			this.storedNewId = null;
 		}
 	}
 
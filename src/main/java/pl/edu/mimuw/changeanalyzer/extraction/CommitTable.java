@@ -0,0 +1,241 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+
+/**
+ * Table of relevant information about commits, built once from a commit walk
+ * (see {@link RepoHistoryExtractor#extractCommits()}). Each commit gets a dense
+ * index in order of the walk, which is topological (a commit precedes its parents).
+ * Information is kept in arrays indexed by commits: time, author ID, bugfix flag,
+ * and totals of changes and changed entities (methods), which are updated
+ * as method histories are counted.
+ * <p>
+ * A commit is considered a bugfix if its message matches a simple regex.
+ * Authors get dense IDs in an {@link AuthorTable}.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class CommitTable {
+	
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private Pattern bugfixPattern;
+	private ObjectIdOwnerMap<Entry> indices;
+	private ObjectId[] ids;
+	private int[] times;
+	private int[] authors;
+	private boolean[] fixes;
+	private int[] numChanges;
+	private int[] numEntities;
+	private int size;
+	private AuthorTable authorTable;
+	
+	/**
+	 * Entry of the commit index map.
+	 */
+	private static class Entry extends ObjectIdOwnerMap.Entry {
+		
+		private final int index;
+		
+		/**
+		 * Construct a new Entry.
+		 * 
+		 * @param id	Commit ID
+		 * @param index	Commit index
+		 */
+		public Entry(AnyObjectId id, int index) {
+			super(id);
+			this.index = index;
+		}
+	
+	}
+	
+	/**
+	 * Construct a new, empty CommitTable.
+	 */
+	public CommitTable() {
+		this.bugfixPattern = Pattern.compile("bug|fix|issue", Pattern.CASE_INSENSITIVE);
+		this.indices = new ObjectIdOwnerMap<Entry>();
+		this.ids = new ObjectId[INITIAL_CAPACITY];
+		this.times = new int[INITIAL_CAPACITY];
+		this.authors = new int[INITIAL_CAPACITY];
+		this.fixes = new boolean[INITIAL_CAPACITY];
+		this.numChanges = new int[INITIAL_CAPACITY];
+		this.numEntities = new int[INITIAL_CAPACITY];
+		this.authorTable = new AuthorTable();
+	}
+	
+	/**
+	 * Add a commit to this table. Totals of changes of the commit are initially zero.
+	 * If the commit is already in the table, its totals are reset.
+	 * 
+	 * @param commit Commit to be added
+	 * @return Index of the commit
+	 */
+	public int add(RevCommit commit) {
+		Entry entry = this.indices.get(commit);
+		int index;
+		if (entry != null) {
+			index = entry.index;
+		} else {
+			index = this.size++;
+			if (index == this.ids.length) {
+				this.grow();
+			}
+			entry = new Entry(commit, index);
+			this.indices.add(entry);
+			this.ids[index] = entry;
+		}
+		
+		this.times[index] = commit.getCommitTime();
+		this.authors[index] = this.authorTable.getId(commit.getAuthorIdent());
+		this.fixes[index] = this.bugfixPattern.matcher(commit.getFullMessage()).find();
+		this.numChanges[index] = 0;
+		this.numEntities[index] = 0;
+		return index;
+	}
+	
+	/**
+	 * Double the capacity of the arrays of this table.
+	 */
+	private void grow() {
+		int capacity = 2 * this.ids.length;
+		this.ids = Arrays.copyOf(this.ids, capacity);
+		this.times = Arrays.copyOf(this.times, capacity);
+		this.authors = Arrays.copyOf(this.authors, capacity);
+		this.fixes = Arrays.copyOf(this.fixes, capacity);
+		this.numChanges = Arrays.copyOf(this.numChanges, capacity);
+		this.numEntities = Arrays.copyOf(this.numEntities, capacity);
+	}
+	
+	/**
+	 * Get the number of commits in this table.
+	 * 
+	 * @return Number of commits
+	 */
+	public int size() {
+		return this.size;
+	}
+	
+	/**
+	 * Get the index of a commit.
+	 * 
+	 * @param commitId Commit ID
+	 * @return Index of the commit (-1 if the commit is not in this table)
+	 */
+	public int getIndex(AnyObjectId commitId) {
+		Entry entry = this.indices.get(commitId);
+		return entry != null ? entry.index : -1;
+	}
+	
+	/**
+	 * Get the index of a commit.
+	 * 
+	 * @param commitId Commit ID as a SHA-1 string
+	 * @return Index of the commit (-1 if the commit is not in this table)
+	 */
+	public int getIndex(String commitId) {
+		return ObjectId.isId(commitId) ? this.getIndex(ObjectId.fromString(commitId)) : -1;
+	}
+	
+	/**
+	 * Get ID of a commit.
+	 * 
+	 * @param index Commit index
+	 * @return Commit ID
+	 */
+	public ObjectId getId(int index) {
+		return this.ids[index];
+	}
+	
+	/**
+	 * Get time of a commit.
+	 * 
+	 * @param index Commit index
+	 * @return Commit time in seconds since epoch
+	 */
+	public int getTime(int index) {
+		return this.times[index];
+	}
+	
+	/**
+	 * Get ID of the author of a commit.
+	 * 
+	 * @param index Commit index
+	 * @return Author ID
+	 */
+	public int getAuthorId(int index) {
+		return this.authors[index];
+	}
+	
+	/**
+	 * Get the table of authors of commits in this table.
+	 * 
+	 * @return Table of authors
+	 */
+	public AuthorTable getAuthorTable() {
+		return this.authorTable;
+	}
+	
+	/**
+	 * Check, whether a commit is a bugfix.
+	 * 
+	 * @param index Commit index
+	 * @return True iff the commit is a bugfix
+	 */
+	public boolean isFix(int index) {
+		return this.fixes[index];
+	}
+	
+	/**
+	 * Get the number of fine-grained changes in a commit.
+	 * 
+	 * @param index Commit index
+	 * @return Number of changes in the commit
+	 */
+	public int getNumChanges(int index) {
+		return this.numChanges[index];
+	}
+	
+	/**
+	 * Get the number of entities (methods) changed in a commit.
+	 * 
+	 * @param index Commit index
+	 * @return Number of changed entities
+	 */
+	public int getNumEntities(int index) {
+		return this.numEntities[index];
+	}
+	
+	/**
+	 * Add new changed entity to a commit (update number of changes & number of changed entities).
+	 * 
+	 * @param index			Commit index
+	 * @param numChanges	Number of changes of the entity
+	 */
+	public void addChangedEntity(int index, int numChanges) {
+		this.numChanges[index] += numChanges;
+		this.numEntities[index]++;
+	}
+	
+	/**
+	 * Add changes of multiple entities to a commit, e.g. partial totals
+	 * of the commit counted by another process.
+	 * 
+	 * @param index			Commit index
+	 * @param numChanges	Number of changes
+	 * @param numEntities	Number of changed entities
+	 */
+	public void addChanges(int index, int numChanges, int numEntities) {
+		this.numChanges[index] += numChanges;
+		this.numEntities[index] += numEntities;
+	}
+
+}
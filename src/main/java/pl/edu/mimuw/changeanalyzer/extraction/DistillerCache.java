@@ -0,0 +1,400 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import pl.edu.mimuw.changeanalyzer.io.RecordLog;
+import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
+
+
+/**
+ * Persistent cache of distilling results. It maps pairs of blobs to versions of methods
+ * changed between them (see {@link MethodVersionCodec}), so a pair distilled once is not
+ * distilled again by later runs, even on a different repository sharing the blobs.
+ * <p>
+ * Entries are stored in an append-only {@link RecordLog}. The first hit of an entry
+ * in each run is recorded in the log as well, so the least recently used entries are
+ * evicted when the total size of entries exceeds the limit. The log is compacted when
+ * it is opened or closed, if evicted entries and hit records take more space than live
+ * entries, and during a run, when it grows beyond a fixed multiple of the limit.
+ * <p>
+ * A cache can be shared by all extraction workers. Only updates of the in-memory index
+ * are synchronized; entries are read, decoded, encoded and appended to the log
+ * concurrently. Evicted entries stay in the log until it is compacted, so an entry
+ * may still be read after it has been evicted by another thread. Readers and writers
+ * are excluded only while a compacted log replaces the old one.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class DistillerCache {
+	
+	/**
+	 * Default limit of the total size of cached entries in bytes
+	 */
+	public static final long DEFAULT_MAX_SIZE = 256L << 20;
+	
+	private static final int MAGIC = 0x43414443;
+	private static final byte ENTRY_RECORD = 1;
+	private static final byte HIT_RECORD = 2;
+	private static final int HIT_RECORD_SIZE = RecordLog.FRAME_SIZE + 1 + BlobPair.SIZE;
+	private static final int COMPACTION_FACTOR = 2;
+	
+	private File file;
+	private long maxSize;
+	private volatile RecordLog log;
+	private ReadWriteLock lock;
+	private LinkedHashMap<BlobPair, Entry> index;
+	private long size;
+	private int numHits;
+	private int numMisses;
+	
+	/**
+	 * Location and size of a cached entry in the log.
+	 * 
+	 * @author Adam Wierzbicki
+	 */
+	private static class Entry {
+		
+		private long position;
+		private int size;
+		private boolean hit;
+		
+		public Entry(long position, int size) {
+			this.position = position;
+			this.size = size;
+		}
+	
+	}
+	
+	/**
+	 * Open a cache, creating its file if it doesn't exist.
+	 * 
+	 * @param file		Cache file
+	 * @param maxSize	Limit of the total size of cached entries in bytes
+	 * @throws IOException
+	 */
+	public DistillerCache(File file, long maxSize) throws IOException {
+		this.file = file;
+		this.maxSize = maxSize;
+		this.lock = new ReentrantReadWriteLock();
+		this.open();
+		this.evict();
+		if (this.isMostlyGarbage()) {
+			this.compact();
+		}
+	}
+	
+	/**
+	 * Open a cache with the default size limit, creating its file if it doesn't exist.
+	 * 
+	 * @param file Cache file
+	 * @throws IOException
+	 */
+	public DistillerCache(File file) throws IOException {
+		this(file, DEFAULT_MAX_SIZE);
+	}
+	
+	/**
+	 * Open the log and rebuild the index from its records.
+	 * 
+	 * @throws IOException
+	 */
+	private void open() throws IOException {
+		this.index = new LinkedHashMap<BlobPair, Entry>(16, 0.75f, true);
+		this.size = 0;
+		this.log = new RecordLog(this.file, MAGIC, MethodVersionCodec.FORMAT_VERSION, (position, payload) -> {
+			int recordSize = RecordLog.FRAME_SIZE + payload.remaining();
+			byte kind = payload.get();
+			BlobPair key = BlobPair.read(payload);
+			if (kind == ENTRY_RECORD) {
+				Entry old = this.index.put(key, new Entry(position, recordSize));
+				this.size += recordSize - (old != null ? old.size : 0);
+			} else {
+				this.index.get(key);
+			}
+		});
+	}
+	
+	/**
+	 * Get method versions changed between two blobs.
+	 * 
+	 * @param key		Pair of blobs
+	 * @param commitId	ID of the commit introducing the new blob
+	 * @return Changed method versions belonging to the given commit
+	 * 		   (null if the pair is not cached)
+	 * @throws IOException
+	 */
+	public List<StructureEntityVersion> get(BlobPair key, String commitId) throws IOException {
+		List<StructureEntityVersion> versions;
+		this.lock.readLock().lock();
+		try {
+			versions = this.read(key, commitId);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		this.compactIfGrown();
+		return versions;
+	}
+	
+	/**
+	 * Read method versions of a cached entry, recording its first hit in this run.
+	 * The caller must hold the read lock.
+	 * 
+	 * @param key		Pair of blobs
+	 * @param commitId	ID of the commit introducing the new blob
+	 * @return Changed method versions belonging to the given commit
+	 * 		   (null if the pair is not cached)
+	 * @throws IOException
+	 */
+	private List<StructureEntityVersion> read(BlobPair key, String commitId) throws IOException {
+		Entry entry;
+		synchronized (this) {
+			entry = this.index.get(key);
+			if (entry == null) {
+				++this.numMisses;
+				return null;
+			}
+		}
+		
+		ByteBuffer payload = this.log.read(entry.position);
+		List<StructureEntityVersion> versions = payload != null ? this.decode(payload, commitId) : null;
+		boolean firstHit;
+		synchronized (this) {
+			if (versions == null) {
+				if (this.index.remove(key, entry)) {
+					this.size -= entry.size;
+				}
+				++this.numMisses;
+			} else {
+				++this.numHits;
+			}
+			firstHit = !entry.hit;
+			entry.hit = true;
+		}
+		if (versions == null) {
+			System.err.println("Discarding corrupted cache entry " + key);
+		} else if (firstHit) {
+			ByteBuffer record = ByteBuffer.allocate(1 + BlobPair.SIZE);
+			record.put(HIT_RECORD);
+			key.write(record);
+			record.flip();
+			this.log.append(record);
+		}
+		return versions;
+	}
+	
+	/**
+	 * Check whether results of distilling two blobs are cached. This check doesn't
+	 * count as a use of the entry.
+	 * 
+	 * @param key Pair of blobs
+	 * @return True iff the pair is cached
+	 */
+	public boolean contains(BlobPair key) {
+		this.lock.readLock().lock();
+		try {
+			synchronized (this) {
+				return this.index.containsKey(key);
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Store method versions changed between two blobs.
+	 * 
+	 * @param key		Pair of blobs
+	 * @param versions	Changed method versions
+	 * @throws IOException
+	 */
+	public void put(BlobPair key, List<StructureEntityVersion> versions) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ENTRY_RECORD);
+		out.write(new byte[BlobPair.SIZE]);
+		out.writeInt(versions.size());
+		for (StructureEntityVersion version: versions) {
+			MethodVersionCodec.write(out, version);
+		}
+		out.flush();
+		
+		ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+		record.position(1);
+		key.write(record);
+		record.rewind();
+		
+		int recordSize = RecordLog.FRAME_SIZE + record.remaining();
+		this.lock.readLock().lock();
+		try {
+			Entry entry = new Entry(this.log.append(record), recordSize);
+			entry.hit = true;
+			synchronized (this) {
+				Entry old = this.index.put(key, entry);
+				this.size += recordSize - (old != null ? old.size : 0);
+				this.evict();
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		this.compactIfGrown();
+	}
+	
+	/**
+	 * Decode method versions from an entry record.
+	 * 
+	 * @param payload	Payload of an entry record
+	 * @param commitId	ID of the commit the versions belong to
+	 * @return Decoded method versions (null if the record is malformed)
+	 */
+	private List<StructureEntityVersion> decode(ByteBuffer payload, String commitId) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array(),
+				payload.arrayOffset() + payload.position(), payload.remaining()));
+		try {
+			in.skipBytes(1 + BlobPair.SIZE);
+			int numVersions = in.readInt();
+			List<StructureEntityVersion> versions = new ArrayList<StructureEntityVersion>(Math.max(numVersions, 0));
+			for (int i = 0; i < numVersions; ++i) {
+				versions.add(MethodVersionCodec.read(in, commitId));
+			}
+			return versions;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Evict the least recently used entries from the index until the total size
+	 * of entries is within the limit. Evicted entries are removed from the log
+	 * when it is compacted.
+	 */
+	private void evict() {
+		Iterator<Entry> iterator = this.index.values().iterator();
+		while (this.size > this.maxSize && iterator.hasNext()) {
+			this.size -= iterator.next().size;
+			iterator.remove();
+		}
+	}
+	
+	/**
+	 * Check whether evicted entries and hit records take more space in the log
+	 * than live entries.
+	 * 
+	 * @return True iff the log should be compacted
+	 */
+	private boolean isMostlyGarbage() {
+		return this.log.length() - RecordLog.HEADER_SIZE > 2 * this.size + (long) HIT_RECORD_SIZE * this.index.size();
+	}
+	
+	/**
+	 * Compact the log if it has grown beyond {@link #COMPACTION_FACTOR} times the size limit
+	 * during this run. Other threads are excluded while the log is compacted.
+	 * 
+	 * @throws IOException
+	 */
+	private void compactIfGrown() throws IOException {
+		long limit = COMPACTION_FACTOR * this.maxSize;
+		if (this.log.length() <= limit) {
+			return;
+		}
+		this.lock.writeLock().lock();
+		try {
+			if (this.log.length() > limit) {
+				this.compact();
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Rewrite the log so that it contains only live entries, in the order of their
+	 * use. The new log replaces the old one atomically. Entries already hit in this
+	 * run stay marked as such, so their hits are not recorded again.
+	 * 
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		File compacted = new File(this.file.getPath() + ".compact");
+		Files.deleteIfExists(compacted.toPath());
+		RecordLog target = new RecordLog(compacted, MAGIC, MethodVersionCodec.FORMAT_VERSION, null);
+		List<BlobPair> hitKeys = new ArrayList<BlobPair>();
+		try {
+			for (Map.Entry<BlobPair, Entry> entry: this.index.entrySet()) {
+				ByteBuffer payload = this.log.read(entry.getValue().position);
+				if (payload != null) {
+					target.append(payload);
+				}
+				if (entry.getValue().hit) {
+					hitKeys.add(entry.getKey());
+				}
+			}
+			target.force();
+		} finally {
+			target.close();
+		}
+		
+		this.log.close();
+		Files.move(compacted.toPath(), this.file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.open();
+		for (BlobPair key: hitKeys) {
+			Entry entry = this.index.get(key);
+			if (entry != null) {
+				entry.hit = true;
+			}
+		}
+	}
+	
+	/**
+	 * Get the number of lookups which found a cached entry.
+	 * 
+	 * @return Number of hits
+	 */
+	public synchronized int getNumHits() {
+		return this.numHits;
+	}
+	
+	/**
+	 * Get the number of lookups which didn't find a cached entry.
+	 * 
+	 * @return Number of misses
+	 */
+	public synchronized int getNumMisses() {
+		return this.numMisses;
+	}
+	
+	/**
+	 * Close the cache, compacting its log if needed. Pending records are written
+	 * to the storage device. The cache must not be used by other threads anymore.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		this.lock.writeLock().lock();
+		try {
+			if (this.isMostlyGarbage()) {
+				this.compact();
+			}
+			this.log.force();
+			this.log.close();
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.util.Modules;
+
+import ch.uzh.ifi.seal.changedistiller.JavaChangeDistillerModule;
+import ch.uzh.ifi.seal.changedistiller.ast.ASTHelperFactory;
+import ch.uzh.ifi.seal.changedistiller.distilling.FileDistiller;
+
+
+/**
+ * Thread-confined environment for distilling Java files. Building the injector
+ * of ChangeDistiller (with all its bindings and factories) is expensive, so each
+ * worker thread builds it once (see {@link #get()}) and creates a fresh, cheap
+ * {@link FileDistiller} from it for every file. Distillers of an environment share
+ * a {@link ReusingASTHelperFactory}.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class DistillerEnvironment {
+	
+	private static final ThreadLocal<DistillerEnvironment> ENVIRONMENTS =
+			ThreadLocal.withInitial(DistillerEnvironment::new);
+	
+	private ReusingASTHelperFactory astHelperFactory;
+	private Injector injector;
+	
+	/**
+	 * Construct a new DistillerEnvironment.
+	 */
+	private DistillerEnvironment() {
+		ASTHelperFactory factory = Guice.createInjector(new JavaChangeDistillerModule())
+				.getInstance(ASTHelperFactory.class);
+		this.astHelperFactory = new ReusingASTHelperFactory(factory);
+		
+		Module module = Modules.override(new JavaChangeDistillerModule()).with(new AbstractModule() {
+			
+			@Override
+			protected void configure() {
+				this.bind(ASTHelperFactory.class).toInstance(DistillerEnvironment.this.astHelperFactory);
+			}
+		
+		});
+		this.injector = Guice.createInjector(module);
+	}
+	
+	/**
+	 * Get the environment of the current thread, creating it on first use.
+	 * 
+	 * @return Environment confined to the current thread
+	 */
+	public static DistillerEnvironment get() {
+		return ENVIRONMENTS.get();
+	}
+	
+	/**
+	 * Get the factory of AST helpers used by distillers of this environment.
+	 * 
+	 * @return Factory of AST helpers reusing parsed revisions
+	 */
+	public ReusingASTHelperFactory getASTHelperFactory() {
+		return this.astHelperFactory;
+	}
+	
+	/**
+	 * Create a Java file distiller for a new file. A distiller accumulates state
+	 * of the distilled file, so it should not be used for more than one file.
+	 * 
+	 * @return New file distiller
+	 */
+	public FileDistiller createFileDistiller() {
+		return this.injector.getInstance(FileDistiller.class);
+	}
+
+}
@@ -0,0 +1,684 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.File;
+
+
+/**
+ * Settings of repository history extraction used by {@link RepoHistoryExtractor}.
+ * All setters return this object, so calls can be chained.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class ExtractionConfig {
+	
+	/**
+	 * Default number of worker threads distilling class histories
+	 */
+	public static final int DEFAULT_NUM_THREADS = 1;
+	
+	/**
+	 * Default capacity of queues between extraction stages
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+	
+	/**
+	 * Default limit of the total size of prefetched contents of revisions
+	 */
+	public static final long DEFAULT_MAX_PREFETCHED_BYTES = 256L << 20;
+	
+	private int numThreads;
+	private int numWalkThreads;
+	private int numPrefetchThreads;
+	private int numConsumerThreads;
+	private int queueCapacity;
+	private long maxPrefetchedBytes;
+	private boolean singlePassWalk;
+	private File scratchDir;
+	private File cacheFile;
+	private long cacheSize;
+	private File stateFile;
+	private File pathIndexFile;
+	private File journalFile;
+	private boolean resume;
+	private long checkpointInterval;
+	private int shardIndex;
+	private int numShards;
+	private long maxFileTime;
+	private long maxBlobSize;
+	private int maxRevisions;
+	private OverBudgetPolicy overBudgetPolicy;
+	private boolean skipNonSemanticChanges;
+	private boolean methodOnly;
+	private boolean offHeapChanges;
+	private int numBuildThreads;
+	private boolean sparseInstances;
+	
+	/**
+	 * Construct a new ExtractionConfig with default settings.
+	 */
+	public ExtractionConfig() {
+		this.numThreads = DEFAULT_NUM_THREADS;
+		this.numWalkThreads = 1;
+		this.numPrefetchThreads = 1;
+		this.numConsumerThreads = 1;
+		this.numBuildThreads = 1;
+		this.queueCapacity = DEFAULT_QUEUE_CAPACITY;
+		this.maxPrefetchedBytes = DEFAULT_MAX_PREFETCHED_BYTES;
+		this.singlePassWalk = true;
+		this.cacheSize = DistillerCache.DEFAULT_MAX_SIZE;
+		this.checkpointInterval = ExtractionJournal.DEFAULT_CHECKPOINT_INTERVAL;
+		this.shardIndex = 0;
+		this.numShards = 1;
+		this.overBudgetPolicy = OverBudgetPolicy.SKIP;
+	}
+	
+	/**
+	 * Get the number of worker threads distilling class histories.
+	 * 
+	 * @return Number of worker threads
+	 */
+	public int getNumThreads() {
+		return this.numThreads;
+	}
+	
+	/**
+	 * Set the number of worker threads distilling class histories.
+	 * 
+	 * @param numThreads Number of worker threads (at least 1)
+	 * @return This object
+	 */
+	public ExtractionConfig setNumThreads(int numThreads) {
+		if (numThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + numThreads);
+		}
+		this.numThreads = numThreads;
+		return this;
+	}
+	
+	/**
+	 * Get the number of threads finding revisions of files. More than one thread
+	 * is used only when files are followed separately (see {@link #isSinglePassWalk()}).
+	 * 
+	 * @return Number of walking threads
+	 */
+	public int getNumWalkThreads() {
+		return this.numWalkThreads;
+	}
+	
+	/**
+	 * Set the number of threads finding revisions of files.
+	 * 
+	 * @param numWalkThreads Number of walking threads (at least 1)
+	 * @return This object
+	 */
+	public ExtractionConfig setNumWalkThreads(int numWalkThreads) {
+		if (numWalkThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + numWalkThreads);
+		}
+		this.numWalkThreads = numWalkThreads;
+		return this;
+	}
+	
+	/**
+	 * Get the number of threads loading contents of revisions from the object store.
+	 * 
+	 * @return Number of prefetching threads
+	 */
+	public int getNumPrefetchThreads() {
+		return this.numPrefetchThreads;
+	}
+	
+	/**
+	 * Set the number of threads loading contents of revisions from the object store.
+	 * 
+	 * @param numPrefetchThreads Number of prefetching threads (at least 1)
+	 * @return This object
+	 */
+	public ExtractionConfig setNumPrefetchThreads(int numPrefetchThreads) {
+		if (numPrefetchThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + numPrefetchThreads);
+		}
+		this.numPrefetchThreads = numPrefetchThreads;
+		return this;
+	}
+	
+	/**
+	 * Get the number of threads passing extracted class histories to a consumer.
+	 * 
+	 * @return Number of consumer threads
+	 */
+	public int getNumConsumerThreads() {
+		return this.numConsumerThreads;
+	}
+	
+	/**
+	 * Set the number of threads passing extracted class histories to a consumer.
+	 * If it is more than one, the consumer must be thread-safe.
+	 * 
+	 * @param numConsumerThreads Number of consumer threads (at least 1)
+	 * @return This object
+	 */
+	public ExtractionConfig setNumConsumerThreads(int numConsumerThreads) {
+		if (numConsumerThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + numConsumerThreads);
+		}
+		this.numConsumerThreads = numConsumerThreads;
+		return this;
+	}
+	
+	/**
+	 * Get the capacity of each queue between extraction stages.
+	 * 
+	 * @return Number of files a queue can hold
+	 */
+	public int getQueueCapacity() {
+		return this.queueCapacity;
+	}
+	
+	/**
+	 * Set the capacity of each queue between extraction stages. A stage waits
+	 * when its output queue is full, so the capacity bounds the memory used
+	 * by files in progress.
+	 * 
+	 * @param queueCapacity Number of files a queue can hold (at least 1)
+	 * @return This object
+	 */
+	public ExtractionConfig setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+		}
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+	
+	/**
+	 * Get the limit of the total size of contents of revisions loaded by the prefetch
+	 * stage and not distilled yet.
+	 * 
+	 * @return Limit in bytes
+	 */
+	public long getMaxPrefetchedBytes() {
+		return this.maxPrefetchedBytes;
+	}
+	
+	/**
+	 * Set the limit of the total size of contents of revisions loaded by the prefetch
+	 * stage and not distilled yet. Together with the queue capacity, it bounds
+	 * the memory used by files in progress. A single file exceeding the limit
+	 * is prefetched when no other file is.
+	 * 
+	 * @param maxPrefetchedBytes Limit in bytes (at least 1)
+	 * @return This object
+	 */
+	public ExtractionConfig setMaxPrefetchedBytes(long maxPrefetchedBytes) {
+		if (maxPrefetchedBytes < 1) {
+			throw new IllegalArgumentException("Prefetch limit must be positive: " + maxPrefetchedBytes);
+		}
+		this.maxPrefetchedBytes = maxPrefetchedBytes;
+		return this;
+	}
+	
+	/**
+	 * Check whether revisions of all files are found in a single pass over
+	 * the commit graph (instead of following each file separately).
+	 * 
+	 * @return True iff single-pass walk is used
+	 */
+	public boolean isSinglePassWalk() {
+		return this.singlePassWalk;
+	}
+	
+	/**
+	 * Set whether revisions of all files should be found in a single pass over
+	 * the commit graph (see {@link RepoHistoryWalker}) or by following each file
+	 * separately (see {@link ClassHistoryExtractor#getFileHistory(String)}).
+	 * 
+	 * @param singlePassWalk True iff single-pass walk should be used
+	 * @return This object
+	 */
+	public ExtractionConfig setSinglePassWalk(boolean singlePassWalk) {
+		this.singlePassWalk = singlePassWalk;
+		return this;
+	}
+	
+	/**
+	 * Get the directory in which workers create their scratch areas.
+	 * 
+	 * @return Directory for scratch areas (null for the default one)
+	 */
+	public File getScratchDir() {
+		return this.scratchDir;
+	}
+	
+	/**
+	 * Set the directory in which workers create their scratch areas. It should
+	 * preferably be located on a memory-backed file system.
+	 * 
+	 * @param scratchDir Directory for scratch areas (null for {@link ScratchArea#getDefaultParent()})
+	 * @return This object
+	 */
+	public ExtractionConfig setScratchDir(File scratchDir) {
+		this.scratchDir = scratchDir;
+		return this;
+	}
+	
+	/**
+	 * Get the file of the persistent cache of distilling results.
+	 * 
+	 * @return Cache file (null if no cache is used)
+	 */
+	public File getCacheFile() {
+		return this.cacheFile;
+	}
+	
+	/**
+	 * Set the file of the persistent cache of distilling results (see {@link DistillerCache}).
+	 * 
+	 * @param cacheFile Cache file (null if no cache should be used)
+	 * @return This object
+	 */
+	public ExtractionConfig setCacheFile(File cacheFile) {
+		this.cacheFile = cacheFile;
+		return this;
+	}
+	
+	/**
+	 * Get the limit of the total size of cached distilling results.
+	 * 
+	 * @return Size limit in bytes
+	 */
+	public long getCacheSize() {
+		return this.cacheSize;
+	}
+	
+	/**
+	 * Set the limit of the total size of cached distilling results. Least recently
+	 * used results are evicted when the limit is exceeded.
+	 * 
+	 * @param cacheSize Size limit in bytes
+	 * @return This object
+	 */
+	public ExtractionConfig setCacheSize(long cacheSize) {
+		if (cacheSize < 0) {
+			throw new IllegalArgumentException("Cache size must not be negative: " + cacheSize);
+		}
+		this.cacheSize = cacheSize;
+		return this;
+	}
+	
+	/**
+	 * Get the file of the persistent extraction state.
+	 * 
+	 * @return State file (null if extraction is not incremental)
+	 */
+	public File getStateFile() {
+		return this.stateFile;
+	}
+	
+	/**
+	 * Set the file of the persistent extraction state (see {@link ExtractionState}).
+	 * If it is set, each extraction processes only commits made since the HEAD
+	 * saved by the previous one. Incremental extraction always uses a single-pass
+	 * walk (see {@link #isSinglePassWalk()}).
+	 * 
+	 * @param stateFile State file (null if extraction should not be incremental)
+	 * @return This object
+	 */
+	public ExtractionConfig setStateFile(File stateFile) {
+		this.stateFile = stateFile;
+		return this;
+	}
+	
+	/**
+	 * Get the file of the persistent index of changed paths.
+	 * 
+	 * @return Index file (null if no index is used)
+	 */
+	public File getPathIndexFile() {
+		return this.pathIndexFile;
+	}
+	
+	/**
+	 * Set the file of the persistent index of changed paths (see {@link ChangedPathIndex}).
+	 * The index is used both by the single-pass walk and when files are followed separately
+	 * (see {@link #isSinglePassWalk()}), but by the former only for commits through which
+	 * at most {@link RepoHistoryWalker#MAX_INDEXED_PATHS} files are followed. It pays off mostly
+	 * when files are followed separately or in repeated runs over the same repository.
+	 * 
+	 * @param pathIndexFile Index file (null if no index should be used)
+	 * @return This object
+	 */
+	public ExtractionConfig setPathIndexFile(File pathIndexFile) {
+		this.pathIndexFile = pathIndexFile;
+		return this;
+	}
+	
+	/**
+	 * Get the file of the journal of extracted class histories.
+	 * 
+	 * @return Journal file (null if no journal is kept)
+	 */
+	public File getJournalFile() {
+		return this.journalFile;
+	}
+	
+	/**
+	 * Set the file of the journal of extracted class histories (see {@link ExtractionJournal}).
+	 * If it is set, extracted histories are checkpointed, so an interrupted extraction
+	 * can be resumed (see {@link #isResume()}). The journal is deleted when results
+	 * of the extraction are saved (see {@link RepoHistoryExtractor#finishExtraction()}).
+	 * 
+	 * @param journalFile Journal file (null if no journal should be kept)
+	 * @return This object
+	 */
+	public ExtractionConfig setJournalFile(File journalFile) {
+		this.journalFile = journalFile;
+		return this;
+	}
+	
+	/**
+	 * Check whether an interrupted extraction is resumed from the journal.
+	 * 
+	 * @return True iff files recorded in the journal are skipped
+	 */
+	public boolean isResume() {
+		return this.resume;
+	}
+	
+	/**
+	 * Set whether an interrupted extraction should be resumed from the journal
+	 * (see {@link #getJournalFile()}). If it is set, files recorded in the journal
+	 * by an extraction from the same HEAD are not extracted again. Otherwise
+	 * the journal is cleared.
+	 * 
+	 * @param resume True iff files recorded in the journal should be skipped
+	 * @return This object
+	 */
+	public ExtractionConfig setResume(boolean resume) {
+		this.resume = resume;
+		return this;
+	}
+	
+	/**
+	 * Get the interval between checkpoints of the journal.
+	 * 
+	 * @return Interval in milliseconds
+	 */
+	public long getCheckpointInterval() {
+		return this.checkpointInterval;
+	}
+	
+	/**
+	 * Set the interval between checkpoints of the journal. A restarted extraction
+	 * repeats at most one interval of work.
+	 * 
+	 * @param checkpointInterval Interval in milliseconds
+	 * @return This object
+	 */
+	public ExtractionConfig setCheckpointInterval(long checkpointInterval) {
+		if (checkpointInterval < 0) {
+			throw new IllegalArgumentException("Checkpoint interval must not be negative: " + checkpointInterval);
+		}
+		this.checkpointInterval = checkpointInterval;
+		return this;
+	}
+	
+	/**
+	 * Get the index of the shard of files extracted by this process.
+	 * 
+	 * @return Shard index (from 0 to {@link #getNumShards()} - 1)
+	 */
+	public int getShardIndex() {
+		return this.shardIndex;
+	}
+	
+	/**
+	 * Get the number of shards files are partitioned into.
+	 * 
+	 * @return Number of shards (1 if all files are extracted)
+	 */
+	public int getNumShards() {
+		return this.numShards;
+	}
+	
+	/**
+	 * Set the shard of files extracted by this process. Files present in the HEAD
+	 * are partitioned into shards by {@link ExtractionUtils#getShard(String, int)},
+	 * and only histories of files in the given shard are extracted.
+	 * 
+	 * @param shardIndex	Shard index (from 0 to numShards - 1)
+	 * @param numShards		Number of shards (1 if all files should be extracted)
+	 * @return This object
+	 */
+	public ExtractionConfig setShard(int shardIndex, int numShards) {
+		if (numShards < 1 || shardIndex < 0 || shardIndex >= numShards) {
+			throw new IllegalArgumentException("Invalid shard: " + shardIndex + "/" + numShards);
+		}
+		this.shardIndex = shardIndex;
+		this.numShards = numShards;
+		return this;
+	}
+	
+	/**
+	 * Check whether a file belongs to the shard extracted by this process.
+	 * 
+	 * @param path Path to the file in the HEAD
+	 * @return True iff the file should be extracted
+	 */
+	public boolean isInShard(String path) {
+		return this.numShards == 1 || ExtractionUtils.getShard(path, this.numShards) == this.shardIndex;
+	}
+	
+	/**
+	 * Get the limit of time of distilling a single file.
+	 * 
+	 * @return Time limit in milliseconds (0 if there is no limit)
+	 */
+	public long getMaxFileTime() {
+		return this.maxFileTime;
+	}
+	
+	/**
+	 * Set the limit of time of distilling a single file. The limit is enforced for each
+	 * pair of revisions, so a pair distilled for too long is abandoned.
+	 * 
+	 * @param maxFileTime Time limit in milliseconds (0 if there should be no limit)
+	 * @return This object
+	 */
+	public ExtractionConfig setMaxFileTime(long maxFileTime) {
+		if (maxFileTime < 0) {
+			throw new IllegalArgumentException("Time limit must not be negative: " + maxFileTime);
+		}
+		this.maxFileTime = maxFileTime;
+		return this;
+	}
+	
+	/**
+	 * Get the limit of size of a distilled revision of a file.
+	 * 
+	 * @return Size limit in bytes (0 if there is no limit)
+	 */
+	public long getMaxBlobSize() {
+		return this.maxBlobSize;
+	}
+	
+	/**
+	 * Set the limit of size of a distilled revision of a file.
+	 * 
+	 * @param maxBlobSize Size limit in bytes (0 if there should be no limit)
+	 * @return This object
+	 */
+	public ExtractionConfig setMaxBlobSize(long maxBlobSize) {
+		if (maxBlobSize < 0) {
+			throw new IllegalArgumentException("Size limit must not be negative: " + maxBlobSize);
+		}
+		this.maxBlobSize = maxBlobSize;
+		return this;
+	}
+	
+	/**
+	 * Get the limit of the number of distilled revisions of a file.
+	 * 
+	 * @return Maximum number of revisions (0 if there is no limit)
+	 */
+	public int getMaxRevisions() {
+		return this.maxRevisions;
+	}
+	
+	/**
+	 * Set the limit of the number of distilled revisions of a file.
+	 * 
+	 * @param maxRevisions Maximum number of revisions (0 if there should be no limit)
+	 * @return This object
+	 */
+	public ExtractionConfig setMaxRevisions(int maxRevisions) {
+		if (maxRevisions < 0) {
+			throw new IllegalArgumentException("Revision limit must not be negative: " + maxRevisions);
+		}
+		this.maxRevisions = maxRevisions;
+		return this;
+	}
+	
+	/**
+	 * Get the handling of files exceeding limits of distillation.
+	 * 
+	 * @return Policy applied to over-budget files
+	 */
+	public OverBudgetPolicy getOverBudgetPolicy() {
+		return this.overBudgetPolicy;
+	}
+	
+	/**
+	 * Set the handling of files exceeding limits of distillation. All such files are
+	 * reported in the {@link ExtractionSummary} of the run.
+	 * 
+	 * @param overBudgetPolicy Policy applied to over-budget files
+	 * @return This object
+	 */
+	public ExtractionConfig setOverBudgetPolicy(OverBudgetPolicy overBudgetPolicy) {
+		if (overBudgetPolicy == null) {
+			throw new IllegalArgumentException("Policy must not be null");
+		}
+		this.overBudgetPolicy = overBudgetPolicy;
+		return this;
+	}
+	
+	/**
+	 * Check whether pairs of revisions differing only in whitespace, imports,
+	 * the package declaration or comments outside of type bodies are skipped
+	 * instead of distilled.
+	 * 
+	 * @return True iff such pairs are skipped
+	 */
+	public boolean isSkipNonSemanticChanges() {
+		return this.skipNonSemanticChanges;
+	}
+	
+	/**
+	 * Set whether pairs of revisions differing only in whitespace, imports, the package
+	 * declaration or comments outside of type bodies are skipped instead of distilled
+	 * (see {@link SemanticTokens}). Changes of comments and documentation of methods
+	 * are always distilled, so method histories are not affected, but changes of other
+	 * comments are not counted in commit totals. Disabled by default.
+	 * 
+	 * @param skipNonSemanticChanges True iff such pairs should be skipped
+	 * @return This object
+	 */
+	public ExtractionConfig setSkipNonSemanticChanges(boolean skipNonSemanticChanges) {
+		this.skipNonSemanticChanges = skipNonSemanticChanges;
+		return this;
+	}
+	
+	/**
+	 * Check whether only method-level changes are kept after distillation.
+	 * 
+	 * @return True iff only method-level changes are kept
+	 */
+	public boolean isMethodOnly() {
+		return this.methodOnly;
+	}
+	
+	/**
+	 * Set whether only method-level changes are kept after distillation. In this mode
+	 * state of the distiller (including histories of attributes and class-level changes)
+	 * is discarded after each pair of revisions, and extracted method versions contain
+	 * {@link StoredSourceCodeChange}s without changed and parent entities. Disabled by default.
+	 * 
+	 * @param methodOnly True iff only method-level changes should be kept
+	 * @return This object
+	 */
+	public ExtractionConfig setMethodOnly(boolean methodOnly) {
+		this.methodOnly = methodOnly;
+		return this;
+	}
+	
+	/**
+	 * Check whether extracted changes are kept outside of the heap until
+	 * a data set is built.
+	 * 
+	 * @return True iff extracted changes are kept outside of the heap
+	 */
+	public boolean isOffHeapChanges() {
+		return this.offHeapChanges;
+	}
+	
+	/**
+	 * Set whether extracted changes are kept outside of the heap, in a memory-mapped
+	 * file in the scratch directory, until a data set is built. Disabled by default.
+	 * 
+	 * @param offHeapChanges True iff extracted changes should be kept outside of the heap
+	 * @return This object
+	 */
+	public ExtractionConfig setOffHeapChanges(boolean offHeapChanges) {
+		this.offHeapChanges = offHeapChanges;
+		return this;
+	}
+	
+	/**
+	 * Get the number of threads building data set instances from extracted histories.
+	 * 
+	 * @return Number of building threads
+	 */
+	public int getNumBuildThreads() {
+		return this.numBuildThreads;
+	}
+	
+	/**
+	 * Set the number of threads building data set instances from extracted histories
+	 * (see {@link pl.edu.mimuw.changeanalyzer.models.DataSetBuilder#setParallelism(int)}).
+	 * Built data sets don't depend on the number of threads. Defaults to 1.
+	 * 
+	 * @param numBuildThreads Number of building threads (at least 1)
+	 * @return This object
+	 */
+	public ExtractionConfig setNumBuildThreads(int numBuildThreads) {
+		if (numBuildThreads < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + numBuildThreads);
+		}
+		this.numBuildThreads = numBuildThreads;
+		return this;
+	}
+	
+	/**
+	 * Check whether built data sets consist of sparse instances.
+	 * 
+	 * @return True iff built instances are sparse
+	 */
+	public boolean isSparseInstances() {
+		return this.sparseInstances;
+	}
+	
+	/**
+	 * Set whether built data sets consist of sparse instances, which store only
+	 * non-zero values (see {@link pl.edu.mimuw.changeanalyzer.models.DataSetBuilder#setSparse(boolean)}).
+	 * Disabled by default.
+	 * 
+	 * @param sparseInstances True iff built instances should be sparse
+	 * @return This object
+	 */
+	public ExtractionConfig setSparseInstances(boolean sparseInstances) {
+		this.sparseInstances = sparseInstances;
+		return this;
+	}
+
+}
@@ -0,0 +1,217 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import pl.edu.mimuw.changeanalyzer.exceptions.ChangeAnalyzerException;
+import pl.edu.mimuw.changeanalyzer.io.RecordLog;
+import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
+
+
+/**
+ * Journal of files whose class histories have already been extracted, which allows
+ * an interrupted extraction to be resumed. Each extracted class history is appended
+ * to a {@link RecordLog}, and the log is forced to the storage device at least once
+ * per checkpoint interval, so a crash loses at most one interval of work.
+ * <p>
+ * The journal starts with the HEAD being analyzed. When it is reopened for a different
+ * HEAD, or without resuming, it is cleared. Only positions of records are kept
+ * in memory; histories are read back one by one when they are replayed.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class ExtractionJournal {
+	
+	/**
+	 * Default interval between checkpoints in milliseconds
+	 */
+	public static final long DEFAULT_CHECKPOINT_INTERVAL = 60 * 1000;
+	
+	private static final int MAGIC = 0x43414a4e;
+	private static final byte HEAD_RECORD = 1;
+	private static final byte FILE_RECORD = 2;
+	
+	private RecordLog log;
+	private Map<String, Long> positions;
+	private long checkpointInterval;
+	private long lastCheckpoint;
+	
+	/**
+	 * Open a journal for extraction from a given HEAD.
+	 * 
+	 * @param file		Journal file
+	 * @param head		ID of the analyzed HEAD
+	 * @param resume	Should files recorded by a previous extraction from the same HEAD be kept
+	 * @throws IOException
+	 */
+	public ExtractionJournal(File file, ObjectId head, boolean resume) throws IOException {
+		this.positions = new HashMap<String, Long>();
+		this.checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+		
+		if (!resume) {
+			Files.deleteIfExists(file.toPath());
+		}
+		ObjectId[] journalHead = new ObjectId[1];
+		this.log = new RecordLog(file, MAGIC, MethodVersionCodec.FORMAT_VERSION, (position, payload) -> {
+			byte kind = payload.get();
+			if (kind == HEAD_RECORD) {
+				byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+				payload.get(id);
+				journalHead[0] = ObjectId.fromRaw(id);
+			} else if (kind == FILE_RECORD) {
+				this.positions.put(this.decodePath(payload), position);
+			}
+		});
+		
+		if (journalHead[0] == null || !journalHead[0].equals(head)) {
+			if (journalHead[0] != null) {
+				System.err.println("Discarding journal " + file + " of commit " + journalHead[0].name());
+			}
+			this.log.close();
+			Files.delete(file.toPath());
+			this.log = new RecordLog(file, MAGIC, MethodVersionCodec.FORMAT_VERSION, null);
+			this.positions.clear();
+			
+			ByteBuffer record = ByteBuffer.allocate(1 + Constants.OBJECT_ID_LENGTH);
+			record.put(HEAD_RECORD);
+			head.copyRawTo(record);
+			record.flip();
+			this.log.append(record);
+			this.log.force();
+		}
+		this.lastCheckpoint = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Set the interval between checkpoints.
+	 * 
+	 * @param checkpointInterval Interval in milliseconds (0 to force every record)
+	 */
+	public void setCheckpointInterval(long checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+	
+	/**
+	 * Get the number of files recorded in this journal.
+	 * 
+	 * @return Number of files
+	 */
+	public synchronized int size() {
+		return this.positions.size();
+	}
+	
+	/**
+	 * Check whether a file is recorded in this journal.
+	 * 
+	 * @param path Path to the file in the analyzed HEAD
+	 * @return True iff the class history of the file has been recorded
+	 */
+	public synchronized boolean contains(String path) {
+		return this.positions.containsKey(path);
+	}
+	
+	/**
+	 * Record the extracted class history of a file. This method can be called
+	 * concurrently. The journal is forced if the checkpoint interval has elapsed.
+	 * 
+	 * @param path		Path to the file in the analyzed HEAD
+	 * @param history	History of the class represented by the file
+	 * @throws IOException
+	 */
+	public synchronized void record(String path, ClassHistory history) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FILE_RECORD);
+		out.writeUTF(path);
+		MethodVersionCodec.writeClassHistory(out, history);
+		out.flush();
+		this.positions.put(path, this.log.append(ByteBuffer.wrap(bytes.toByteArray())));
+		
+		long now = System.currentTimeMillis();
+		if (now - this.lastCheckpoint >= this.checkpointInterval) {
+			this.log.force();
+			this.lastCheckpoint = now;
+		}
+	}
+	
+	/**
+	 * Pass all class histories recorded in this journal to a consumer.
+	 * 
+	 * @param consumer Consumer of class histories
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	public void replay(ClassHistoryConsumer consumer) throws IOException, ChangeAnalyzerException {
+		Map<String, Long> positions;
+		synchronized (this) {
+			positions = new HashMap<String, Long>(this.positions);
+		}
+		
+		for (Map.Entry<String, Long> entry: positions.entrySet()) {
+			ByteBuffer payload;
+			synchronized (this) {
+				payload = this.log.read(entry.getValue());
+			}
+			if (payload == null || payload.get() != FILE_RECORD) {
+				throw new IOException("Corrupt record of " + entry.getKey() + " in journal " + this.log.getFile());
+			}
+			
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array(),
+					payload.arrayOffset() + payload.position(), payload.remaining()));
+			String path = in.readUTF();
+			ClassHistory history = MethodVersionCodec.readClassHistory(in, path);
+			if (history != null) {
+				consumer.consume(path, history);
+			}
+		}
+	}
+	
+	/**
+	 * Decode the path of a file from a record.
+	 * 
+	 * @param payload Record payload, positioned after the record kind
+	 * @return Path to the file
+	 * @throws IOException
+	 */
+	private String decodePath(ByteBuffer payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array(),
+				payload.arrayOffset() + payload.position(), payload.remaining()));
+		return in.readUTF();
+	}
+	
+	/**
+	 * Force all recorded histories to the storage device and close the journal.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			this.log.force();
+		} finally {
+			this.log.close();
+		}
+	}
+	
+	/**
+	 * Close the journal and delete its file. It should be called when results of
+	 * the extraction have been saved, so that it is not resumed.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void delete() throws IOException {
+		this.log.close();
+		Files.deleteIfExists(this.log.getFile().toPath());
+	}
+
+}
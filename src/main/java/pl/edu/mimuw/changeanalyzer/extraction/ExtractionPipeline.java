@@ -0,0 +1,565 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+
+import pl.edu.mimuw.changeanalyzer.exceptions.BudgetExceededException;
+import pl.edu.mimuw.changeanalyzer.exceptions.ChangeAnalyzerException;
+import pl.edu.mimuw.changeanalyzer.exceptions.ExtractionException;
+import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
+
+
+/**
+ * Extraction of class histories split into stages connected by bounded queues:
+ * <ol>
+ * <li>walk - finding revisions of files,</li>
+ * <li>prefetch - loading contents of revisions from the object store,</li>
+ * <li>distill - distilling changes between revisions,</li>
+ * <li>consume - passing class histories to a {@link ClassHistoryConsumer}.</li>
+ * </ol>
+ * Each stage has its own number of threads (see {@link ExtractionConfig}), so I/O-bound
+ * and CPU-bound work overlap. A stage waits when its output queue is full, so the number
+ * of files in progress is bounded by the queue capacity rather than by repository size.
+ * The prefetch stage also waits when contents loaded for files not distilled yet exceed
+ * {@link ExtractionConfig#getMaxPrefetchedBytes()}.
+ * <p>
+ * Revisions of files are found either by following each file separately, or in a single
+ * pass over the commit graph, in which case each file is passed to the prefetch stage
+ * as soon as its history is complete.
+ * <p>
+ * If any stage fails, all stages are stopped and the failure is rethrown by
+ * {@link #run(Queue, Map, ClassHistoryConsumer)}. Files exceeding limits of distillation
+ * are handled according to {@link ExtractionConfig#getOverBudgetPolicy()}; deferred files
+ * are extracted without limits by the distill and consume stages after all other files.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class ExtractionPipeline {
+	
+	/**
+	 * Maximum size of a prefetched blob. Larger blobs are streamed by the distill stage.
+	 */
+	public static final int MAX_PREFETCH_SIZE = 8 << 20;
+	
+	private static final FileHistory END_OF_FILES = new FileHistory(null);
+	private static final Result END_OF_RESULTS = new Result(null, null);
+	
+	private Repository repository;
+	private ExtractionConfig config;
+	private DistillerCache cache;
+	private ChangedPathIndex pathIndex;
+	private ExtractionSummary summary;
+	
+	/**
+	 * Class history of a file, passed from the distill stage to the consume stage.
+	 * 
+	 * @author Adam Wierzbicki
+	 */
+	private static class Result {
+		
+		private String path;
+		private ClassHistory history;
+		
+		public Result(String path, ClassHistory history) {
+			this.path = path;
+			this.history = history;
+		}
+	
+	}
+	
+	/**
+	 * Body of the walk stage, passing found revisions of files to the prefetch stage.
+	 * 
+	 * @author Adam Wierzbicki
+	 */
+	@FunctionalInterface
+	private interface WalkStage {
+		
+		/**
+		 * Find revisions of files and put them into the output queue.
+		 * 
+		 * @param walked Output queue of the walk stage
+		 * @throws Exception
+		 */
+		public void walk(BlockingQueue<FileHistory> walked) throws Exception;
+		
+	}
+	
+	/**
+	 * Limit of the total size of contents loaded by the prefetch stage and not released
+	 * by the distill stage yet.
+	 * 
+	 * @author Adam Wierzbicki
+	 */
+	private static class PrefetchBudget {
+		
+		private long limit;
+		private long used;
+		private Map<FileHistory, Long> sizes;
+		
+		public PrefetchBudget(long limit) {
+			this.limit = limit;
+			this.sizes = new HashMap<FileHistory, Long>();
+		}
+		
+		/**
+		 * Reserve space for contents of a file, waiting until other files release
+		 * enough of it. A file larger than the limit gets its space when no other
+		 * file holds any.
+		 * 
+		 * @param history	Revisions of the file
+		 * @param size		Total size of contents
+		 * @throws InterruptedException
+		 */
+		public synchronized void acquire(FileHistory history, long size) throws InterruptedException {
+			while (this.used > 0 && this.used + size > this.limit) {
+				this.wait();
+			}
+			this.used += size;
+			this.sizes.put(history, size);
+		}
+		
+		/**
+		 * Release space reserved for contents of a file, if any.
+		 * 
+		 * @param history Revisions of the file
+		 */
+		public synchronized void release(FileHistory history) {
+			Long size = this.sizes.remove(history);
+			if (size != null) {
+				this.used -= size;
+				this.notifyAll();
+			}
+		}
+	
+	}
+	
+	/**
+	 * Construct a new ExtractionPipeline.
+	 * 
+	 * @param repository	Repository to extract class histories from
+	 * @param config		Extraction settings
+	 */
+	public ExtractionPipeline(Repository repository, ExtractionConfig config) {
+		this.repository = repository;
+		this.config = config;
+	}
+	
+	/**
+	 * Set the cache of distilling results shared by all distilling threads.
+	 * Revisions are not prefetched if they are needed only for cached pairs.
+	 * 
+	 * @param cache Cache of distilling results (null if no cache should be used)
+	 */
+	public void setDistillerCache(DistillerCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * Set the index of changed paths shared by all walking threads.
+	 * 
+	 * @param pathIndex Index of changed paths (null if no index should be used)
+	 */
+	public void setChangedPathIndex(ChangedPathIndex pathIndex) {
+		this.pathIndex = pathIndex;
+	}
+	
+	/**
+	 * Set the summary in which files exceeding limits of distillation are reported.
+	 * 
+	 * @param summary Summary of the extraction run (null if files should not be reported)
+	 */
+	public void setExtractionSummary(ExtractionSummary summary) {
+		this.summary = summary;
+	}
+	
+	/**
+	 * Extract class histories of given files. Files having less than two revisions
+	 * have no history and are not passed to the consumer.
+	 * 
+	 * @param paths			Queue of paths of files to be processed
+	 * @param fileHistories	Revisions of files found by a single-pass walk (null if each
+	 * 						file should be followed separately)
+	 * @param consumer		Consumer of extracted class histories
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	public void run(Queue<String> paths, Map<String, FileHistory> fileHistories, ClassHistoryConsumer consumer)
+			throws IOException, ChangeAnalyzerException {
+		
+		TreeEntryCache treeCache = new TreeEntryCache();
+		int numWalkThreads = fileHistories != null ? 1 : this.config.getNumWalkThreads();
+		this.run(numWalkThreads, treeCache, walked -> {
+			ClassHistoryExtractor extractor = fileHistories == null ? this.newExtractor(treeCache) : null;
+			try {
+				String path;
+				while ((path = paths.poll()) != null) {
+					walked.put(extractor == null ? fileHistories.remove(path) : extractor.getFileHistory(path));
+				}
+			} finally {
+				if (extractor != null) {
+					extractor.close();
+				}
+			}
+		}, consumer);
+	}
+	
+	/**
+	 * Extract class histories of .java files in a given commit, whose revisions are
+	 * found in a single pass over the commit graph (see {@link RepoHistoryWalker}).
+	 * Each file is distilled as soon as its history is complete, while the walk goes on.
+	 * Files having less than two revisions have no history and are not passed
+	 * to the consumer.
+	 * 
+	 * @param head		Commit to extract files of
+	 * @param filter	Filter of paths of files to be processed
+	 * @param consumer	Consumer of extracted class histories
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	public void run(ObjectId head, Predicate<String> filter, ClassHistoryConsumer consumer)
+			throws IOException, ChangeAnalyzerException {
+		
+		this.run(1, new TreeEntryCache(), walked -> {
+			RepoHistoryWalker walker = new RepoHistoryWalker(this.repository);
+			walker.setChangedPathIndex(this.pathIndex);
+			try {
+				walker.walk(head, null, null, history -> {
+					if (filter.test(history.getPath())) {
+						walked.put(history);
+					}
+				});
+			} finally {
+				walker.close();
+			}
+		}, consumer);
+	}
+	
+	/**
+	 * Run all stages of extraction.
+	 * 
+	 * @param numWalkThreads	Number of threads of the walk stage
+	 * @param treeCache			Cache of tree entries shared by all threads
+	 * @param walkStage			Body of each thread of the walk stage
+	 * @param consumer			Consumer of extracted class histories
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private void run(int numWalkThreads, TreeEntryCache treeCache, WalkStage walkStage, ClassHistoryConsumer consumer)
+			throws IOException, ChangeAnalyzerException {
+		
+		int numPrefetchThreads = this.config.getNumPrefetchThreads();
+		int numDistillThreads = this.config.getNumThreads();
+		
+		BlockingQueue<FileHistory> walked = new ArrayBlockingQueue<FileHistory>(this.config.getQueueCapacity());
+		BlockingQueue<FileHistory> loaded = new ArrayBlockingQueue<FileHistory>(this.config.getQueueCapacity());
+		AtomicInteger walking = new AtomicInteger(numWalkThreads);
+		AtomicInteger prefetching = new AtomicInteger(numPrefetchThreads);
+		
+		PrefetchBudget budget = new PrefetchBudget(this.config.getMaxPrefetchedBytes());
+		Queue<FileHistory> deferred = new ConcurrentLinkedQueue<FileHistory>();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < numWalkThreads; ++i) {
+			tasks.add(() -> {
+				walkStage.walk(walked);
+				this.finishStage(walking, walked, END_OF_FILES, numPrefetchThreads);
+				return null;
+			});
+		}
+		for (int i = 0; i < numPrefetchThreads; ++i) {
+			tasks.add(() -> {
+				ObjectReader reader = this.repository.newObjectReader();
+				try {
+					FileHistory history;
+					while ((history = walked.take()) != END_OF_FILES) {
+						this.prefetch(reader, history, budget);
+						loaded.put(history);
+					}
+				} finally {
+					reader.release();
+				}
+				this.finishStage(prefetching, loaded, END_OF_FILES, numDistillThreads);
+				return null;
+			});
+		}
+		this.addDistillTasks(tasks, loaded, treeCache, budget, deferred, consumer);
+		
+		this.runTasks(tasks);
+		this.extractDeferred(deferred, treeCache, budget, consumer);
+	}
+	
+	/**
+	 * Add tasks of threads of the distill and consume stages.
+	 * 
+	 * @param tasks		Tasks of all stage threads
+	 * @param loaded	Input queue of the distill stage, ended by an end marker for each of
+	 * 					{@link ExtractionConfig#getNumThreads()} distilling threads
+	 * @param treeCache	Cache of tree entries shared by all threads
+	 * @param budget	Limit of the total size of prefetched contents
+	 * @param deferred	Queue of deferred files (null if limits of distillation should not be enforced)
+	 * @param consumer	Consumer of extracted class histories
+	 */
+	private void addDistillTasks(List<Callable<Void>> tasks, BlockingQueue<FileHistory> loaded,
+			TreeEntryCache treeCache, PrefetchBudget budget, Queue<FileHistory> deferred, ClassHistoryConsumer consumer) {
+		
+		int numDistillThreads = this.config.getNumThreads();
+		int numConsumerThreads = this.config.getNumConsumerThreads();
+		BlockingQueue<Result> distilled = new ArrayBlockingQueue<Result>(this.config.getQueueCapacity());
+		AtomicInteger distilling = new AtomicInteger(numDistillThreads);
+		
+		for (int i = 0; i < numDistillThreads; ++i) {
+			tasks.add(() -> {
+				ClassHistoryExtractor extractor = this.newExtractor(treeCache);
+				extractor.setBudgetEnforced(deferred != null);
+				try {
+					FileHistory history;
+					while ((history = loaded.take()) != END_OF_FILES) {
+						ClassHistory classHistory;
+						try {
+							classHistory = this.extractClassHistory(extractor, history, deferred);
+						} finally {
+							budget.release(history);
+						}
+						if (classHistory != null) {
+							distilled.put(new Result(history.getPath(), classHistory));
+						}
+					}
+				} finally {
+					extractor.close();
+				}
+				this.finishStage(distilling, distilled, END_OF_RESULTS, numConsumerThreads);
+				return null;
+			});
+		}
+		for (int i = 0; i < numConsumerThreads; ++i) {
+			tasks.add(() -> {
+				Result result;
+				while ((result = distilled.take()) != END_OF_RESULTS) {
+					consumer.consume(result.path, result.history);
+				}
+				return null;
+			});
+		}
+	}
+	
+	/**
+	 * Extract the history of a class, within limits of distillation if they are enforced.
+	 * 
+	 * @param extractor	Extractor to use
+	 * @param history	Revisions of a file
+	 * @param deferred	Queue of deferred files (null if limits are not enforced)
+	 * @return History of the class (null if the file has no history, has been skipped or deferred)
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private ClassHistory extractClassHistory(ClassHistoryExtractor extractor, FileHistory history,
+			Queue<FileHistory> deferred) throws IOException, ChangeAnalyzerException {
+		
+		try {
+			return extractor.extractClassHistory(history);
+		} catch (BudgetExceededException e) {
+			for (FileRevision revision: history.getRevisions()) {
+				revision.setContent(null);
+			}
+			if (deferred != null && this.config.getOverBudgetPolicy() == OverBudgetPolicy.DEFER) {
+				deferred.add(history);
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Extract deferred files without limits of distillation by the distill and consume
+	 * stages, and pass their class histories to a consumer.
+	 * 
+	 * @param deferred	Queue of deferred files
+	 * @param treeCache	Cache of tree entries shared by all threads
+	 * @param budget	Limit of the total size of prefetched contents
+	 * @param consumer	Consumer of extracted class histories
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private void extractDeferred(Queue<FileHistory> deferred, TreeEntryCache treeCache,
+			PrefetchBudget budget, ClassHistoryConsumer consumer) throws IOException, ChangeAnalyzerException {
+		
+		if (deferred.isEmpty()) {
+			return;
+		}
+		System.err.println("Extracting " + deferred.size() + " deferred files");
+		int numDistillThreads = this.config.getNumThreads();
+		BlockingQueue<FileHistory> loaded = new ArrayBlockingQueue<FileHistory>(deferred.size() + numDistillThreads);
+		loaded.addAll(deferred);
+		for (int i = 0; i < numDistillThreads; ++i) {
+			loaded.add(END_OF_FILES);
+		}
+		
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		this.addDistillTasks(tasks, loaded, treeCache, budget, null, consumer);
+		this.runTasks(tasks);
+	}
+	
+	/**
+	 * Create an extractor for a walking or distilling thread.
+	 * 
+	 * @param treeCache Cache of tree entries shared by all threads
+	 * @return New extractor
+	 */
+	private ClassHistoryExtractor newExtractor(TreeEntryCache treeCache) {
+		ClassHistoryExtractor extractor = new ClassHistoryExtractor(this.repository, this.config);
+		extractor.setDistillerCache(this.cache);
+		extractor.setChangedPathIndex(this.pathIndex);
+		extractor.setTreeEntryCache(treeCache);
+		extractor.setExtractionSummary(this.summary);
+		return extractor;
+	}
+	
+	/**
+	 * Load contents of revisions of a file, which are needed for distilling, once
+	 * the prefetch budget has enough space for them. Revisions needed only for pairs
+	 * found in the distiller cache and revisions too large to be prefetched are skipped.
+	 * 
+	 * @param reader	Reader to load contents with
+	 * @param history	Revisions of a file
+	 * @param budget	Limit of the total size of prefetched contents
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void prefetch(ObjectReader reader, FileHistory history, PrefetchBudget budget)
+			throws IOException, InterruptedException {
+		
+		List<FileRevision> needed = new ArrayList<FileRevision>();
+		Iterator<FileRevision> iterator = history.getRevisions().iterator();
+		FileRevision previous = iterator.hasNext() ? iterator.next() : null;
+		boolean previousNeeded = false;
+		while (iterator.hasNext()) {
+			FileRevision revision = iterator.next();
+			if (this.cache == null || !this.cache.contains(new BlobPair(previous.getBlobId(), revision.getBlobId()))) {
+				if (!previousNeeded) {
+					needed.add(previous);
+				}
+				needed.add(revision);
+				previousNeeded = true;
+			} else {
+				previousNeeded = false;
+			}
+			previous = revision;
+		}
+		
+		long size = 0;
+		Iterator<FileRevision> neededIterator = needed.iterator();
+		while (neededIterator.hasNext()) {
+			long revisionSize = reader.getObjectSize(neededIterator.next().getBlobId(), Constants.OBJ_BLOB);
+			if (revisionSize > MAX_PREFETCH_SIZE) {
+				neededIterator.remove(); // The distill stage will stream the blob
+			} else {
+				size += revisionSize;
+			}
+		}
+		
+		budget.acquire(history, size);
+		try {
+			for (FileRevision revision: needed) {
+				revision.setContent(reader.open(revision.getBlobId(), Constants.OBJ_BLOB).getCachedBytes(MAX_PREFETCH_SIZE));
+			}
+		} catch (IOException | RuntimeException e) {
+			budget.release(history);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Mark that a thread of a stage has finished. When the last thread finishes,
+	 * pass the end marker to each thread of the next stage.
+	 * 
+	 * @param running		Number of running threads of the stage
+	 * @param output		Output queue of the stage
+	 * @param end			End marker
+	 * @param numNextThreads	Number of threads of the next stage
+	 * @throws InterruptedException
+	 */
+	private <T> void finishStage(AtomicInteger running, BlockingQueue<T> output, T end, int numNextThreads)
+			throws InterruptedException {
+		
+		if (running.decrementAndGet() == 0) {
+			for (int i = 0; i < numNextThreads; ++i) {
+				output.put(end);
+			}
+		}
+	}
+	
+	/**
+	 * Run all stage threads and wait until they finish. When a thread fails,
+	 * the others are interrupted.
+	 * 
+	 * @param tasks Tasks of all stage threads
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private void runTasks(List<Callable<Void>> tasks) throws IOException, ChangeAnalyzerException {
+		ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+		CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+		for (Callable<Void> task: tasks) {
+			completion.submit(task);
+		}
+		executor.shutdown();
+		
+		try {
+			for (int i = 0; i < tasks.size(); ++i) {
+				completion.take().get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ExtractionException("Extraction interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof ChangeAnalyzerException) {
+				throw (ChangeAnalyzerException) cause;
+			}
+			throw new ExtractionException("Extraction stage failed", cause);
+		} finally {
+			executor.shutdownNow();
+			this.awaitTermination(executor);
+		}
+	}
+	
+	/**
+	 * Wait until all tasks of a shut down executor have completed.
+	 * 
+	 * @param executor Executor to wait for
+	 */
+	private void awaitTermination(ExecutorService executor) {
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// Threads finish files they have already started
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
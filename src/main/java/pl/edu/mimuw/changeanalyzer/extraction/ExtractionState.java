@@ -0,0 +1,316 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import pl.edu.mimuw.changeanalyzer.io.RecordLog;
+import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
+import ch.uzh.ifi.seal.changedistiller.model.entities.MethodHistory;
+import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
+
+
+/**
+ * Persistent state of a finished extraction, which allows the next extraction
+ * to process only commits made since then. It consists of the HEAD which has been
+ * analyzed and, for each .java file in this HEAD, its newest revision and versions
+ * of its methods.
+ * <p>
+ * The state is saved as a {@link RecordLog}: a HEAD record, one record per file and
+ * an end record with the number of files. A state without the end record is incomplete
+ * and is not loaded. Saving replaces the previous state atomically.
+ * <p>
+ * Only newest revisions of files are kept in memory. Versions of methods of a loaded
+ * state are read from its file when they are requested, and versions of methods
+ * of a new state (see {@link #create(File, ObjectId)}) are written as soon as they
+ * are stored. A state should be closed with {@link #close()} after use.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class ExtractionState {
+	
+	private static final int MAGIC = 0x43414553;
+	private static final byte HEAD_RECORD = 1;
+	private static final byte FILE_RECORD = 2;
+	private static final byte END_RECORD = 3;
+	
+	private ObjectId head;
+	private Map<String, FileState> files;
+	private RecordLog log;
+	private File target;
+	
+	/**
+	 * Stored state of a single file.
+	 * 
+	 * @author Adam Wierzbicki
+	 */
+	private static class FileState {
+		
+		private FileRevision lastRevision;
+		private long position;
+		
+		public FileState(FileRevision lastRevision, long position) {
+			this.lastRevision = lastRevision;
+			this.position = position;
+		}
+	
+	}
+	
+	/**
+	 * Construct a new, empty ExtractionState.
+	 * 
+	 * @param head ID of the analyzed HEAD
+	 */
+	private ExtractionState(ObjectId head) {
+		this.head = head;
+		this.files = new HashMap<String, FileState>();
+	}
+	
+	/**
+	 * Create a new, empty state, which is written into a temporary file next to a given one
+	 * as files are stored, and replaces the given file when it is saved (see {@link #save()}).
+	 * 
+	 * @param file	File to save the state into
+	 * @param head	ID of the analyzed HEAD
+	 * @return New state
+	 * @throws IOException
+	 */
+	public static ExtractionState create(File file, ObjectId head) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		Files.deleteIfExists(temp.toPath());
+		ExtractionState state = new ExtractionState(head);
+		state.target = file;
+		state.log = new RecordLog(temp, MAGIC, MethodVersionCodec.FORMAT_VERSION, null);
+		
+		ByteBuffer record = ByteBuffer.allocate(1 + Constants.OBJECT_ID_LENGTH);
+		record.put(HEAD_RECORD);
+		head.copyRawTo(record);
+		record.flip();
+		state.log.append(record);
+		return state;
+	}
+	
+	/**
+	 * Get ID of the analyzed HEAD.
+	 * 
+	 * @return Commit ID
+	 */
+	public ObjectId getHead() {
+		return this.head;
+	}
+	
+	/**
+	 * Get paths of all files in this state.
+	 * 
+	 * @return Paths relative to the main directory of the repository
+	 */
+	public synchronized Set<String> getPaths() {
+		return Collections.unmodifiableSet(this.files.keySet());
+	}
+	
+	/**
+	 * Store the state of a file in a new state. This method can be called concurrently.
+	 * 
+	 * @param path			Path to the file in the analyzed HEAD
+	 * @param lastRevision	Newest revision of the file
+	 * @param history		History of the class represented by the file (may be null)
+	 * @throws IOException
+	 */
+	public void putFile(String path, FileRevision lastRevision, ClassHistory history) throws IOException {
+		if (this.target == null) {
+			throw new IllegalStateException("A loaded extraction state cannot be modified");
+		}
+		long position = this.log.append(this.encodeFile(path, lastRevision, history));
+		synchronized (this) {
+			this.files.put(path, new FileState(lastRevision, position));
+		}
+	}
+	
+	/**
+	 * Get the newest revision of a file.
+	 * 
+	 * @param path Path to the file in the analyzed HEAD
+	 * @return Newest revision (null if the file is not in this state)
+	 */
+	public synchronized FileRevision getLastRevision(String path) {
+		FileState state = this.files.get(path);
+		return state != null ? state.lastRevision : null;
+	}
+	
+	/**
+	 * Restore the history of the class represented by a file. Versions of its methods
+	 * are read from the file of this state. This method can be called concurrently.
+	 * 
+	 * @param path Path to the file in the analyzed HEAD
+	 * @return Class history (null if the file is not in this state or has no history)
+	 * @throws IOException When the stored history is malformed
+	 */
+	public ClassHistory getClassHistory(String path) throws IOException {
+		FileState state;
+		synchronized (this) {
+			state = this.files.get(path);
+		}
+		if (state == null) {
+			return null;
+		}
+		ByteBuffer payload = this.log.read(state.position);
+		if (payload == null) {
+			throw new IOException("Corrupted state of " + path + " in " + this.log.getFile());
+		}
+		
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array(),
+				payload.arrayOffset() + payload.position(), payload.remaining()));
+		in.skipBytes(1);
+		in.readUTF();
+		in.readUTF();
+		in.skipBytes(2 * Constants.OBJECT_ID_LENGTH);
+		ClassHistory history = null;
+		while (in.available() > 0) {
+			StructureEntityVersion version = MethodVersionCodec.readWithCommit(in);
+			if (history == null) {
+				history = ClassHistoryExtractor.createClassHistory(path, version.getVersion());
+			}
+			history.createMethodHistory(version);
+		}
+		return history;
+	}
+	
+	/**
+	 * Save a new state, replacing the previous state atomically. The state is closed.
+	 * 
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		if (this.target == null) {
+			throw new IllegalStateException("A loaded extraction state cannot be saved");
+		}
+		int numFiles;
+		synchronized (this) {
+			numFiles = this.files.size();
+		}
+		try {
+			ByteBuffer record = ByteBuffer.allocate(5);
+			record.put(END_RECORD).putInt(numFiles).flip();
+			this.log.append(record);
+			this.log.force();
+		} finally {
+			this.log.close();
+		}
+		Files.move(this.log.getFile().toPath(), this.target.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Load a state saved by {@link #save()}.
+	 * 
+	 * @param file File to load the state from
+	 * @return Loaded state (null if the file doesn't exist or doesn't contain a complete state)
+	 * @throws IOException
+	 */
+	public static ExtractionState load(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		
+		ExtractionState[] state = new ExtractionState[1];
+		boolean[] complete = new boolean[1];
+		RecordLog log = new RecordLog(file, MAGIC, MethodVersionCodec.FORMAT_VERSION, (position, payload) -> {
+			byte kind = payload.get();
+			if (kind == HEAD_RECORD) {
+				byte[] head = new byte[Constants.OBJECT_ID_LENGTH];
+				payload.get(head);
+				state[0] = new ExtractionState(ObjectId.fromRaw(head));
+			} else if (kind == FILE_RECORD && state[0] != null) {
+				state[0].decodeFile(position, payload);
+			} else if (kind == END_RECORD && state[0] != null) {
+				complete[0] = payload.getInt() == state[0].files.size();
+			}
+		});
+		
+		if (!complete[0]) {
+			log.close();
+			System.err.println("Discarding incomplete extraction state " + file);
+			return null;
+		}
+		state[0].log = log;
+		return state[0];
+	}
+	
+	/**
+	 * Close the file of this state. A new state which has not been saved is discarded.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		this.log.close();
+		if (this.target != null) {
+			Files.deleteIfExists(this.log.getFile().toPath());
+		}
+	}
+	
+	/**
+	 * Encode the state of a file as a record.
+	 * 
+	 * @param path			Path to the file
+	 * @param lastRevision	Newest revision of the file
+	 * @param history		History of the class represented by the file (may be null)
+	 * @return Record payload
+	 * @throws IOException
+	 */
+	private ByteBuffer encodeFile(String path, FileRevision lastRevision, ClassHistory history) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+		out.writeByte(FILE_RECORD);
+		out.writeUTF(path);
+		out.writeUTF(lastRevision.getPath());
+		lastRevision.getCommitId().copyRawTo(id, 0);
+		out.write(id);
+		lastRevision.getBlobId().copyRawTo(id, 0);
+		out.write(id);
+		if (history != null) {
+			for (MethodHistory methodHistory: new ClassHistoryWrapper(Collections.singleton(history))) {
+				for (StructureEntityVersion version: methodHistory.getVersions()) {
+					MethodVersionCodec.writeWithCommit(out, version);
+				}
+			}
+		}
+		out.flush();
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+	
+	/**
+	 * Decode the state of a file from a record and add it to this state.
+	 * Versions of methods are not decoded.
+	 * 
+	 * @param position	Position of the record in the log
+	 * @param payload	Record payload, positioned after the record kind
+	 * @throws IOException
+	 */
+	private void decodeFile(long position, ByteBuffer payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload.array(),
+				payload.arrayOffset() + payload.position(), payload.remaining()));
+		byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+		String path = in.readUTF();
+		String revisionPath = in.readUTF();
+		in.readFully(id);
+		ObjectId commitId = ObjectId.fromRaw(id);
+		in.readFully(id);
+		ObjectId blobId = ObjectId.fromRaw(id);
+		this.files.put(path, new FileState(new FileRevision(commitId, revisionPath, blobId), position));
+	}
+
+}
@@ -0,0 +1,136 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Summary of an extraction run, listing files which have exceeded limits
+ * of distillation and the way they have been handled, and counting pairs
+ * of revisions skipped as non-semantic changes. Methods of this class
+ * can be called concurrently.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class ExtractionSummary {
+	
+	private List<OverBudgetFile> overBudgetFiles;
+	private int numNonSemanticPairs;
+	
+	/**
+	 * File which has exceeded a limit of distillation.
+	 * 
+	 * @author Adam Wierzbicki
+	 */
+	public static class OverBudgetFile {
+		
+		private String path;
+		private String reason;
+		private OverBudgetPolicy policy;
+		
+		/**
+		 * Construct a new OverBudgetFile.
+		 * 
+		 * @param path		Path to the file in the HEAD
+		 * @param reason	Description of the exceeded limit
+		 * @param policy	Applied policy
+		 */
+		public OverBudgetFile(String path, String reason, OverBudgetPolicy policy) {
+			this.path = path;
+			this.reason = reason;
+			this.policy = policy;
+		}
+		
+		/**
+		 * Get path to the file in the HEAD.
+		 * 
+		 * @return Path relative to the main directory of the repository
+		 */
+		public String getPath() {
+			return this.path;
+		}
+		
+		/**
+		 * Get the description of the exceeded limit.
+		 * 
+		 * @return Reason for applying the policy
+		 */
+		public String getReason() {
+			return this.reason;
+		}
+		
+		/**
+		 * Get the policy applied to the file.
+		 * 
+		 * @return Applied policy
+		 */
+		public OverBudgetPolicy getPolicy() {
+			return this.policy;
+		}
+	
+	}
+	
+	/**
+	 * Construct a new, empty ExtractionSummary.
+	 */
+	public ExtractionSummary() {
+		this.overBudgetFiles = new ArrayList<OverBudgetFile>();
+	}
+	
+	/**
+	 * Record a file which has exceeded a limit of distillation.
+	 * 
+	 * @param path		Path to the file in the HEAD
+	 * @param reason	Description of the exceeded limit
+	 * @param policy	Applied policy
+	 */
+	public synchronized void addOverBudgetFile(String path, String reason, OverBudgetPolicy policy) {
+		this.overBudgetFiles.add(new OverBudgetFile(path, reason, policy));
+	}
+	
+	/**
+	 * Get all files which have exceeded limits of distillation.
+	 * 
+	 * @return Over-budget files, in order of recording
+	 */
+	public synchronized List<OverBudgetFile> getOverBudgetFiles() {
+		return Collections.unmodifiableList(new ArrayList<OverBudgetFile>(this.overBudgetFiles));
+	}
+	
+	/**
+	 * Record a pair of revisions skipped as a non-semantic change.
+	 */
+	public synchronized void addNonSemanticPair() {
+		++this.numNonSemanticPairs;
+	}
+	
+	/**
+	 * Get the number of pairs of revisions skipped as non-semantic changes.
+	 * 
+	 * @return Number of skipped pairs
+	 */
+	public synchronized int getNumNonSemanticPairs() {
+		return this.numNonSemanticPairs;
+	}
+	
+	/**
+	 * Print this summary.
+	 * 
+	 * @param out Stream to print the summary to
+	 */
+	public synchronized void print(PrintStream out) {
+		if (this.numNonSemanticPairs > 0) {
+			out.println("Pairs of revisions skipped as non-semantic: " + this.numNonSemanticPairs);
+		}
+		if (this.overBudgetFiles.isEmpty()) {
+			return;
+		}
+		out.println("Files over distillation budget: " + this.overBudgetFiles.size());
+		for (OverBudgetFile file: this.overBudgetFiles) {
+			out.println("\t" + file.getPolicy() + "\t" + file.getPath() + "\t" + file.getReason());
+		}
+	}
+
+}
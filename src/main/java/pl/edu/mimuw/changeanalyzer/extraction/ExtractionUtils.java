@@ -1,6 +1,8 @@
 package pl.edu.mimuw.changeanalyzer.extraction;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
 
 import org.eclipse.jgit.errors.AmbiguousObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
@@ -34,5 +36,20 @@ public interface ExtractionUtils {
 			throw new ExtractionException("Failed to obtain repository head", e);
 		}
 	}
+	
+	/**
+	 * Get the shard a file belongs to when files are partitioned between multiple
+	 * extraction processes. The shard depends only on the path, so it is stable
+	 * across processes and runs.
+	 * 
+	 * @param path		Path to the file (relative to the main directory of the repository)
+	 * @param numShards	Number of shards
+	 * @return Index of the shard (from 0 to numShards - 1)
+	 */
+	public static int getShard(String path, int numShards) {
+		CRC32 crc = new CRC32();
+		crc.update(path.getBytes(StandardCharsets.UTF_8));
+		return (int) (crc.getValue() % numShards);
+	}
 
 }
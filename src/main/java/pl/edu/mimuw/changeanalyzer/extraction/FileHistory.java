@@ -0,0 +1,124 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+
+/**
+ * Ordered list of revisions of a single file, from the oldest to the newest one.
+ * The file is identified by its path in the repository HEAD, but older revisions
+ * may have different paths if the file has been renamed.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class FileHistory {
+	
+	private String path;
+	private LinkedList<FileRevision> revisions;
+	private String basePath;
+	
+	/**
+	 * Construct a new, empty FileHistory.
+	 * 
+	 * @param path Path to the file in the repository HEAD
+	 */
+	public FileHistory(String path) {
+		this.path = path;
+		this.revisions = new LinkedList<FileRevision>();
+	}
+	
+	/**
+	 * Get path to the file in the repository HEAD.
+	 * 
+	 * @return Path relative to the main directory of the repository
+	 */
+	public String getPath() {
+		return this.path;
+	}
+	
+	/**
+	 * Get path to the file in the base commit of an incremental walk (see
+	 * {@link RepoHistoryWalker#walk(org.eclipse.jgit.lib.ObjectId, org.eclipse.jgit.lib.ObjectId)}),
+	 * that is the path the file had before its first revision in this history.
+	 * 
+	 * @return Path relative to the main directory of the repository (null if this
+	 * 		   history is not a result of an incremental walk or the file has been
+	 * 		   added since the base commit)
+	 */
+	public String getBasePath() {
+		return this.basePath;
+	}
+	
+	/**
+	 * Set path to the file in the base commit of an incremental walk.
+	 * 
+	 * @param basePath Path relative to the main directory of the repository
+	 */
+	public void setBasePath(String basePath) {
+		this.basePath = basePath;
+	}
+	
+	/**
+	 * Get the newest revision of the file.
+	 * 
+	 * @return Newest revision (null if this history is empty)
+	 */
+	public FileRevision getLastRevision() {
+		return this.revisions.peekLast();
+	}
+	
+	/**
+	 * Append a revision newer than all the revisions in this history.
+	 * 
+	 * @param revision Revision to be appended
+	 */
+	public void addRevision(FileRevision revision) {
+		this.revisions.addLast(revision);
+	}
+	
+	/**
+	 * Prepend a revision older than all the revisions in this history.
+	 * 
+	 * @param revision Revision to be prepended
+	 */
+	public void addPreviousRevision(FileRevision revision) {
+		this.revisions.addFirst(revision);
+	}
+	
+	/**
+	 * Get all revisions of the file.
+	 * 
+	 * @return Revisions ordered from the oldest to the newest one
+	 */
+	public List<FileRevision> getRevisions() {
+		return Collections.unmodifiableList(this.revisions);
+	}
+	
+	/**
+	 * Get the number of revisions of the file.
+	 * 
+	 * @return Number of revisions
+	 */
+	public int getNumRevisions() {
+		return this.revisions.size();
+	}
+	
+	/**
+	 * Get the rename chain of the file, that is all its consecutive paths.
+	 * 
+	 * @return Paths of the file ordered from the oldest to the newest one
+	 */
+	public List<String> getRenameChain() {
+		List<String> chain = new ArrayList<String>();
+		for (FileRevision revision: this.revisions) {
+			String path = revision.getPath();
+			if (chain.isEmpty() || !chain.get(chain.size() - 1).equals(path)) {
+				chain.add(path);
+			}
+		}
+		return chain;
+	}
+
+}
@@ -0,0 +1,22 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+
+/**
+ * Consumer of file histories, receiving them from a {@link RepoHistoryWalker}
+ * as soon as they are complete (see {@link RepoHistoryWalker#walk(org.eclipse.jgit.lib.ObjectId,
+ * org.eclipse.jgit.lib.ObjectId, java.util.Collection, FileHistoryConsumer)}).
+ * 
+ * @author Adam Wierzbicki
+ */
+@FunctionalInterface
+public interface FileHistoryConsumer {
+	
+	/**
+	 * Consume a complete file history.
+	 * 
+	 * @param history History of a file
+	 * @throws InterruptedException
+	 */
+	public void consume(FileHistory history) throws InterruptedException;
+
+}
@@ -0,0 +1,88 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+
+/**
+ * Class representing a single revision of a versioned file: the commit
+ * which introduced it, the path of the file in this commit and the ID
+ * of the file content (blob).
+ * 
+ * @author Adam Wierzbicki
+ */
+public class FileRevision {
+	
+	private ObjectId commitId;
+	private String path;
+	private ObjectId blobId;
+	private byte[] content;
+	
+	/**
+	 * Construct a new FileRevision.
+	 * 
+	 * @param commitId	ID of the commit introducing the revision
+	 * @param path		Path to the file in the commit (relative to the main directory of the repository)
+	 * @param blobId	ID of the file content
+	 */
+	public FileRevision(ObjectId commitId, String path, ObjectId blobId) {
+		this.commitId = commitId;
+		this.path = path;
+		this.blobId = blobId;
+	}
+	
+	/**
+	 * Get ID of the commit introducing this revision.
+	 * 
+	 * @return Commit ID
+	 */
+	public ObjectId getCommitId() {
+		return this.commitId;
+	}
+	
+	/**
+	 * Get ID of the commit introducing this revision as a SHA-1 string.
+	 * 
+	 * @return Commit ID string
+	 */
+	public String getCommitName() {
+		return this.commitId.name();
+	}
+	
+	/**
+	 * Get path to the file in this revision.
+	 * 
+	 * @return Path relative to the main directory of the repository
+	 */
+	public String getPath() {
+		return this.path;
+	}
+	
+	/**
+	 * Get ID of the file content in this revision.
+	 * 
+	 * @return Blob ID
+	 */
+	public ObjectId getBlobId() {
+		return this.blobId;
+	}
+	
+	/**
+	 * Get the prefetched content of the file in this revision.
+	 * 
+	 * @return File content (null if it has not been prefetched)
+	 */
+	public byte[] getContent() {
+		return this.content;
+	}
+	
+	/**
+	 * Set the prefetched content of the file in this revision. The content should
+	 * be released (by setting it to null) as soon as it is no longer needed.
+	 * 
+	 * @param content File content (null to release the content)
+	 */
+	public void setContent(byte[] content) {
+		this.content = content;
+	}
+
+}
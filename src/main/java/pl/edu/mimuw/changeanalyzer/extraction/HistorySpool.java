@@ -0,0 +1,195 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
+import ch.uzh.ifi.seal.changedistiller.model.entities.MethodHistory;
+
+
+/**
+ * Temporary file holding extracted class histories, so that they don't have
+ * to be kept in memory until all of them are extracted. Histories are written
+ * as they are consumed and read back one class at a time while iterating over
+ * method histories. Read histories are flat (see {@link ClassHistoryExtractor#createClassHistory(String, String)}).
+ * 
+ * @author Adam Wierzbicki
+ */
+public class HistorySpool implements ClassHistoryConsumer, Iterable<MethodHistory> {
+	
+	private File file;
+	private DataOutputStream out;
+	private int numClasses;
+	
+	/**
+	 * Construct a new, empty HistorySpool.
+	 * 
+	 * @param dir Directory to create the temporary file in (null for the default one)
+	 * @throws IOException
+	 */
+	public HistorySpool(File dir) throws IOException {
+		this.file = File.createTempFile("histories", ".spool", dir);
+		this.file.deleteOnExit();
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)));
+	}
+	
+	@Override
+	public synchronized void consume(String path, ClassHistory history) throws IOException {
+		if (this.out == null) {
+			throw new IllegalStateException("Spool is already being read");
+		}
+		this.out.writeUTF(path);
+		MethodVersionCodec.writeClassHistory(this.out, history);
+		++this.numClasses;
+	}
+	
+	/**
+	 * Get the number of class histories written to this spool.
+	 * 
+	 * @return Number of class histories
+	 */
+	public int getNumClasses() {
+		return this.numClasses;
+	}
+	
+	/**
+	 * Iterate over method histories of all spooled classes. No more class histories
+	 * may be consumed afterwards. Since the iterator reads the spool file, it throws
+	 * an {@link UncheckedIOException} if reading fails.
+	 */
+	@Override
+	public synchronized Iterator<MethodHistory> iterator() {
+		try {
+			this.flush();
+			InputStream in = new BufferedInputStream(new FileInputStream(this.file));
+			return new SpoolIterator(new DataInputStream(in), this.numClasses, this.file.getPath());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Copy spooled class histories to an output stream, preceded by their number.
+	 * No more class histories may be consumed afterwards.
+	 * 
+	 * @param out Output stream to copy the histories to
+	 * @throws IOException
+	 * @see #read(DataInputStream, String)
+	 */
+	public synchronized void copyTo(DataOutputStream out) throws IOException {
+		this.flush();
+		out.writeInt(this.numClasses);
+		Files.copy(this.file.toPath(), out);
+	}
+	
+	/**
+	 * Iterate over method histories of class histories copied by {@link #copyTo(DataOutputStream)}.
+	 * The input stream is closed when all histories are read. Since the iterator reads
+	 * the stream, it throws an {@link UncheckedIOException} if reading fails.
+	 * 
+	 * @param in		Input stream positioned at the copied histories
+	 * @param source	Name of the source of the stream (used in error messages)
+	 * @return Iterator over method histories
+	 * @throws IOException
+	 */
+	public static Iterator<MethodHistory> read(DataInputStream in, String source) throws IOException {
+		int numClasses = in.readInt();
+		if (numClasses < 0) {
+			throw new IOException("Invalid number of classes in " + source + ": " + numClasses);
+		}
+		return new SpoolIterator(in, numClasses, source);
+	}
+	
+	/**
+	 * Close the output stream of the spool file, if it is still open.
+	 * 
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		if (this.out != null) {
+			this.out.close();
+			this.out = null;
+		}
+	}
+	
+	/**
+	 * Delete the spool file.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		this.flush();
+		this.file.delete();
+	}
+	
+	/**
+	 * Iterator reading spooled class histories one by one and iterating
+	 * over their method histories.
+	 */
+	private static class SpoolIterator implements Iterator<MethodHistory> {
+		
+		private DataInputStream in;
+		private int numRemaining;
+		private String source;
+		private Iterator<MethodHistory> current;
+		
+		/**
+		 * Construct a new SpoolIterator.
+		 * 
+		 * @param in			Input stream positioned at the first class history
+		 * @param numClasses	Number of class histories to be read
+		 * @param source		Name of the source of the stream
+		 */
+		public SpoolIterator(DataInputStream in, int numClasses, String source) {
+			this.in = in;
+			this.numRemaining = numClasses;
+			this.source = source;
+			this.current = Collections.emptyIterator();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			try {
+				while (!this.current.hasNext() && this.numRemaining > 0) {
+					--this.numRemaining;
+					String path = this.in.readUTF();
+					ClassHistory history = MethodVersionCodec.readClassHistory(this.in, path);
+					if (history != null) {
+						this.current = new ClassHistoryWrapper(Collections.singleton(history)).iterator();
+					}
+				}
+				if (this.numRemaining == 0 && !this.current.hasNext()) {
+					this.in.close();
+				}
+				return this.current.hasNext();
+			} catch (EOFException e) {
+				throw new UncheckedIOException("Truncated class histories in " + this.source, e);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		
+		@Override
+		public MethodHistory next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return this.current.next();
+		}
+	
+	}
+
+}
@@ -0,0 +1,232 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+
+/**
+ * Mapping of author identities read from a .mailmap file (see 'git help mailmap'),
+ * used to merge different spellings of the same author. Supported entry forms are:
+ * <pre>
+ * Proper Name &lt;commit@email&gt;
+ * &lt;proper@email&gt; &lt;commit@email&gt;
+ * Proper Name &lt;proper@email&gt; &lt;commit@email&gt;
+ * Proper Name &lt;proper@email&gt; Commit Name &lt;commit@email&gt;
+ * </pre>
+ * Emails and names are matched case-insensitively.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class Mailmap {
+	
+	public static final String FILE_NAME = ".mailmap";
+	
+	private Map<String, List<Entry>> entries;
+	
+	/**
+	 * Single entry of a .mailmap file.
+	 */
+	private static class Entry {
+		
+		private String properName;
+		private String properEmail;
+		private String commitName;
+		
+		/**
+		 * Construct a new Entry.
+		 * 
+		 * @param properName	Proper name (null if the name is not mapped)
+		 * @param properEmail	Proper email (null if the email is not mapped)
+		 * @param commitName	Name to be matched (null if any name matches)
+		 */
+		public Entry(String properName, String properEmail, String commitName) {
+			this.properName = properName;
+			this.properEmail = properEmail;
+			this.commitName = commitName;
+		}
+	
+	}
+	
+	/**
+	 * Construct a new, empty Mailmap, which doesn't change any identity.
+	 */
+	public Mailmap() {
+		this.entries = new HashMap<String, List<Entry>>();
+	}
+	
+	/**
+	 * Read the .mailmap file of a repository. The file is read from the working
+	 * tree or, if there is no such file (e.g. in a bare repository), from the HEAD.
+	 * 
+	 * @param repository Repository to read the mapping of
+	 * @return Read mapping (empty if the repository has no .mailmap file)
+	 * @throws IOException
+	 */
+	public static Mailmap read(Repository repository) throws IOException {
+		Mailmap mailmap = new Mailmap();
+		if (!repository.isBare()) {
+			File file = new File(repository.getWorkTree(), FILE_NAME);
+			if (file.isFile()) {
+				mailmap.parse(new FileInputStream(file));
+				return mailmap;
+			}
+		}
+		
+		ObjectId head = repository.resolve(Constants.HEAD);
+		if (head == null) {
+			return mailmap;
+		}
+		RevWalk revWalk = new RevWalk(repository);
+		try {
+			TreeWalk treeWalk = TreeWalk.forPath(repository, FILE_NAME, revWalk.parseCommit(head).getTree());
+			if (treeWalk != null) {
+				mailmap.parse(repository.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).openStream());
+				treeWalk.release();
+			}
+		} finally {
+			revWalk.dispose();
+		}
+		return mailmap;
+	}
+	
+	/**
+	 * Parse entries of a .mailmap file and add them to this mapping.
+	 * 
+	 * @param in Stream with the file content (closed afterwards)
+	 * @throws IOException
+	 */
+	public void parse(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				this.parseLine(line);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+	
+	/**
+	 * Parse a single line of a .mailmap file. Malformed lines are ignored.
+	 * 
+	 * @param line Line to be parsed
+	 */
+	private void parseLine(String line) {
+		int comment = line.indexOf('#');
+		if (comment >= 0) {
+			line = line.substring(0, comment);
+		}
+		
+		List<String> names = new ArrayList<String>(2);
+		List<String> emails = new ArrayList<String>(2);
+		int position = 0;
+		while (emails.size() < 2) {
+			int open = line.indexOf('<', position);
+			int close = open >= 0 ? line.indexOf('>', open) : -1;
+			if (close < 0) {
+				break;
+			}
+			String name = line.substring(position, open).trim();
+			names.add(name.isEmpty() ? null : name);
+			emails.add(line.substring(open + 1, close).trim());
+			position = close + 1;
+		}
+		
+		if (emails.size() == 1 && names.get(0) != null) {
+			this.addEntry(emails.get(0), new Entry(names.get(0), null, null));
+		} else if (emails.size() == 2) {
+			this.addEntry(emails.get(1), new Entry(names.get(0), emails.get(0), names.get(1)));
+		}
+	}
+	
+	/**
+	 * Add an entry matching a given commit email.
+	 * 
+	 * @param commitEmail	Email to be matched
+	 * @param entry			Entry to be added
+	 */
+	private void addEntry(String commitEmail, Entry entry) {
+		String key = commitEmail.toLowerCase(Locale.ROOT);
+		List<Entry> emailEntries = this.entries.get(key);
+		if (emailEntries == null) {
+			emailEntries = new ArrayList<Entry>(1);
+			this.entries.put(key, emailEntries);
+		}
+		emailEntries.add(entry);
+	}
+	
+	/**
+	 * Find the entry matching an identity. Entries matching both the name
+	 * and the email take precedence over entries matching the email only.
+	 * 
+	 * @param name	Name of the identity
+	 * @param email	Email of the identity
+	 * @return Matching entry (null if there is none)
+	 */
+	private Entry find(String name, String email) {
+		List<Entry> emailEntries = email != null ? this.entries.get(email.toLowerCase(Locale.ROOT)) : null;
+		if (emailEntries == null) {
+			return null;
+		}
+		Entry match = null;
+		for (Entry entry: emailEntries) {
+			if (entry.commitName == null) {
+				match = entry;
+			} else if (entry.commitName.equalsIgnoreCase(name)) {
+				return entry;
+			}
+		}
+		return match;
+	}
+	
+	/**
+	 * Get the proper name of an identity.
+	 * 
+	 * @param name	Name of the identity
+	 * @param email	Email of the identity
+	 * @return Mapped name (the given one if it is not mapped)
+	 */
+	public String getName(String name, String email) {
+		Entry entry = this.find(name, email);
+		return entry != null && entry.properName != null ? entry.properName : name;
+	}
+	
+	/**
+	 * Get the proper email of an identity.
+	 * 
+	 * @param name	Name of the identity
+	 * @param email	Email of the identity
+	 * @return Mapped email (the given one if it is not mapped)
+	 */
+	public String getEmail(String name, String email) {
+		Entry entry = this.find(name, email);
+		return entry != null && entry.properEmail != null ? entry.properEmail : email;
+	}
+	
+	/**
+	 * Check whether this mapping is empty.
+	 * 
+	 * @return True iff this mapping doesn't change any identity
+	 */
+	public boolean isEmpty() {
+		return this.entries.isEmpty();
+	}
+
+}
@@ -0,0 +1,154 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import ch.uzh.ifi.seal.changedistiller.model.classifiers.ChangeType;
+import ch.uzh.ifi.seal.changedistiller.model.classifiers.java.JavaEntityType;
+import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
+import ch.uzh.ifi.seal.changedistiller.model.entities.MethodHistory;
+import ch.uzh.ifi.seal.changedistiller.model.entities.SourceCodeChange;
+import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
+
+
+/**
+ * Binary encoding of method versions and their source code changes. A version is
+ * stored as: method unique name, method modifiers, number of changes, change types.
+ * The commit ID of a version is not stored, it is provided when the version is read.
+ * <p>
+ * Change types are stored as ordinals, so the format depends on {@link ChangeType}.
+ * Files using this encoding should store {@link #FORMAT_VERSION}.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class MethodVersionCodec {
+	
+	/**
+	 * Version of the encoding, including the number of known change types
+	 */
+	public static final int FORMAT_VERSION = (1 << 16) | ChangeType.values().length;
+	
+	private static final ChangeType[] CHANGE_TYPES = ChangeType.values();
+	
+	/**
+	 * Write a method version.
+	 * 
+	 * @param out		Output to write to
+	 * @param version	Method version to be written
+	 * @throws IOException
+	 */
+	public static void write(DataOutput out, StructureEntityVersion version) throws IOException {
+		List<SourceCodeChange> changes = version.getSourceCodeChanges();
+		out.writeUTF(version.getUniqueName());
+		out.writeInt(version.getModifiers());
+		out.writeInt(changes.size());
+		for (SourceCodeChange change: changes) {
+			out.writeByte(change.getChangeType().ordinal());
+		}
+	}
+	
+	/**
+	 * Read a method version.
+	 * 
+	 * @param in		Input to read from
+	 * @param commitId	ID of the commit the version belongs to
+	 * @return Read method version with {@link StoredSourceCodeChange}s
+	 * @throws IOException When the input is malformed
+	 */
+	public static StructureEntityVersion read(DataInput in, String commitId) throws IOException {
+		String name = in.readUTF();
+		int modifiers = in.readInt();
+		int numChanges = in.readInt();
+		if (numChanges < 0) {
+			throw new IOException("Invalid number of changes: " + numChanges);
+		}
+		
+		StructureEntityVersion version = new StructureEntityVersion(JavaEntityType.METHOD, name, modifiers, commitId);
+		for (int i = 0; i < numChanges; ++i) {
+			int changeType = in.readUnsignedByte();
+			if (changeType >= CHANGE_TYPES.length) {
+				throw new IOException("Invalid change type: " + changeType);
+			}
+			version.addSourceCodeChange(new StoredSourceCodeChange(CHANGE_TYPES[changeType], version));
+		}
+		return version;
+	}
+	
+	/**
+	 * Write a method version preceded by its commit ID.
+	 * 
+	 * @param out		Output to write to
+	 * @param version	Method version to be written
+	 * @throws IOException
+	 */
+	public static void writeWithCommit(DataOutput out, StructureEntityVersion version) throws IOException {
+		byte[] commitId = new byte[Constants.OBJECT_ID_LENGTH];
+		ObjectId.fromString(version.getVersion()).copyRawTo(commitId, 0);
+		out.write(commitId);
+		write(out, version);
+	}
+	
+	/**
+	 * Read a method version written by {@link #writeWithCommit(DataOutput, StructureEntityVersion)}.
+	 * 
+	 * @param in Input to read from
+	 * @return Read method version with {@link StoredSourceCodeChange}s
+	 * @throws IOException When the input is malformed
+	 */
+	public static StructureEntityVersion readWithCommit(DataInput in) throws IOException {
+		byte[] commitId = new byte[Constants.OBJECT_ID_LENGTH];
+		in.readFully(commitId);
+		return read(in, ObjectId.fromRaw(commitId).name());
+	}
+	
+	/**
+	 * Write all method versions of a class history, each preceded by its commit ID.
+	 * 
+	 * @param out		Output to write to
+	 * @param history	Class history to be written
+	 * @throws IOException
+	 */
+	public static void writeClassHistory(DataOutput out, ClassHistory history) throws IOException {
+		List<StructureEntityVersion> versions = new ArrayList<StructureEntityVersion>();
+		for (MethodHistory methodHistory: new ClassHistoryWrapper(Collections.singleton(history))) {
+			versions.addAll(methodHistory.getVersions());
+		}
+		out.writeInt(versions.size());
+		for (StructureEntityVersion version: versions) {
+			writeWithCommit(out, version);
+		}
+	}
+	
+	/**
+	 * Read a class history written by {@link #writeClassHistory(DataOutput, ClassHistory)}.
+	 * 
+	 * @param in		Input to read from
+	 * @param filePath	Path to the file representing the class
+	 * @return Read class history (null if it has no method versions)
+	 * @throws IOException When the input is malformed
+	 */
+	public static ClassHistory readClassHistory(DataInput in, String filePath) throws IOException {
+		int numVersions = in.readInt();
+		if (numVersions < 0) {
+			throw new IOException("Invalid number of versions: " + numVersions);
+		}
+		
+		ClassHistory history = null;
+		for (int i = 0; i < numVersions; ++i) {
+			StructureEntityVersion version = readWithCommit(in);
+			if (history == null) {
+				history = ClassHistoryExtractor.createClassHistory(filePath, version.getVersion());
+			}
+			history.createMethodHistory(version);
+		}
+		return history;
+	}
+
+}
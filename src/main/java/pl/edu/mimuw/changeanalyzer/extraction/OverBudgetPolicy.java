@@ -0,0 +1,27 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+
+/**
+ * Handling of files exceeding limits of distillation (see {@link ExtractionConfig#getMaxFileTime()},
+ * {@link ExtractionConfig#getMaxBlobSize()} and {@link ExtractionConfig#getMaxRevisions()}).
+ * 
+ * @author Adam Wierzbicki
+ */
+public enum OverBudgetPolicy {
+	
+	/**
+	 * The file is not extracted
+	 */
+	SKIP,
+	
+	/**
+	 * Only the most recent revisions of the file within the limits are extracted
+	 */
+	TRUNCATE,
+	
+	/**
+	 * The file is extracted without limits after all other files
+	 */
+	DEFER
+
+}
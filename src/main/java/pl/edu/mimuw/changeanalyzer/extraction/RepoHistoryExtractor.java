@@ -2,15 +2,20 @@ package pl.edu.mimuw.changeanalyzer.extraction;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.LogCommand;
-import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
@@ -22,6 +27,8 @@ import pl.edu.mimuw.changeanalyzer.exceptions.ChangeAnalyzerException;
 import pl.edu.mimuw.changeanalyzer.exceptions.ExtractionException;
 import pl.edu.mimuw.changeanalyzer.util.LazyList;
 import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
+import ch.uzh.ifi.seal.changedistiller.model.entities.MethodHistory;
+import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
 
 
 /**
@@ -33,36 +40,66 @@ import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
 public class RepoHistoryExtractor {
 	
 	private Repository repository;
-	private Git git;
-	private ClassHistoryExtractor extractor;
+	private ExtractionConfig config;
+	private ExtractionSummary summary;
+	private ExtractionJournal journal;
 	
 	/**
 	 * Construct a new RepoHistoryExtractor.
 	 * 
+	 * @param repository	Repository to extract history
+	 * @param config		Extraction settings
+	 */
+	public RepoHistoryExtractor (Repository repository, ExtractionConfig config) {
+		this.repository = repository;
+		this.config = config;
+		this.summary = new ExtractionSummary();
+	}
+	
+	/**
+	 * Construct a new RepoHistoryExtractor using default extraction settings.
+	 * 
 	 * @param repository Repository to extract history
 	 */
 	public RepoHistoryExtractor (Repository repository) {
-		this.repository = repository;
-		this.git = new Git(repository);
-		this.extractor = new ClassHistoryExtractor(repository);
+		this(repository, new ExtractionConfig());
 	}
 	
 	/**
 	 * Construct a new RepoHistoryExtractor.
 	 * 
+	 * @param repoDir	Directory with a repository to extract history
+	 * @param config	Extraction settings
+	 * @throws IOException When the given directory doesn't contain a proper repository
+	 */
+	public RepoHistoryExtractor (File repoDir, ExtractionConfig config) throws IOException {
+		this(new FileRepositoryBuilder().setWorkTree(repoDir).build(), config);
+	}
+	
+	/**
+	 * Construct a new RepoHistoryExtractor using default extraction settings.
+	 * 
 	 * @param repoDir Directory with a repository to extract history
 	 * @throws IOException When the given directory doesn't contain a proper repository
 	 */
 	public RepoHistoryExtractor (File repoDir) throws IOException {
-		FileRepositoryBuilder repoBuilder = new FileRepositoryBuilder();
-		this.repository = repoBuilder.setWorkTree(repoDir).build();
-		this.git = new Git(this.repository);
-		this.extractor = new ClassHistoryExtractor(this.repository);
+		this(repoDir, new ExtractionConfig());
 	}
 	
 	/**
 	 * Construct a new RepoHistoryExtractor.
 	 * 
+	 * @param repoPath	Path to a repository to extract history
+	 * @param config	Extraction settings
+	 * @throws IOException When the given path doesn't point to a proper repository
+	 */
+	public RepoHistoryExtractor (String repoPath, ExtractionConfig config) throws IOException {
+		this(new File(repoPath), config);
+	}
+	
+	/**
+	 * Construct a new RepoHistoryExtractor using default extraction settings.
+	 * 
 	 * @param repoPath Path to a repository to extract history
 	 * @throws IOException When the given path doesn't point to a proper repository
 	 */
@@ -70,15 +107,443 @@ public class RepoHistoryExtractor {
 		this(new File(repoPath));
 	}
 	
+	/**
+	 * Get the summary of the last extraction run of this extractor, listing files
+	 * which have exceeded limits of distillation.
+	 * 
+	 * @return Extraction summary
+	 */
+	public ExtractionSummary getExtractionSummary() {
+		return this.summary;
+	}
+	
 	/**
 	 * Extract histories of all clases (that is all .java files) in the repository.
 	 * 
 	 * @return Mapping from file paths to class histories
 	 * @throws IOException
 	 * @throws ChangeAnalyzerException
+	 * @see #extractClassHistories(ClassHistoryConsumer)
 	 */
 	public Map<String, ClassHistory> extractClassHistories() throws IOException, ChangeAnalyzerException {
-		Map<String, ClassHistory> map = new HashMap<String, ClassHistory>();
+		Map<String, ClassHistory> map = new ConcurrentHashMap<String, ClassHistory>();
+		this.extractClassHistories(map::put);
+		return map;
+	}
+	
+	/**
+	 * Extract histories of all clases (that is all .java files) in the repository
+	 * and pass them to a consumer as soon as they are extracted. Revisions of files
+	 * are found either in a single pass over the commit graph (see {@link RepoHistoryWalker})
+	 * or by following each file separately, depending on {@link ExtractionConfig#isSinglePassWalk()}.
+	 * Files are processed by an {@link ExtractionPipeline}; with a single-pass walk, each file
+	 * is distilled as soon as its history is complete, while the walk goes on. If {@link ExtractionConfig#getCacheFile()}
+	 * is set, distilling threads share a {@link DistillerCache}. If {@link ExtractionConfig#getPathIndexFile()}
+	 * is set, walking threads share a {@link ChangedPathIndex}, updated with new commits first.
+	 * It lets them skip commits through which only a few files are followed (see
+	 * {@link RepoHistoryWalker#setChangedPathIndex(ChangedPathIndex)} and
+	 * {@link ClassHistoryExtractor#setChangedPathIndex(ChangedPathIndex)}), so it pays off mostly
+	 * when files are followed separately. Files having less than two revisions have no history
+	 * and are not passed to the consumer.
+	 * <p>
+	 * If {@link ExtractionConfig#getStateFile()} is set, extraction is incremental
+	 * (see {@link #extractClassHistories(File, ClassHistoryConsumer)}). If files
+	 * are partitioned into shards (see {@link ExtractionConfig#setShard(int, int)}),
+	 * only histories of files in the shard of this process are extracted.
+	 * <p>
+	 * If {@link ExtractionConfig#getJournalFile()} is set, the journal is kept after
+	 * this method returns, since the consumer may not have saved its results yet.
+	 * It should be deleted with {@link #finishExtraction()} once they are saved.
+	 * 
+	 * @param consumer Consumer of extracted class histories
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	public void extractClassHistories(ClassHistoryConsumer consumer) throws IOException, ChangeAnalyzerException {
+		if (this.config.getStateFile() != null) {
+			this.extractClassHistories(this.config.getStateFile(), consumer);
+			return;
+		}
+		
+		ChangedPathIndex pathIndex = null;
+		if (this.config.getPathIndexFile() != null) {
+			pathIndex = this.openPathIndex(this.config.getPathIndexFile());
+		}
+		
+		try {
+			if (this.config.isSinglePassWalk()) {
+				ObjectId head = ExtractionUtils.getHead(this.repository);
+				if (head == null) {
+					throw new ExtractionException("Invalid repository: " + this.repository.getWorkTree().getAbsolutePath());
+				}
+				this.distill(head, null, null, pathIndex, consumer);
+			} else {
+				Queue<String> paths = new ConcurrentLinkedQueue<String>(this.getJavaFilePaths());
+				paths.removeIf(path -> !this.config.isInShard(path));
+				this.distill(null, paths, null, pathIndex, consumer);
+			}
+		} finally {
+			if (pathIndex != null) {
+				pathIndex.close();
+			}
+		}
+	}
+	
+	/**
+	 * Extract histories of all classes in the repository incrementally. Only commits
+	 * made since the HEAD saved in the state file are walked and distilled. Their changes
+	 * are merged into class histories restored from the state file, and the new state
+	 * is saved. If the state file doesn't exist, or the saved HEAD is not an ancestor
+	 * of the current one (e.g. after a force-push), the complete history is extracted.
+	 * When files are partitioned into shards, each shard needs its own state file.
+	 * The journal of extracted histories (if any) is deleted after the new state
+	 * is saved, since the state allows to continue from there.
+	 * 
+	 * @param stateFile	File with the state of the previous extraction
+	 * @param consumer	Consumer of extracted class histories
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	public void extractClassHistories(File stateFile, ClassHistoryConsumer consumer)
+			throws IOException, ChangeAnalyzerException {
+		
+		ObjectId head = ExtractionUtils.getHead(this.repository);
+		if (head == null) {
+			throw new ExtractionException("Invalid repository: " + this.repository.getWorkTree().getAbsolutePath());
+		}
+		ExtractionState state = this.loadState(stateFile, head);
+		try {
+			this.extractIncrementally(stateFile, head, state, consumer);
+		} finally {
+			if (state != null) {
+				state.close();
+			}
+		}
+		this.finishExtraction();
+	}
+	
+	/**
+	 * Extract class histories since the state of the previous extraction and save the new state.
+	 * Stored class histories are restored one at a time, when their files are consumed.
+	 * 
+	 * @param stateFile	File to save the new state into
+	 * @param head		Commit to extract files of
+	 * @param state		State of the previous extraction (null if there is none)
+	 * @param consumer	Consumer of extracted class histories
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private void extractIncrementally(File stateFile, ObjectId head, ExtractionState state,
+			ClassHistoryConsumer consumer) throws IOException, ChangeAnalyzerException {
+		
+		Map<String, FileHistory> fileHistories;
+		ChangedPathIndex pathIndex = null;
+		if (this.config.getPathIndexFile() != null) {
+			pathIndex = this.openPathIndex(this.config.getPathIndexFile());
+		}
+		try {
+			fileHistories = this.extractFileHistories(head, state != null ? state.getHead() : null, pathIndex);
+		} finally {
+			if (pathIndex != null) {
+				pathIndex.close();
+			}
+		}
+		fileHistories.keySet().removeIf(path -> !this.config.isInShard(path));
+		
+		Map<String, String> basePaths = new HashMap<String, String>();
+		if (state != null) {
+			for (FileHistory fileHistory: fileHistories.values()) {
+				FileRevision lastRevision = state.getLastRevision(fileHistory.getBasePath());
+				if (lastRevision != null) {
+					fileHistory.addPreviousRevision(lastRevision);
+					basePaths.put(fileHistory.getPath(), fileHistory.getBasePath());
+				}
+			}
+		}
+		
+		Map<String, FileRevision> lastRevisions = new HashMap<String, FileRevision>();
+		for (FileHistory fileHistory: fileHistories.values()) {
+			if (fileHistory.getLastRevision() != null) {
+				lastRevisions.put(fileHistory.getPath(), fileHistory.getLastRevision());
+			}
+		}
+		
+		ExtractionState newState = ExtractionState.create(stateFile, head);
+		try {
+			fileHistories = new ConcurrentHashMap<String, FileHistory>(fileHistories);
+			this.distill(null, new ConcurrentLinkedQueue<String>(fileHistories.keySet()), fileHistories, null, (path, added) -> {
+				String basePath = basePaths.get(path);
+				ClassHistory previous = basePath != null ? state.getClassHistory(basePath) : null;
+				ClassHistory merged = this.mergeClassHistories(previous, added);
+				newState.putFile(path, lastRevisions.get(path), merged);
+				consumer.consume(path, merged);
+			});
+			
+			for (Map.Entry<String, FileRevision> entry: lastRevisions.entrySet()) {
+				if (newState.getLastRevision(entry.getKey()) == null) {
+					String basePath = basePaths.get(entry.getKey());
+					ClassHistory unchanged = basePath != null ? state.getClassHistory(basePath) : null;
+					newState.putFile(entry.getKey(), entry.getValue(), unchanged);
+					if (unchanged != null) {
+						consumer.consume(entry.getKey(), unchanged);
+					}
+				}
+			}
+			newState.save();
+		} finally {
+			newState.close();
+		}
+	}
+	
+	/**
+	 * Finish the last extraction run by deleting its journal (see {@link ExtractionConfig#getJournalFile()}).
+	 * It should be called once the consumer of extracted class histories has saved its results,
+	 * so that a crash before that can be resumed from the journal.
+	 * 
+	 * @throws IOException
+	 */
+	public void finishExtraction() throws IOException {
+		if (this.journal != null) {
+			this.journal.delete();
+			this.journal = null;
+		}
+	}
+	
+	/**
+	 * Append versions of methods from a class history to a previous history of the class.
+	 * 
+	 * @param previous	Previous class history (may be null)
+	 * @param added		Class history containing versions newer than the previous ones
+	 * @return Merged class history
+	 */
+	private ClassHistory mergeClassHistories(ClassHistory previous, ClassHistory added) {
+		if (previous == null) {
+			return added;
+		}
+		for (MethodHistory methodHistory: new ClassHistoryWrapper(Collections.singleton(added))) {
+			for (StructureEntityVersion version: methodHistory.getVersions()) {
+				previous.createMethodHistory(version);
+			}
+		}
+		return previous;
+	}
+	
+	/**
+	 * Load the state of the previous extraction, if it can be used for
+	 * incremental extraction from a given HEAD.
+	 * 
+	 * @param stateFile	File with the state of the previous extraction
+	 * @param head		Current HEAD
+	 * @return Loaded state (null if the complete history should be extracted)
+	 * @throws IOException
+	 */
+	private ExtractionState loadState(File stateFile, ObjectId head) throws IOException {
+		ExtractionState state = ExtractionState.load(stateFile);
+		if (state == null) {
+			return null;
+		}
+		
+		RevWalk revWalk = new RevWalk(this.repository);
+		try {
+			RevCommit base = revWalk.parseCommit(state.getHead());
+			if (!revWalk.isMergedInto(base, revWalk.parseCommit(head))) {
+				System.err.println("Commit " + base.name() + " is not an ancestor of HEAD, extracting complete history");
+				state.close();
+				return null;
+			}
+		} catch (MissingObjectException e) {
+			System.err.println("Commit " + state.getHead().name() + " not found, extracting complete history");
+			state.close();
+			return null;
+		} finally {
+			revWalk.dispose();
+		}
+		return state;
+	}
+	
+	/**
+	 * Open the index of changed paths and index commits added since its last use.
+	 * 
+	 * @param indexFile Index file
+	 * @return Up-to-date index
+	 * @throws IOException
+	 * @throws ExtractionException
+	 */
+	private ChangedPathIndex openPathIndex(File indexFile) throws IOException, ExtractionException {
+		ObjectId head = ExtractionUtils.getHead(this.repository);
+		if (head == null) {
+			throw new ExtractionException("Invalid repository: " + this.repository.getWorkTree().getAbsolutePath());
+		}
+		
+		ChangedPathIndex index = new ChangedPathIndex(indexFile);
+		try {
+			int numIndexed = index.update(this.repository, head);
+			System.err.println("Changed path index: " + numIndexed + " of " + index.size() + " commits indexed");
+		} catch (IOException e) {
+			index.close();
+			throw e;
+		}
+		return index;
+	}
+	
+	/**
+	 * Extract class histories of given files with an {@link ExtractionPipeline}, using
+	 * a {@link DistillerCache} if {@link ExtractionConfig#getCacheFile()} is set.
+	 * Files are either given by a queue of paths, or found by a single-pass walk
+	 * of the pipeline (then only files in the shard of this process are processed).
+	 * If {@link ExtractionConfig#getJournalFile()} is set, extracted histories are
+	 * recorded in an {@link ExtractionJournal}. When resuming, histories recorded
+	 * by an interrupted extraction are passed to the consumer first and their
+	 * files are not processed again. The journal is closed, but not deleted
+	 * (see {@link #finishExtraction()}).
+	 * 
+	 * @param head			Commit whose files should be found by a single-pass walk
+	 * 						(null if paths are given)
+	 * @param paths			Queue of paths of files to be processed (null if head is given)
+	 * @param fileHistories	Revisions of given files found by a single-pass walk (null if each
+	 * 						file should be followed separately)
+	 * @param pathIndex		Index of changed paths used to follow files (may be null)
+	 * @param consumer		Consumer of extracted class histories
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private void distill(ObjectId head, Queue<String> paths, Map<String, FileHistory> fileHistories,
+			ChangedPathIndex pathIndex, ClassHistoryConsumer consumer) throws IOException, ChangeAnalyzerException {
+		
+		this.summary = new ExtractionSummary();
+		this.journal = null;
+		ExtractionJournal journal = this.openJournal();
+		DistillerCache cache = null;
+		boolean completed = false;
+		try {
+			if (journal != null && journal.size() > 0) {
+				System.err.println("Resuming extraction: " + journal.size() + " files already extracted");
+				journal.replay(consumer);
+				if (paths != null) {
+					paths.removeIf(journal::contains);
+				}
+			}
+			
+			if (this.config.getCacheFile() != null) {
+				cache = new DistillerCache(this.config.getCacheFile(), this.config.getCacheSize());
+			}
+			ExtractionPipeline pipeline = new ExtractionPipeline(this.repository, this.config);
+			pipeline.setDistillerCache(cache);
+			pipeline.setChangedPathIndex(pathIndex);
+			pipeline.setExtractionSummary(this.summary);
+			ClassHistoryConsumer pipelineConsumer = consumer;
+			if (journal != null) {
+				pipelineConsumer = (path, history) -> {
+					journal.record(path, history);
+					consumer.consume(path, history);
+				};
+			}
+			if (head != null) {
+				pipeline.run(head, path -> this.config.isInShard(path) && (journal == null || !journal.contains(path)),
+						pipelineConsumer);
+			} else {
+				pipeline.run(paths, fileHistories, pipelineConsumer);
+			}
+			completed = true;
+		} finally {
+			this.summary.print(System.err);
+			if (cache != null) {
+				System.err.println("Distiller cache: " + cache.getNumHits() + " hits, "
+						+ cache.getNumMisses() + " misses");
+				cache.close();
+			}
+			if (journal != null) {
+				journal.close();
+				if (completed) {
+					this.journal = journal;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Open the journal of extracted class histories for the repository HEAD.
+	 * 
+	 * @return Opened journal (null if {@link ExtractionConfig#getJournalFile()} is not set)
+	 * @throws IOException
+	 * @throws ExtractionException
+	 */
+	private ExtractionJournal openJournal() throws IOException, ExtractionException {
+		if (this.config.getJournalFile() == null) {
+			return null;
+		}
+		ObjectId head = ExtractionUtils.getHead(this.repository);
+		if (head == null) {
+			throw new ExtractionException("Invalid repository: " + this.repository.getWorkTree().getAbsolutePath());
+		}
+		
+		ExtractionJournal journal = new ExtractionJournal(this.config.getJournalFile(), head, this.config.isResume());
+		journal.setCheckpointInterval(this.config.getCheckpointInterval());
+		return journal;
+	}
+	
+	/**
+	 * Find revisions of all .java files in the repository HEAD in a single pass
+	 * over the commit graph.
+	 * 
+	 * @return Mapping from file paths to file histories
+	 * @throws IOException
+	 * @throws ExtractionException
+	 */
+	public Map<String, FileHistory> extractFileHistories() throws IOException, ExtractionException {
+		RepoHistoryWalker walker = new RepoHistoryWalker(this.repository);
+		try {
+			return walker.walk();
+		} finally {
+			walker.close();
+		}
+	}
+	
+	/**
+	 * Find revisions of all .java files in a given commit introduced since
+	 * a base commit, in a single pass over the commit graph.
+	 * 
+	 * @param head	Commit to find files in
+	 * @param base	Base commit (null for the complete history)
+	 * @return Mapping from file paths to file histories
+	 * @throws IOException
+	 */
+	public Map<String, FileHistory> extractFileHistories(ObjectId head, ObjectId base) throws IOException {
+		return this.extractFileHistories(head, base, null);
+	}
+	
+	/**
+	 * Find revisions of all .java files in a given commit introduced since
+	 * a base commit, in a single pass over the commit graph, skipping commits
+	 * with an index of changed paths.
+	 * 
+	 * @param head		Commit to find files in
+	 * @param base		Base commit (null for the complete history)
+	 * @param pathIndex	Index of changed paths (null if all commits should be diffed)
+	 * @return Mapping from file paths to file histories
+	 * @throws IOException
+	 */
+	private Map<String, FileHistory> extractFileHistories(ObjectId head, ObjectId base, ChangedPathIndex pathIndex)
+			throws IOException {
+		
+		RepoHistoryWalker walker = new RepoHistoryWalker(this.repository);
+		walker.setChangedPathIndex(pathIndex);
+		try {
+			return walker.walk(head, base);
+		} finally {
+			walker.close();
+		}
+	}
+	
+	/**
+	 * Get paths of all .java files in the repository HEAD.
+	 * 
+	 * @return Paths of .java files (relative to the main directory of the repository)
+	 * @throws IOException
+	 * @throws ExtractionException
+	 */
+	public List<String> getJavaFilePaths() throws IOException, ExtractionException {
+		List<String> paths = new ArrayList<String>();
 		
 		ObjectId headId = ExtractionUtils.getHead(this.repository);
 		RevWalk revWalk = new RevWalk(this.repository);
@@ -92,29 +557,52 @@ public class RepoHistoryExtractor {
 		treeWalk.setFilter(filter);
 		
 		while (treeWalk.next()) {
-			String path = treeWalk.getPathString();
-			ClassHistory history = this.extractor.extractClassHistory(path);
-			map.put(path, history);
+			paths.add(treeWalk.getPathString());
 		}
+		treeWalk.release();
+		revWalk.dispose();
 		
-		return map;
+		return paths;
 	}
 	
 	/**
-	 * Extract all commits which can be achieved from the repostory HEAD.
+	 * Extract all commits which can be achieved from the repostory HEAD,
+	 * in topological order (each commit precedes its parents).
 	 * 
 	 * @return Extracted commits
 	 * @throws IOException
 	 * @throws ExtractionException
 	 */
 	public Iterable<RevCommit> extractCommits() throws IOException, ExtractionException {
+		RevWalk revWalk = new RevWalk(this.repository);
+		revWalk.sort(RevSort.TOPO);
+		revWalk.markStart(revWalk.parseCommit(this.extractHead()));
+		return new LazyList<RevCommit>(revWalk);
+	}
+	
+	/**
+	 * Get the HEAD commit of the repository, whose history is extracted.
+	 * 
+	 * @return ID of the HEAD commit
+	 * @throws IOException
+	 * @throws ExtractionException If the repository has no HEAD
+	 */
+	public ObjectId extractHead() throws IOException, ExtractionException {
 		ObjectId head = ExtractionUtils.getHead(this.repository);
-		LogCommand logCommand = this.git.log().add(head);
-		try {
-			return new LazyList<RevCommit>(logCommand.call());
-		} catch (GitAPIException e) {
-			throw new ExtractionException("Failed to execute LOG command", e);
+		if (head == null) {
+			throw new ExtractionException("Invalid repository: " + this.repository.getWorkTree().getAbsolutePath());
 		}
+		return head;
+	}
+	
+	/**
+	 * Extract the mapping of author identities from the .mailmap file of the repository.
+	 * 
+	 * @return Mapping of author identities (empty if the repository has no .mailmap file)
+	 * @throws IOException
+	 */
+	public Mailmap extractMailmap() throws IOException {
+		return Mailmap.read(this.repository);
 	}
 
 }
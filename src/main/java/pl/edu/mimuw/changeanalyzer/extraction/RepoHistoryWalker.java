@@ -0,0 +1,447 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffEntry.ChangeType;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.PathSuffixFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import pl.edu.mimuw.changeanalyzer.exceptions.ExtractionException;
+
+
+/**
+ * Walker building histories of all .java files in a single pass over the commit
+ * graph. Each commit is diffed against its parent (with rename detection) once,
+ * instead of once per file as with {@link ClassHistoryExtractor#getFileHistory(String)}.
+ * <p>
+ * Files are followed from the repository HEAD backwards, like with 'git log --follow',
+ * so that each history is a chain of revisions linked by parents. Commits are walked
+ * in topological order, and each followed file waits at the commit it is to be
+ * followed through. A merge commit is considered to modify a file only if the file
+ * differs from its versions in all the parents; the file is then followed along
+ * the first parent. Otherwise it is followed along the first parent having
+ * the same version of the file (like with history simplification of 'git log'),
+ * so revisions of parallel branches are never interleaved.
+ * <p>
+ * A history is complete as soon as its file is not followed any further, so
+ * complete histories can be passed to a {@link FileHistoryConsumer} while
+ * the walk goes on.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class RepoHistoryWalker {
+	
+	public static final String JAVA_SUFFIX = ".java";
+	
+	/**
+	 * Maximum number of followed paths for which the index of changed paths is used
+	 */
+	public static final int MAX_INDEXED_PATHS = 16;
+	
+	private Repository repository;
+	private ObjectReader reader;
+	private TreeFilter javaFilter;
+	private ChangedPathIndex pathIndex;
+	
+	/**
+	 * Construct a new RepoHistoryWalker.
+	 * 
+	 * @param repository Repository to walk
+	 */
+	public RepoHistoryWalker(Repository repository) {
+		this.repository = repository;
+		this.reader = repository.newObjectReader();
+		this.javaFilter = PathSuffixFilter.create(JAVA_SUFFIX);
+	}
+	
+	/**
+	 * Set the index of changed paths used to skip commits which surely don't change
+	 * any of the files followed through them. It is used only for commits through
+	 * which at most {@link #MAX_INDEXED_PATHS} paths are followed, since a commit
+	 * is likely to change one of many paths anyway.
+	 * 
+	 * @param pathIndex Index of changed paths (null if all commits should be diffed)
+	 */
+	public void setChangedPathIndex(ChangedPathIndex pathIndex) {
+		this.pathIndex = pathIndex;
+	}
+	
+	/**
+	 * Walk all commits reachable from the repository HEAD and build histories
+	 * of all .java files present in the HEAD.
+	 * 
+	 * @return Mapping from file paths (in the HEAD) to file histories
+	 * @throws IOException
+	 * @throws ExtractionException
+	 */
+	public Map<String, FileHistory> walk() throws IOException, ExtractionException {
+		ObjectId head = ExtractionUtils.getHead(this.repository);
+		if (head == null) {
+			throw new ExtractionException("Invalid repository: " + this.repository.getWorkTree().getAbsolutePath());
+		}
+		return this.walk(head, null);
+	}
+	
+	/**
+	 * Walk commits reachable from a given commit, but not from a base commit,
+	 * and build histories of all .java files present in the given commit.
+	 * If the base commit is given, each history contains only revisions introduced
+	 * after the base commit and has its base path set (see {@link FileHistory#getBasePath()}).
+	 * 
+	 * @param head	Commit to start the walk from
+	 * @param base	Commit whose history should not be walked (null for the complete history)
+	 * @return Mapping from file paths (in the given commit) to file histories
+	 * @throws IOException
+	 */
+	public Map<String, FileHistory> walk(ObjectId head, ObjectId base) throws IOException {
+		return this.walk(head, base, null);
+	}
+	
+	/**
+	 * Walk commits reachable from a given commit, but not from a base commit,
+	 * and build histories of given .java files present in the given commit.
+	 * 
+	 * @param head	Commit to start the walk from
+	 * @param base	Commit whose history should not be walked (null for the complete history)
+	 * @param paths	Paths of files to be followed (null for all .java files)
+	 * @return Mapping from file paths (in the given commit) to file histories
+	 * @throws IOException
+	 */
+	public Map<String, FileHistory> walk(ObjectId head, ObjectId base, Collection<String> paths)
+			throws IOException {
+		
+		Map<String, FileHistory> histories = new HashMap<String, FileHistory>();
+		try {
+			this.walk(head, base, paths, history -> histories.put(history.getPath(), history));
+		} catch (InterruptedException e) {
+			throw new AssertionError("Collecting histories doesn't block", e);
+		}
+		return histories;
+	}
+	
+	/**
+	 * Walk commits reachable from a given commit, but not from a base commit,
+	 * and pass histories of given .java files present in the given commit
+	 * to a consumer as soon as they are complete.
+	 * 
+	 * @param head		Commit to start the walk from
+	 * @param base		Commit whose history should not be walked (null for the complete history)
+	 * @param paths		Paths of files to be followed (null for all .java files)
+	 * @param consumer	Consumer of complete file histories
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void walk(ObjectId head, ObjectId base, Collection<String> paths, FileHistoryConsumer consumer)
+			throws IOException, InterruptedException {
+		
+		Map<RevCommit, Map<String, List<FileHistory>>> pending =
+				new HashMap<RevCommit, Map<String, List<FileHistory>>>();
+		RevWalk revWalk = new RevWalk(this.reader);
+		
+		try {
+			RevCommit headCommit = revWalk.parseCommit(head);
+			TreeWalk treeWalk = new TreeWalk(this.reader);
+			treeWalk.addTree(headCommit.getTree());
+			treeWalk.setRecursive(true);
+			treeWalk.setFilter(paths != null
+					? AndTreeFilter.create(PathFilterGroup.createFromStrings(paths), this.javaFilter)
+					: this.javaFilter);
+			while (treeWalk.next()) {
+				String path = treeWalk.getPathString();
+				this.follow(pending, headCommit, path, Collections.singletonList(new FileHistory(path)));
+			}
+			
+			revWalk.sort(RevSort.TOPO);
+			revWalk.markStart(headCommit);
+			if (base != null) {
+				revWalk.markUninteresting(revWalk.parseCommit(base));
+			}
+			for (RevCommit commit: revWalk) {
+				if (pending.isEmpty()) {
+					break;
+				}
+				Map<String, List<FileHistory>> tracked = pending.remove(commit);
+				if (tracked == null) {
+					continue;
+				}
+				if (commit.getParentCount() > 0 && this.pathIndex != null && tracked.size() <= MAX_INDEXED_PATHS
+						&& !this.pathIndex.mayChangeAny(commit, tracked.keySet())) {
+					for (Map.Entry<String, List<FileHistory>> entry: tracked.entrySet()) {
+						this.follow(pending, commit.getParent(0), entry.getKey(), entry.getValue());
+					}
+				} else if (commit.getParentCount() > 1) {
+					this.processMerge(revWalk, commit, tracked, pending, consumer);
+				} else {
+					this.processCommit(revWalk, commit, tracked, pending, consumer);
+				}
+			}
+		} finally {
+			revWalk.dispose();
+		}
+		
+		for (Map<String, List<FileHistory>> tracked: pending.values()) {
+			for (Map.Entry<String, List<FileHistory>> entry: tracked.entrySet()) {
+				for (FileHistory history: entry.getValue()) {
+					if (base != null) {
+						history.setBasePath(entry.getKey());
+					}
+					consumer.consume(history);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Record revisions introduced by a non-merge commit in histories of files followed
+	 * through it, and follow the files through the parent of the commit. If a file has
+	 * been renamed (or copied) in the commit, it is followed under its previous path.
+	 * Files added in the commit are not followed any further, so their histories are complete.
+	 * 
+	 * @param revWalk	Walk producing the commit
+	 * @param commit	Commit to be processed
+	 * @param tracked	Mapping from paths followed through the commit to file histories
+	 * @param pending	Mapping from commits to paths followed through them
+	 * @param consumer	Consumer of complete file histories
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void processCommit(RevWalk revWalk, RevCommit commit, Map<String, List<FileHistory>> tracked,
+			Map<RevCommit, Map<String, List<FileHistory>>> pending, FileHistoryConsumer consumer)
+			throws IOException, InterruptedException {
+		
+		List<DiffEntry> entries = this.getChanges(revWalk, commit, tracked);
+		Map<String, List<FileHistory>> unchanged = new HashMap<String, List<FileHistory>>(tracked);
+		Map<String, List<FileHistory>> changed = new HashMap<String, List<FileHistory>>();
+		ObjectId commitId = commit.copy();
+		
+		for (DiffEntry entry: entries) {
+			if (entry.getChangeType() == ChangeType.DELETE) {
+				continue;
+			}
+			String path = entry.getNewPath();
+			List<FileHistory> histories = unchanged.remove(path);
+			if (histories == null) {
+				continue;
+			}
+			
+			FileRevision revision = new FileRevision(commitId, path, entry.getNewId().toObjectId());
+			for (FileHistory history: histories) {
+				history.addPreviousRevision(revision);
+			}
+			if (entry.getChangeType() == ChangeType.MODIFY) {
+				this.track(changed, path, histories);
+			} else if (entry.getChangeType() == ChangeType.RENAME || entry.getChangeType() == ChangeType.COPY) {
+				this.track(changed, entry.getOldPath(), histories);
+			} else {
+				this.complete(histories, consumer);
+			}
+		}
+		
+		if (commit.getParentCount() == 0) {
+			for (List<FileHistory> histories: unchanged.values()) {
+				this.complete(histories, consumer);
+			}
+			for (List<FileHistory> histories: changed.values()) {
+				this.complete(histories, consumer);
+			}
+			return;
+		}
+		RevCommit parent = commit.getParent(0);
+		for (Map.Entry<String, List<FileHistory>> entry: unchanged.entrySet()) {
+			this.follow(pending, parent, entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, List<FileHistory>> entry: changed.entrySet()) {
+			this.follow(pending, parent, entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/**
+	 * Record revisions introduced by a merge commit in histories of files followed
+	 * through it, and follow each file through a parent of the commit. A file which
+	 * differs from its versions in all the parents is recorded and followed through
+	 * the first parent containing it. Otherwise it is followed through the first parent
+	 * containing the same version of the file. Histories of files not contained
+	 * in any parent are complete.
+	 * 
+	 * @param revWalk	Walk producing the commit
+	 * @param commit	Merge commit to be processed
+	 * @param tracked	Mapping from paths followed through the commit to file histories
+	 * @param pending	Mapping from commits to paths followed through them
+	 * @param consumer	Consumer of complete file histories
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void processMerge(RevWalk revWalk, RevCommit commit, Map<String, List<FileHistory>> tracked,
+			Map<RevCommit, Map<String, List<FileHistory>>> pending, FileHistoryConsumer consumer)
+			throws IOException, InterruptedException {
+		
+		TreeWalk treeWalk = new TreeWalk(this.reader);
+		treeWalk.setRecursive(true);
+		treeWalk.setFilter(PathFilterGroup.createFromStrings(tracked.keySet()));
+		treeWalk.addTree(commit.getTree());
+		for (RevCommit parent: commit.getParents()) {
+			revWalk.parseHeaders(parent);
+			treeWalk.addTree(parent.getTree());
+		}
+		
+		ObjectId commitId = commit.copy();
+		Map<String, List<FileHistory>> remaining = new HashMap<String, List<FileHistory>>(tracked);
+		while (treeWalk.next()) {
+			String path = treeWalk.getPathString();
+			if (treeWalk.getRawMode(0) == 0) {
+				continue;
+			}
+			List<FileHistory> histories = remaining.remove(path);
+			if (histories == null) {
+				continue;
+			}
+			
+			int sameParent = -1;
+			int containingParent = -1;
+			for (int i = 1; i < treeWalk.getTreeCount() && sameParent < 0; ++i) {
+				if (treeWalk.getRawMode(i) == 0) {
+					continue;
+				}
+				if (treeWalk.idEqual(0, i)) {
+					sameParent = i - 1;
+				} else if (containingParent < 0) {
+					containingParent = i - 1;
+				}
+			}
+			
+			if (sameParent < 0) {
+				FileRevision revision = new FileRevision(commitId, path, treeWalk.getObjectId(0));
+				for (FileHistory history: histories) {
+					history.addPreviousRevision(revision);
+				}
+			}
+			int parent = sameParent >= 0 ? sameParent : containingParent;
+			if (parent >= 0) {
+				this.follow(pending, commit.getParent(parent), path, histories);
+			} else {
+				this.complete(histories, consumer);
+			}
+		}
+		for (List<FileHistory> histories: remaining.values()) {
+			this.complete(histories, consumer);
+		}
+	}
+	
+	/**
+	 * Get changes of .java files introduced by a non-merge commit. Renames are
+	 * detected only if a tracked file has been added in the commit.
+	 * 
+	 * @param revWalk	Walk producing the commit
+	 * @param commit	Commit to get changes of
+	 * @param tracked	Mapping from currently tracked paths to file histories
+	 * @return Changes introduced by the commit
+	 * @throws IOException
+	 */
+	private List<DiffEntry> getChanges(RevWalk revWalk, RevCommit commit, Map<String, List<FileHistory>> tracked)
+			throws IOException {
+		
+		TreeWalk treeWalk = new TreeWalk(this.reader);
+		treeWalk.setRecursive(true);
+		treeWalk.setFilter(AndTreeFilter.create(TreeFilter.ANY_DIFF, this.javaFilter));
+		if (commit.getParentCount() == 0) {
+			treeWalk.addTree(new EmptyTreeIterator());
+		} else {
+			RevCommit parent = commit.getParent(0);
+			revWalk.parseHeaders(parent);
+			treeWalk.addTree(parent.getTree());
+		}
+		treeWalk.addTree(commit.getTree());
+		List<DiffEntry> entries = DiffEntry.scan(treeWalk);
+		
+		boolean trackedAdded = false;
+		for (DiffEntry entry: entries) {
+			if (entry.getChangeType() == ChangeType.ADD && tracked.containsKey(entry.getNewPath())) {
+				trackedAdded = true;
+				break;
+			}
+		}
+		if (!trackedAdded || commit.getParentCount() == 0) {
+			return entries;
+		}
+		
+		RenameDetector renameDetector = new RenameDetector(this.repository);
+		renameDetector.addAll(entries);
+		return renameDetector.compute(this.reader, NullProgressMonitor.INSTANCE);
+	}
+	
+	/**
+	 * Add file histories to the histories tracked under a given path.
+	 * 
+	 * @param tracked	Mapping from tracked paths to file histories
+	 * @param path		Path to track the histories under
+	 * @param histories	File histories to be tracked
+	 */
+	private void track(Map<String, List<FileHistory>> tracked, String path, List<FileHistory> histories) {
+		List<FileHistory> trackedHistories = tracked.get(path);
+		if (trackedHistories == null) {
+			trackedHistories = new ArrayList<FileHistory>(histories.size());
+			tracked.put(path, trackedHistories);
+		}
+		trackedHistories.addAll(histories);
+	}
+	
+	/**
+	 * Pass complete file histories to a consumer.
+	 * 
+	 * @param histories	Complete file histories
+	 * @param consumer	Consumer of complete file histories
+	 * @throws InterruptedException
+	 */
+	private void complete(List<FileHistory> histories, FileHistoryConsumer consumer) throws InterruptedException {
+		for (FileHistory history: histories) {
+			consumer.consume(history);
+		}
+	}
+	
+	/**
+	 * Follow file histories under a given path through a commit, that is make them
+	 * wait until the commit is walked.
+	 * 
+	 * @param pending	Mapping from commits to paths followed through them
+	 * @param commit	Commit to follow the histories through
+	 * @param path		Path of the file in the commit
+	 * @param histories	File histories to be followed
+	 */
+	private void follow(Map<RevCommit, Map<String, List<FileHistory>>> pending, RevCommit commit,
+			String path, List<FileHistory> histories) {
+		
+		Map<String, List<FileHistory>> tracked = pending.get(commit);
+		if (tracked == null) {
+			tracked = new HashMap<String, List<FileHistory>>();
+			pending.put(commit, tracked);
+		}
+		this.track(tracked, path, histories);
+	}
+	
+	/**
+	 * Release resources held by this walker.
+	 */
+	public void close() {
+		this.reader.release();
+	}
+
+}
@@ -0,0 +1,79 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import ch.uzh.ifi.seal.changedistiller.ast.ASTHelper;
+import ch.uzh.ifi.seal.changedistiller.ast.ASTHelperFactory;
+import ch.uzh.ifi.seal.changedistiller.structuredifferencing.StructureNode;
+
+
+/**
+ * Factory of AST helpers (parsed revisions of files) which reuses helpers of revisions
+ * distilled in the previous pair. Each revision except the first and the last one
+ * of a file history is both the new side of a pair and the old side of the adjacent
+ * pair, so it is parsed only once instead of twice.
+ * <p>
+ * Helpers are identified by blob IDs of revisions held by scratch files, which are
+ * given by {@link #setContents(File, ObjectId, File, ObjectId)} before each pair
+ * is distilled. Only helpers of the current pair are kept. A factory must not be
+ * shared between threads (see {@link DistillerEnvironment}).
+ * 
+ * @author Adam Wierzbicki
+ */
+public class ReusingASTHelperFactory implements ASTHelperFactory {
+	
+	private ASTHelperFactory factory;
+	private Map<File, ObjectId> contents;
+	private Map<ObjectId, ASTHelper<StructureNode>> helpers;
+	
+	/**
+	 * Construct a new ReusingASTHelperFactory.
+	 * 
+	 * @param factory Factory actually parsing revisions
+	 */
+	public ReusingASTHelperFactory(ASTHelperFactory factory) {
+		this.factory = factory;
+		this.contents = new HashMap<File, ObjectId>();
+		this.helpers = new HashMap<ObjectId, ASTHelper<StructureNode>>();
+	}
+	
+	/**
+	 * Set revisions held by scratch files of the pair to be distilled next.
+	 * Helpers of other revisions are released.
+	 * 
+	 * @param oldFile	File with the old revision
+	 * @param oldId		Blob ID of the old revision
+	 * @param newFile	File with the new revision
+	 * @param newId		Blob ID of the new revision
+	 */
+	public void setContents(File oldFile, ObjectId oldId, File newFile, ObjectId newId) {
+		this.contents.clear();
+		this.contents.put(oldFile, oldId);
+		this.contents.put(newFile, newId);
+		this.helpers.keySet().retainAll(this.contents.values());
+	}
+	
+	/**
+	 * Get the helper of a revision held by a file, parsing the file only if
+	 * the revision hasn't been parsed for the previous pair. All revisions
+	 * are parsed with the same source version, so it is not a part of the key.
+	 */
+	@Override
+	public ASTHelper<StructureNode> create(File file, String version) {
+		ObjectId blobId = this.contents.get(file);
+		if (blobId == null) {
+			return this.factory.create(file, version);
+		}
+		ASTHelper<StructureNode> helper = this.helpers.get(blobId);
+		if (helper == null) {
+			helper = this.factory.create(file, version);
+			this.helpers.put(blobId, helper);
+		}
+		return helper;
+	}
+
+}
@@ -0,0 +1,180 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.eclipse.jgit.lib.ObjectLoader;
+
+
+/**
+ * Reusable pair of scratch files holding two consecutive revisions of a file,
+ * which are read by ChangeDistiller (its API accepts files only). The files are
+ * placed in a private directory, by default on a memory-backed file system
+ * (see {@link #getDefaultParent()}).
+ * <p>
+ * Each stored revision becomes the new one and the previous new revision becomes
+ * the old one, so every revision of a history is written once. A scratch area
+ * must not be shared between threads.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class ScratchArea {
+	
+	/**
+	 * Directory of the memory-backed file system available on most Linux systems
+	 */
+	public static final File SHARED_MEMORY_DIR = new File("/dev/shm");
+	
+	private File directory;
+	private File oldFile;
+	private File newFile;
+	
+	/**
+	 * Construct a new ScratchArea.
+	 * 
+	 * @param parent Directory to create the scratch area in (null for the default one)
+	 * @throws IOException
+	 */
+	public ScratchArea(File parent) throws IOException {
+		if (parent == null) {
+			parent = getDefaultParent();
+		}
+		this.directory = parent != null
+				? Files.createTempDirectory(parent.toPath(), "changeanalyzer").toFile()
+				: Files.createTempDirectory("changeanalyzer").toFile();
+		this.oldFile = new File(this.directory, "revision.old");
+		this.newFile = new File(this.directory, "revision.new");
+	}
+	
+	/**
+	 * Construct a new ScratchArea in the default directory.
+	 * 
+	 * @throws IOException
+	 */
+	public ScratchArea() throws IOException {
+		this(null);
+	}
+	
+	/**
+	 * Get the default directory for scratch areas. It is {@link #SHARED_MEMORY_DIR}
+	 * if it exists and is writable. Otherwise it is null, which stands for
+	 * the default temporary-file directory.
+	 * 
+	 * @return Default directory for scratch areas
+	 */
+	public static File getDefaultParent() {
+		if (SHARED_MEMORY_DIR.isDirectory() && SHARED_MEMORY_DIR.canWrite()) {
+			return SHARED_MEMORY_DIR;
+		}
+		return null;
+	}
+	
+	/**
+	 * Store a new revision. The previously stored revision becomes the old one.
+	 * 
+	 * @param loader Loader of the revision content
+	 * @throws IOException
+	 */
+	public void store(ObjectLoader loader) throws IOException {
+		this.swap();
+		this.write(this.newFile, loader, null);
+	}
+	
+	/**
+	 * Store a new revision. The previously stored revision becomes the old one.
+	 * 
+	 * @param content Content of the revision
+	 * @throws IOException
+	 */
+	public void store(byte[] content) throws IOException {
+		this.swap();
+		this.write(this.newFile, null, content);
+	}
+	
+	/**
+	 * Store an old revision. The previous old revision becomes the new one,
+	 * so revisions can be stored from the newest to the oldest one as well.
+	 * 
+	 * @param loader Loader of the revision content
+	 * @throws IOException
+	 */
+	public void storePrevious(ObjectLoader loader) throws IOException {
+		this.swap();
+		this.write(this.oldFile, loader, null);
+	}
+	
+	/**
+	 * Store an old revision. The previous old revision becomes the new one,
+	 * so revisions can be stored from the newest to the oldest one as well.
+	 * 
+	 * @param content Content of the revision
+	 * @throws IOException
+	 */
+	public void storePrevious(byte[] content) throws IOException {
+		this.swap();
+		this.write(this.oldFile, null, content);
+	}
+	
+	/**
+	 * Swap the old and the new file.
+	 */
+	private void swap() {
+		File file = this.oldFile;
+		this.oldFile = this.newFile;
+		this.newFile = file;
+	}
+	
+	/**
+	 * Write the content of a revision into a scratch file.
+	 * 
+	 * @param file		Scratch file
+	 * @param loader	Loader of the revision content (null if the content is given)
+	 * @param content	Content of the revision (used if no loader is given)
+	 * @throws IOException
+	 */
+	private void write(File file, ObjectLoader loader, byte[] content) throws IOException {
+		OutputStream stream = new FileOutputStream(file);
+		try {
+			if (loader != null) {
+				loader.copyTo(stream);
+			} else {
+				stream.write(content);
+			}
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * Get the file containing the old revision.
+	 * 
+	 * @return File with the revision stored before the last one
+	 */
+	public File getOldFile() {
+		return this.oldFile;
+	}
+	
+	/**
+	 * Get the file containing the new revision.
+	 * 
+	 * @return File with the last stored revision
+	 */
+	public File getNewFile() {
+		return this.newFile;
+	}
+	
+	/**
+	 * Delete the scratch files and their directory.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		Files.deleteIfExists(this.oldFile.toPath());
+		Files.deleteIfExists(this.newFile.toPath());
+		Files.deleteIfExists(this.directory.toPath());
+	}
+
+}
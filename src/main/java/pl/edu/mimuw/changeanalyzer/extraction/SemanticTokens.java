@@ -0,0 +1,197 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.util.Arrays;
+
+
+/**
+ * Fast, token-level comparison of Java sources, used to find pairs of revisions
+ * which differ only in whitespace, imports, the package declaration or comments
+ * outside of type bodies. Such pairs contain no method-level changes, so they
+ * don't have to be distilled.
+ * <p>
+ * A source is normalized by removing comments outside of type bodies, import and
+ * package declarations, and whitespace. Comments inside type bodies (including
+ * javadoc of members) are copied verbatim, since changing them changes comments
+ * or documentation of methods. Whitespace is kept as a single space only between
+ * two identifier characters or two operator characters, so that e.g. "a - -b"
+ * and "a--b" remain different. String and character literals are copied verbatim.
+ * The comparison is conservative: sources with equal normalized forms are surely
+ * equivalent, but some equivalent sources may be reported as different.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class SemanticTokens {
+	
+	private static final byte[] IMPORT = "import".getBytes();
+	private static final byte[] PACKAGE = "package".getBytes();
+	
+	/**
+	 * Check whether two revisions of a Java file differ only in whitespace, imports,
+	 * the package declaration or comments outside of type bodies.
+	 * 
+	 * @param oldContent	Content of the old revision
+	 * @param newContent	Content of the new revision
+	 * @return True iff the revisions are surely equivalent at the method level
+	 */
+	public static boolean areEquivalent(byte[] oldContent, byte[] newContent) {
+		return Arrays.equals(normalize(oldContent), normalize(newContent));
+	}
+	
+	/**
+	 * Normalize a Java source.
+	 * 
+	 * @param source Content of a .java file
+	 * @return Normalized source
+	 */
+	public static byte[] normalize(byte[] source) {
+		byte[] out = new byte[source.length];
+		int length = 0;
+		int depth = 0;
+		boolean statementStart = true;
+		boolean space = false;
+		int i = 0;
+		
+		while (i < source.length) {
+			int c = source[i] & 0xff;
+			int next = i + 1 < source.length ? source[i + 1] & 0xff : -1;
+			
+			if (isWhitespace(c)) {
+				space = true;
+				++i;
+				continue;
+			}
+			
+			int end = i + 1;
+			if (c == '/' && (next == '/' || next == '*')) {
+				end = skipComment(source, i);
+				if (depth == 0) {
+					i = end;
+					space = true;
+					continue;
+				}
+			} else if (isIdentifierPart(c)) {
+				while (end < source.length && isIdentifierPart(source[end] & 0xff)) {
+					++end;
+				}
+				if (depth == 0 && statementStart && (matches(source, i, end, IMPORT) || matches(source, i, end, PACKAGE))) {
+					while (end < source.length && source[end] != ';') {
+						++end;
+					}
+					i = end + 1;
+					space = true;
+					continue;
+				}
+			} else if (c == '"' || c == '\'') {
+				while (end < source.length && source[end] != c && source[end] != '\n') {
+					end += source[end] == '\\' ? 2 : 1;
+				}
+				end = Math.min(end + 1, source.length);
+			}
+			
+			if (space && length > 0 && needsSpace(out[length - 1] & 0xff, c)) {
+				out[length++] = ' ';
+			}
+			System.arraycopy(source, i, out, length, end - i);
+			length += end - i;
+			space = false;
+			
+			if (c == '{') {
+				++depth;
+			} else if (c == '}') {
+				--depth;
+			}
+			statementStart = c == ';' || c == '{' || c == '}';
+			i = end;
+		}
+		return Arrays.copyOf(out, length);
+	}
+	
+	/**
+	 * Find the end of a comment. The end of a line comment includes its line
+	 * terminator, so that a copied comment can't absorb the following tokens.
+	 * 
+	 * @param source	Source
+	 * @param start		Start of the comment
+	 * @return End of the comment (exclusive)
+	 */
+	private static int skipComment(byte[] source, int start) {
+		int end = start + 2;
+		if (source[start + 1] == '/') {
+			while (end < source.length && source[end] != '\n') {
+				++end;
+			}
+		} else {
+			while (end + 1 < source.length && !(source[end] == '*' && source[end + 1] == '/')) {
+				++end;
+			}
+			++end;
+		}
+		return Math.min(end + 1, source.length);
+	}
+	
+	/**
+	 * Check whether a part of a source is equal to a given word.
+	 * 
+	 * @param source	Source
+	 * @param start		Start of the part (inclusive)
+	 * @param end		End of the part (exclusive)
+	 * @param word		Word to compare with
+	 * @return True iff the part is equal to the word
+	 */
+	private static boolean matches(byte[] source, int start, int end, byte[] word) {
+		if (end - start != word.length) {
+			return false;
+		}
+		for (int i = 0; i < word.length; ++i) {
+			if (source[start + i] != word[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Check whether whitespace between two characters has to be kept.
+	 * 
+	 * @param previous	Previous character
+	 * @param next		Next character
+	 * @return True iff the characters could form a single token without the whitespace
+	 */
+	private static boolean needsSpace(int previous, int next) {
+		return (isIdentifierPart(previous) && isIdentifierPart(next))
+				|| (isOperator(previous) && isOperator(next));
+	}
+	
+	/**
+	 * Check whether a character can be a part of a multi-character operator.
+	 * 
+	 * @param c Character (a byte of the source)
+	 * @return True iff the character is an operator character
+	 */
+	private static boolean isOperator(int c) {
+		return "+-*/%=<>!&|^~?:".indexOf(c) >= 0;
+	}
+	
+	/**
+	 * Check whether a character is a whitespace character.
+	 * 
+	 * @param c Character (a byte of the source)
+	 * @return True iff the character is a whitespace character
+	 */
+	private static boolean isWhitespace(int c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+	}
+	
+	/**
+	 * Check whether a character can be a part of an identifier, keyword or number.
+	 * Bytes of multi-byte characters are treated as identifier characters.
+	 * 
+	 * @param c Character (a byte of the source)
+	 * @return True iff the character can be a part of an identifier
+	 */
+	private static boolean isIdentifierPart(int c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '_' || c == '$' || c >= 0x80;
+	}
+
+}
@@ -0,0 +1,54 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import ch.uzh.ifi.seal.changedistiller.model.classifiers.ChangeType;
+import ch.uzh.ifi.seal.changedistiller.model.entities.SourceCodeChange;
+import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
+
+
+/**
+ * Source code change restored from a persistent store (see {@link MethodVersionCodec})
+ * or stripped right after distillation (see {@link #strip(StructureEntityVersion)}).
+ * Only the change type and the root entity (the changed method) are stored, since
+ * this is all the analysis uses. Changed and parent entities are not available.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class StoredSourceCodeChange extends SourceCodeChange {
+	
+	/**
+	 * Construct a new StoredSourceCodeChange.
+	 * 
+	 * @param changeType	Type of the change
+	 * @param rootEntity	Version of the method the change belongs to
+	 */
+	public StoredSourceCodeChange(ChangeType changeType, StructureEntityVersion rootEntity) {
+		this.setChangeType(changeType);
+		this.setRootEntity(rootEntity);
+	}
+	
+	/**
+	 * Create a copy of a method version with {@link StoredSourceCodeChange}s, which
+	 * doesn't reference changed and parent entities (and their ASTs) of the original.
+	 * 
+	 * @param version Method version to be copied
+	 * @return Stripped copy of the version
+	 */
+	public static StructureEntityVersion strip(StructureEntityVersion version) {
+		StructureEntityVersion stripped = new StructureEntityVersion(version.getType(),
+				version.getUniqueName(), version.getModifiers(), version.getVersion());
+		for (SourceCodeChange change: version.getSourceCodeChanges()) {
+			stripped.addSourceCodeChange(new StoredSourceCodeChange(change.getChangeType(), stripped));
+		}
+		return stripped;
+	}
+	
+	/**
+	 * Get the label of this change.
+	 * 
+	 * @return Name of the change type
+	 */
+	public String getLabel() {
+		return this.getChangeType().name();
+	}
+
+}
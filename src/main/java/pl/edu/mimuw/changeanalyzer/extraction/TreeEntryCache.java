@@ -0,0 +1,180 @@
+package pl.edu.mimuw.changeanalyzer.extraction;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+
+/**
+ * Bounded cache of resolved tree entries, mapping (tree ID, entry name) pairs to IDs
+ * of entries. Paths are resolved by descending the trees component by component,
+ * so lookups in neighbouring commits, which share most subtrees, are mostly hits.
+ * Missing entries are cached as well, which makes retries after renames cheap.
+ * <p>
+ * Least recently used entries are evicted when the number of entries exceeds
+ * the limit. Methods of this class are synchronized, so a cache can be shared
+ * by all extraction workers.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class TreeEntryCache {
+	
+	/**
+	 * Default limit of the number of cached entries
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 1 << 16;
+	
+	private static final Entry MISSING = new Entry(ObjectId.zeroId(), 0);
+	
+	private Map<Key, Entry> entries;
+	
+	/**
+	 * Entry of a tree: its ID and its raw file mode.
+	 * 
+	 * @author Adam Wierzbicki
+	 */
+	private static class Entry {
+		
+		private ObjectId id;
+		private int mode;
+		
+		public Entry(ObjectId id, int mode) {
+			this.id = id;
+			this.mode = mode;
+		}
+	
+	}
+	
+	/**
+	 * Key of a cached entry: ID of the containing tree and name of the entry.
+	 * 
+	 * @author Adam Wierzbicki
+	 */
+	private static class Key {
+		
+		private ObjectId treeId;
+		private String name;
+		
+		public Key(ObjectId treeId, String name) {
+			this.treeId = treeId;
+			this.name = name;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return this.treeId.equals(other.treeId) && this.name.equals(other.name);
+		}
+		
+		@Override
+		public int hashCode() {
+			return 31 * this.treeId.hashCode() + this.name.hashCode();
+		}
+	
+	}
+	
+	/**
+	 * Construct a new TreeEntryCache.
+	 * 
+	 * @param maxEntries Limit of the number of cached entries
+	 */
+	@SuppressWarnings("serial")
+	public TreeEntryCache(int maxEntries) {
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return this.size() > maxEntries;
+			}
+		};
+	}
+	
+	/**
+	 * Construct a new TreeEntryCache with the default limit of entries.
+	 */
+	public TreeEntryCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+	
+	/**
+	 * Find the file with a given path in a tree.
+	 * 
+	 * @param reader	Reader to read trees with (it must not be used by other threads)
+	 * @param treeId	ID of the root tree (e.g. of a commit)
+	 * @param path		Path to the file relative to the root tree
+	 * @return ID of the file content (null if the tree doesn't contain such file)
+	 * @throws IOException
+	 */
+	public ObjectId findFile(ObjectReader reader, AnyObjectId treeId, String path) throws IOException {
+		ObjectId currentId = treeId.toObjectId();
+		int start = 0;
+		while (true) {
+			int end = path.indexOf('/', start);
+			boolean last = end < 0;
+			String name = last ? path.substring(start) : path.substring(start, end);
+			
+			Entry entry = this.findEntry(reader, currentId, name);
+			boolean isTree = FileMode.TREE.equals(entry.mode);
+			if (entry == MISSING || isTree == last) {
+				return null;
+			}
+			if (last) {
+				return entry.id;
+			}
+			currentId = entry.id;
+			start = end + 1;
+		}
+	}
+	
+	/**
+	 * Find an entry in a tree, reading the tree if the entry is not cached.
+	 * 
+	 * @param reader	Reader to read the tree with
+	 * @param treeId	ID of the tree
+	 * @param name		Name of the entry
+	 * @return Found entry ({@link #MISSING} if the tree doesn't contain such entry)
+	 * @throws IOException
+	 */
+	private Entry findEntry(ObjectReader reader, ObjectId treeId, String name) throws IOException {
+		Key key = new Key(treeId, name);
+		synchronized (this) {
+			Entry entry = this.entries.get(key);
+			if (entry != null) {
+				return entry;
+			}
+		}
+		
+		Entry entry = MISSING;
+		CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, treeId);
+		while (!parser.eof()) {
+			if (parser.getEntryPathString().equals(name)) {
+				entry = new Entry(parser.getEntryObjectId(), parser.getEntryRawMode());
+				break;
+			}
+			parser.next(1);
+		}
+		
+		synchronized (this) {
+			this.entries.put(key, entry);
+		}
+		return entry;
+	}
+	
+	/**
+	 * Get the number of cached entries.
+	 * 
+	 * @return Number of entries
+	 */
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+}
@@ -0,0 +1,300 @@
+package pl.edu.mimuw.changeanalyzer.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only file of binary records. The file starts with a header containing
+ * a magic number and a format version, followed by records framed as:
+ * payload length (int), CRC32 of the payload (int), payload.
+ * <p>
+ * When a log is opened, all its records are verified. The log is truncated at the
+ * first incomplete or corrupted record, so a write interrupted by a crash loses only
+ * the records which were being appended. A log with a different magic number or
+ * format version is cleared.
+ * <p>
+ * Records may be read and appended by multiple threads concurrently: appending
+ * only reserves space for a record under the lock of the log, and the record is
+ * written outside of it. Other methods are not synchronized.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class RecordLog {
+	
+	/**
+	 * Size of the log header in bytes
+	 */
+	public static final int HEADER_SIZE = 8;
+	
+	/**
+	 * Size of the frame of each record in bytes
+	 */
+	public static final int FRAME_SIZE = 8;
+	
+	private File file;
+	private FileChannel channel;
+	private volatile long length;
+	
+	/**
+	 * Callback receiving records of a log when it is opened.
+	 * 
+	 * @author Adam Wierzbicki
+	 */
+	public interface RecordVisitor {
+		
+		/**
+		 * Visit a valid record.
+		 * 
+		 * @param position	Position of the record in the log
+		 * @param payload	Payload of the record
+		 * @throws IOException
+		 */
+		public void visit(long position, ByteBuffer payload) throws IOException;
+	
+	}
+	
+	/**
+	 * Open a log, creating it if it doesn't exist.
+	 * 
+	 * @param file		Log file
+	 * @param magic		Magic number identifying the kind of the log
+	 * @param version	Version of the format of the records
+	 * @param visitor	Visitor receiving all valid records (may be null)
+	 * @throws IOException
+	 */
+	public RecordLog(File file, int magic, int version, RecordVisitor visitor) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (this.readHeader(magic, version)) {
+				this.length = this.scan(visitor);
+			} else {
+				this.writeHeader(magic, version);
+				this.length = HEADER_SIZE;
+			}
+		} catch (IOException e) {
+			this.channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Read the header of the log and check whether it matches the expected one.
+	 * 
+	 * @param magic		Expected magic number
+	 * @param version	Expected format version
+	 * @return True iff the header exists and matches
+	 * @throws IOException
+	 */
+	private boolean readHeader(int magic, int version) throws IOException {
+		if (this.channel.size() < HEADER_SIZE) {
+			return false;
+		}
+		ByteBuffer header = this.readFully(0, HEADER_SIZE);
+		if (header.getInt() != magic) {
+			System.err.println("Discarding " + this.file + ": not a valid log file");
+			return false;
+		}
+		if (header.getInt() != version) {
+			System.err.println("Discarding " + this.file + ": incompatible format version");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Clear the log and write a new header.
+	 * 
+	 * @param magic		Magic number
+	 * @param version	Format version
+	 * @throws IOException
+	 */
+	private void writeHeader(int magic, int version) throws IOException {
+		this.channel.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(magic).putInt(version).flip();
+		this.writeFully(0, header);
+	}
+	
+	/**
+	 * Verify all records of the log and truncate it at the first invalid one.
+	 * 
+	 * @param visitor Visitor receiving valid records (may be null)
+	 * @return Length of the valid part of the log
+	 * @throws IOException
+	 */
+	private long scan(RecordVisitor visitor) throws IOException {
+		long size = this.channel.size();
+		long position = HEADER_SIZE;
+		while (position < size) {
+			ByteBuffer payload = this.readRecord(position, size);
+			if (payload == null) {
+				System.err.println("Discarding corrupted records of " + this.file + " from position " + position);
+				this.channel.truncate(position);
+				break;
+			}
+			int payloadSize = payload.remaining();
+			if (visitor != null) {
+				visitor.visit(position, payload);
+			}
+			position += FRAME_SIZE + payloadSize;
+		}
+		return position;
+	}
+	
+	/**
+	 * Read and verify a record.
+	 * 
+	 * @param position	Position of the record
+	 * @param size		Size of the log
+	 * @return Payload of the record (null if the record is incomplete or corrupted)
+	 * @throws IOException
+	 */
+	private ByteBuffer readRecord(long position, long size) throws IOException {
+		if (position + FRAME_SIZE > size) {
+			return null;
+		}
+		ByteBuffer frame = this.readFully(position, FRAME_SIZE);
+		int payloadSize = frame.getInt();
+		int checksum = frame.getInt();
+		if (payloadSize < 0 || position + FRAME_SIZE + payloadSize > size) {
+			return null;
+		}
+		ByteBuffer payload = this.readFully(position + FRAME_SIZE, payloadSize);
+		if (checksum(payload) != checksum) {
+			return null;
+		}
+		return payload;
+	}
+	
+	/**
+	 * Read a record. The record is verified again, so corruption of the file
+	 * after opening it is detected.
+	 * 
+	 * @param position Position of the record (as given to {@link RecordVisitor#visit(long, ByteBuffer)}
+	 * 				   or returned by {@link #append(ByteBuffer)})
+	 * @return Payload of the record (null if the record is corrupted)
+	 * @throws IOException
+	 */
+	public ByteBuffer read(long position) throws IOException {
+		return this.readRecord(position, this.length);
+	}
+	
+	/**
+	 * Append a record to the log. The record can be read as soon as this method returns.
+	 * 
+	 * @param payload Payload of the record (from its position to its limit)
+	 * @return Position of the appended record
+	 * @throws IOException
+	 */
+	public long append(ByteBuffer payload) throws IOException {
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+		frame.putInt(payload.remaining()).putInt(checksum(payload)).flip();
+		
+		long position = this.reserve(FRAME_SIZE + payload.remaining());
+		this.writeFully(position, frame);
+		this.writeFully(position + FRAME_SIZE, payload);
+		return position;
+	}
+	
+	/**
+	 * Reserve space for a record at the end of the log.
+	 * 
+	 * @param size Size of the record (including its frame)
+	 * @return Position of the reserved space
+	 */
+	private synchronized long reserve(int size) {
+		long position = this.length;
+		this.length = position + size;
+		return position;
+	}
+	
+	/**
+	 * Get the length of the log (including its header).
+	 * 
+	 * @return Length in bytes
+	 */
+	public long length() {
+		return this.length;
+	}
+	
+	/**
+	 * Get the file of the log.
+	 * 
+	 * @return Log file
+	 */
+	public File getFile() {
+		return this.file;
+	}
+	
+	/**
+	 * Force all appended records to be written to the storage device.
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException {
+		this.channel.force(false);
+	}
+	
+	/**
+	 * Close the log.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		this.channel.close();
+	}
+	
+	/**
+	 * Read a part of the log into a new buffer.
+	 * 
+	 * @param position	Position to start reading from
+	 * @param size		Number of bytes to read
+	 * @return Buffer ready for reading
+	 * @throws IOException
+	 */
+	private ByteBuffer readFully(long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (this.channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of " + this.file);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * Write the content of a buffer into the log.
+	 * 
+	 * @param position	Position to start writing at
+	 * @param buffer	Buffer to be written (from its position to its limit)
+	 * @throws IOException
+	 */
+	private void writeFully(long position, ByteBuffer buffer) throws IOException {
+		long offset = position - buffer.position();
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer, offset + buffer.position());
+		}
+	}
+	
+	/**
+	 * Compute the CRC32 checksum of the content of a buffer. The buffer position
+	 * is not changed.
+	 * 
+	 * @param buffer Buffer to compute checksum of
+	 * @return Checksum
+	 */
+	private static int checksum(ByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate());
+		return (int) crc.getValue();
+	}
+
+}
@@ -1,10 +1,6 @@
 package pl.edu.mimuw.changeanalyzer.models;
 
 import java.util.Arrays;
-import java.util.EnumMap;
-import java.util.Map;
-
-import org.apache.commons.lang3.ArrayUtils;
 
 import ch.uzh.ifi.seal.changedistiller.model.classifiers.ChangeType;
 import ch.uzh.ifi.seal.changedistiller.model.entities.SourceCodeChange;
@@ -13,19 +9,23 @@ import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
 
 /**
  * Simple class for counting code changes of different types. It holds
- * a separate, internal counter for each change type.
+ * a separate, internal counter for each change type (indexed by ordinals
+ * of change types) and a running total of all counters.
  * 
  * @author Adam Wierzbicki
  */
 public class ChangeCounter {
 	
-	private Map<ChangeType, Integer> counters;
+	private static final ChangeType[] CHANGE_TYPES = ChangeType.values();
+	
+	private int[] counters;
+	private int totalSum;
 	
 	/**
 	 * Construct a new, zero-initialized counter.
 	 */
 	public ChangeCounter() {
-		this.counters = new EnumMap<ChangeType, Integer>(ChangeType.class);
+		this.counters = new int[CHANGE_TYPES.length];
 	}
 	
 	/**
@@ -34,7 +34,8 @@ public class ChangeCounter {
 	 * @return This counter
 	 */
 	public ChangeCounter reset() {
-		this.counters.clear();
+		Arrays.fill(this.counters, 0);
+		this.totalSum = 0;
 		return this;
 	}
 	
@@ -45,9 +46,8 @@ public class ChangeCounter {
 	 * @return Total count of changes of this type
 	 */
 	public int countChange(SourceCodeChange change) {
-		ChangeType changeType = change.getChangeType();
-		this.counters.compute(changeType, (k, v) -> (v == null) ? 1 : v + 1);
-		return this.getCount(changeType);
+		this.totalSum++;
+		return ++this.counters[change.getChangeType().ordinal()];
 	}
 	
 	/**
@@ -63,14 +63,29 @@ public class ChangeCounter {
 		return this.getCounts();
 	}
 	
+	/**
+	 * Count all changes in a version of a compact method history.
+	 * 
+	 * @param history	Compact method history
+	 * @param version	Index of the version containing changes to be counted
+	 * @return This counter
+	 */
+	public ChangeCounter countChanges(CompactMethodHistory history, int version) {
+		for (int i = 0; i < history.getNumChangeTypes(version); ++i) {
+			int changeCount = history.getChangeCount(version, i);
+			this.counters[history.getChangeTypeOrdinal(version, i)] += changeCount;
+			this.totalSum += changeCount;
+		}
+		return this;
+	}
+	
 	/**
 	 * Get all counts of changes.
 	 * 
-	 * @return Array containing total counts of all types of changes
+	 * @return Array containing total counts of all types of changes (indexed by ordinals of change types)
 	 */
 	public int[] getCounts() {
-		Integer[] counts = Arrays.stream(ChangeType.values()).map(this::getCount).toArray(Integer[]::new);
-		return ArrayUtils.toPrimitive(counts);
+		return Arrays.copyOf(this.counters, this.counters.length);
 	}
 	
 	/**
@@ -80,7 +95,17 @@ public class ChangeCounter {
 	 * @return Total count of changes of the given type
 	 */
 	public int getCount(ChangeType changeType) {
-		return this.counters.getOrDefault(changeType, 0);
+		return this.counters[changeType.ordinal()];
+	}
+	
+	/**
+	 * Get count of changes of a given type.
+	 * 
+	 * @param ordinal Ordinal of the change type to get count
+	 * @return Total count of changes of the given type
+	 */
+	public int getCount(int ordinal) {
+		return this.counters[ordinal];
 	}
 	
 	/**
@@ -89,7 +114,7 @@ public class ChangeCounter {
 	 * @return Total sum of all counters
 	 */
 	public int getTotalSum() {
-		return this.counters.values().stream().mapToInt(Integer::valueOf).sum();
+		return this.totalSum;
 	}
 	
 	/**
@@ -98,7 +123,10 @@ public class ChangeCounter {
 	 * @param counter Counter to be added
 	 */
 	public void add(ChangeCounter counter) {
-		counter.counters.forEach((k, v) -> this.counters.merge(k, v, Integer::sum));
+		for (int i = 0; i < this.counters.length; ++i) {
+			this.counters[i] += counter.counters[i];
+		}
+		this.totalSum += counter.totalSum;
 	}
 	
 }
@@ -0,0 +1,39 @@
+package pl.edu.mimuw.changeanalyzer.models;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+
+/**
+ * Store of compact method histories read by a {@link DataSetBuilder}, which
+ * are kept until instances are built. Histories are iterated in order of adding.
+ * Iterators of stores keeping histories outside of the heap throw
+ * an {@link UncheckedIOException} if reading fails.
+ * 
+ * @author Adam Wierzbicki
+ */
+public interface ChangeStore extends Iterable<CompactMethodHistory> {
+	
+	/**
+	 * Add a method history to this store.
+	 * 
+	 * @param history Compact method history to be added
+	 * @throws IOException
+	 */
+	public void add(CompactMethodHistory history) throws IOException;
+	
+	/**
+	 * Remove all method histories from this store. The store can be used again.
+	 * 
+	 * @throws IOException
+	 */
+	public void clear() throws IOException;
+	
+	/**
+	 * Release resources held by this store.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+
+}
@@ -1,21 +1,20 @@
 package pl.edu.mimuw.changeanalyzer.models;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
-import pl.edu.mimuw.changeanalyzer.exceptions.DataSetBuilderException;
-import pl.edu.mimuw.changeanalyzer.extraction.CommitInfo;
 import pl.edu.mimuw.changeanalyzer.models.measures.BugPronenessMeasure;
 import weka.core.Attribute;
 import weka.core.Instance;
-import ch.uzh.ifi.seal.changedistiller.model.entities.MethodHistory;
-import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
 
 /**
  * Data set builder that processes commits in chunks separated by bug-fixes. 
  * The last commit in a chunk is considered most bug-prone and every previous
  * one is assigned a lower value. Providing multiple bug-proneness scores is
  * possible by adding multiple bug-proneness measures to the builder.
+ * <p>
+ * A chunk is a range of consecutive versions of a {@link CompactMethodHistory}.
  * 
  * @author Adam Wierzbicki
  */
@@ -24,6 +23,7 @@ public abstract class ChunkDataSetBuilder extends DataSetBuilder {
 	private final boolean bugfixesIncluded;
 	private List<Instance> resultBuffer;
 	private List<BugPronenessMeasure> measures;
+	private int[] measureIndices;
 	
 	/**
 	 * Construct a new chunk data set builder.
@@ -35,32 +35,44 @@ public abstract class ChunkDataSetBuilder extends DataSetBuilder {
 		this.bugfixesIncluded = bugfixesIncluded;
 		this.resultBuffer = new LinkedList<Instance>();
 		this.measures = new LinkedList<BugPronenessMeasure>();
+		this.measureIndices = new int[0];
+	}
+	
+	/**
+	 * Construct a worker chunk data set builder (see {@link DataSetBuilder#createWorker()}).
+	 * Measures of the given builder are copied, indices of their attributes are shared.
+	 * 
+	 * @param prototype Builder to share tables with
+	 */
+	protected ChunkDataSetBuilder(ChunkDataSetBuilder prototype) {
+		super(prototype);
+		this.bugfixesIncluded = prototype.bugfixesIncluded;
+		this.resultBuffer = new LinkedList<Instance>();
+		this.measures = new LinkedList<BugPronenessMeasure>();
+		for (BugPronenessMeasure measure: prototype.measures) {
+			this.measures.add(measure.copy());
+		}
+		this.measureIndices = prototype.measureIndices;
 	}
 	
 	@Override
-	public Iterable<Instance> buildInstances(MethodHistory history) throws DataSetBuilderException {
-		List<StructureEntityVersion> workingBuffer = new LinkedList<StructureEntityVersion>();
-		
-		CommitInfo lastFix = null;
-		for (StructureEntityVersion version: history.getVersions()) {
-			CommitInfo commitInfo = this.getCommitInfo(version);
-			if (commitInfo == null) {
-				throw new DataSetBuilderException("Commit " + version.getVersion() + " not found");
-			}
-			if (!commitInfo.isFix() || this.bugfixesIncluded){
-				workingBuffer.add(version);
-			}
-			if (commitInfo.isFix()) {
-				this.resetMeasures(workingBuffer);
-				this.processChunk(workingBuffer, lastFix, true);
-				workingBuffer = new LinkedList<StructureEntityVersion>();
-				lastFix = commitInfo;
+	public Iterable<Instance> buildInstances(CompactMethodHistory history) {
+		int chunkStart = 0;
+		int lastFix = -1;
+		for (int version = 0; version < history.getNumVersions(); ++version) {
+			int commit = history.getCommitIndex(version);
+			if (this.commits.isFix(commit)) {
+				int chunkEnd = this.bugfixesIncluded ? version + 1 : version;
+				this.resetMeasures(history, chunkStart, chunkEnd);
+				this.processChunk(history, chunkStart, chunkEnd, lastFix, true);
+				chunkStart = version + 1;
+				lastFix = commit;
 			}
 		}
 		
-		if (!workingBuffer.isEmpty()) {
-			this.resetMeasures(workingBuffer);
-			this.processChunk(workingBuffer, lastFix, false);
+		if (chunkStart < history.getNumVersions()) {
+			this.resetMeasures(history, chunkStart, history.getNumVersions());
+			this.processChunk(history, chunkStart, history.getNumVersions(), lastFix, false);
 		}
 		
 		return this.flushResultBuffer();
@@ -69,16 +81,17 @@ public abstract class ChunkDataSetBuilder extends DataSetBuilder {
 	/**
 	 * Get a new instance.
 	 * 
-	 * @param version		Method version object to extract name & commit ID from
-	 * @param index			Index of the given version in its chunk
+	 * @param history		Compact method history to extract method name from
+	 * @param index			Index of a version in its chunk
 	 * @param chunkIsFixed	Flag indicating if the chunk containing the given version
 	 * 						is followed by a bugfix commit
 	 * @return A new instace
 	 */
-	protected Instance getInstance(StructureEntityVersion version, int index, boolean chunkIsFixed) {
-		Instance instance = this.getInstance(version);
+	protected Instance getInstance(CompactMethodHistory history, int index, boolean chunkIsFixed) {
+		Instance instance = this.getInstance(history);
+		int measureIndex = 0;
 		for (BugPronenessMeasure measure: this.measures) {
-			int attributeIndex = this.attributes.getAttributeIndex(measure.getName());
+			int attributeIndex = this.measureIndices[measureIndex++];
 			if (chunkIsFixed) {
 				double bugProneness = measure.getBugProneness(index);
 				instance.setValue(attributeIndex, bugProneness);
@@ -97,6 +110,8 @@ public abstract class ChunkDataSetBuilder extends DataSetBuilder {
 	 */
 	public ChunkDataSetBuilder addMeasure(BugPronenessMeasure measure) {
 		this.measures.add(measure);
+		this.measureIndices = Arrays.copyOf(this.measureIndices, this.measureIndices.length + 1);
+		this.measureIndices[this.measureIndices.length - 1] = this.attributes.getNumAttributes();
 		this.attributes.addAttribute(new Attribute(measure.getName()));
 		return this;
 	}
@@ -104,11 +119,13 @@ public abstract class ChunkDataSetBuilder extends DataSetBuilder {
 	/**
 	 * Notify all bug-proneness measures that processing of a new chunk begins.
 	 * 
-	 * @param chunk New chunk to be processed
+	 * @param history	Compact method history containing the chunk
+	 * @param from		Index of the first version of the chunk
+	 * @param to		Index of the version following the chunk
 	 */
-	protected void resetMeasures(List<StructureEntityVersion> chunk) {
+	protected void resetMeasures(CompactMethodHistory history, int from, int to) {
 		for (BugPronenessMeasure measure: this.measures) {
-			measure.startNewChunk(chunk);
+			measure.startNewChunk(history, from, to);
 		}
 	}
 	
@@ -144,11 +161,14 @@ public abstract class ChunkDataSetBuilder extends DataSetBuilder {
 	/**
 	 * Process a chunk of method versions.
 	 * 
-	 * @param versions	Method versions to be processed
-	 * @param lastFix	Information about last fix before this chunk
-	 * 					(null if the given chunk is the fist one in a method history)
+	 * @param history	Compact method history containing the chunk
+	 * @param from		Index of the first version of the chunk
+	 * @param to		Index of the version following the chunk
+	 * @param lastFix	Index of the last fix before this chunk
+	 * 					(-1 if the given chunk is the fist one in a method history)
 	 * @param isFixed	Is this chunk ended with a bug-fixing commit
 	 */
-	protected abstract void processChunk(List<StructureEntityVersion> versions, CommitInfo lastFix, boolean isFixed);
+	protected abstract void processChunk(CompactMethodHistory history, int from, int to,
+			int lastFix, boolean isFixed);
 	
 }
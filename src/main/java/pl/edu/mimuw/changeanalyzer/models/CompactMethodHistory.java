@@ -0,0 +1,167 @@
+package pl.edu.mimuw.changeanalyzer.models;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ch.uzh.ifi.seal.changedistiller.model.classifiers.ChangeType;
+import ch.uzh.ifi.seal.changedistiller.model.entities.SourceCodeChange;
+import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
+
+
+/**
+ * Compact, primitive representation of a method history, holding only what
+ * data set builders use: the method ID (see {@link MethodNameTable}), and for each
+ * version the index of its commit and numbers of its changes of each type.
+ * <p>
+ * Numbers of changes are stored sparsely, since a version usually contains
+ * changes of few types only. Each (change type, count) pair is packed into
+ * a single int: the count in the upper 24 bits and the {@link ChangeType}
+ * ordinal in the lower 8 bits.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class CompactMethodHistory {
+	
+	private static final int ORDINAL_BITS = 8;
+	private static final int ORDINAL_MASK = (1 << ORDINAL_BITS) - 1;
+	
+	private int methodId;
+	private int[] commits;
+	private int[] offsets;
+	private int[] changes;
+	
+	/**
+	 * Construct a new CompactMethodHistory.
+	 * 
+	 * @param methodId	ID of the method
+	 * @param commits	Indices of commits of versions, from the oldest to the newest one
+	 * @param offsets	Offsets of changes of versions in the change array, followed by its length
+	 * @param changes	Packed (change type, count) pairs of all versions
+	 */
+	public CompactMethodHistory(int methodId, int[] commits, int[] offsets, int[] changes) {
+		this.methodId = methodId;
+		this.commits = commits;
+		this.offsets = offsets;
+		this.changes = changes;
+	}
+	
+	/**
+	 * Create a compact history from versions of a method.
+	 * 
+	 * @param methodId	ID of the method
+	 * @param commits	Indices of commits of the versions
+	 * @param versions	Versions of the method, from the oldest to the newest one
+	 * @return Compact method history
+	 */
+	public static CompactMethodHistory create(int methodId, int[] commits, List<StructureEntityVersion> versions) {
+		int[] counts = new int[ChangeType.values().length];
+		int[] offsets = new int[versions.size() + 1];
+		int[] changes = new int[versions.size()];
+		int numChanges = 0;
+		int index = 0;
+		
+		for (StructureEntityVersion version: versions) {
+			for (SourceCodeChange change: version.getSourceCodeChanges()) {
+				++counts[change.getChangeType().ordinal()];
+			}
+			offsets[index++] = numChanges;
+			for (int ordinal = 0; ordinal < counts.length; ++ordinal) {
+				if (counts[ordinal] > 0) {
+					if (numChanges == changes.length) {
+						changes = Arrays.copyOf(changes, 2 * changes.length + 1);
+					}
+					changes[numChanges++] = (counts[ordinal] << ORDINAL_BITS) | ordinal;
+					counts[ordinal] = 0;
+				}
+			}
+		}
+		offsets[index] = numChanges;
+		return new CompactMethodHistory(methodId, commits, offsets, Arrays.copyOf(changes, numChanges));
+	}
+	
+	/**
+	 * Get ID of the method.
+	 * 
+	 * @return Method ID
+	 */
+	public int getMethodId() {
+		return this.methodId;
+	}
+	
+	/**
+	 * Get the number of versions of the method.
+	 * 
+	 * @return Number of versions
+	 */
+	public int getNumVersions() {
+		return this.commits.length;
+	}
+	
+	/**
+	 * Get the index of the commit of a version.
+	 * 
+	 * @param version Index of the version
+	 * @return Commit index
+	 */
+	public int getCommitIndex(int version) {
+		return this.commits[version];
+	}
+	
+	/**
+	 * Get the number of change types present in a version.
+	 * 
+	 * @param version Index of the version
+	 * @return Number of change types
+	 */
+	public int getNumChangeTypes(int version) {
+		return this.offsets[version + 1] - this.offsets[version];
+	}
+	
+	/**
+	 * Get the ordinal of a change type present in a version.
+	 * 
+	 * @param version	Index of the version
+	 * @param i			Index of the change type among types present in the version
+	 * @return Ordinal of the change type
+	 */
+	public int getChangeTypeOrdinal(int version, int i) {
+		return this.changes[this.offsets[version] + i] & ORDINAL_MASK;
+	}
+	
+	/**
+	 * Get the number of changes of a type present in a version.
+	 * 
+	 * @param version	Index of the version
+	 * @param i			Index of the change type among types present in the version
+	 * @return Number of changes of the type
+	 */
+	public int getChangeCount(int version, int i) {
+		return this.changes[this.offsets[version] + i] >>> ORDINAL_BITS;
+	}
+	
+	/**
+	 * Get a packed (change type, count) pair present in a version.
+	 * 
+	 * @param version	Index of the version
+	 * @param i			Index of the change type among types present in the version
+	 * @return Packed pair
+	 */
+	int getPackedChange(int version, int i) {
+		return this.changes[this.offsets[version] + i];
+	}
+	
+	/**
+	 * Get the total number of changes in a version.
+	 * 
+	 * @param version Index of the version
+	 * @return Number of changes
+	 */
+	public int getNumChanges(int version) {
+		int numChanges = 0;
+		for (int i = this.offsets[version]; i < this.offsets[version + 1]; ++i) {
+			numChanges += this.changes[i] >>> ORDINAL_BITS;
+		}
+		return numChanges;
+	}
+
+}
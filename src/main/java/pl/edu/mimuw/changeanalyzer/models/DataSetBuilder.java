@@ -1,21 +1,25 @@
 package pl.edu.mimuw.changeanalyzer.models;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
+import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.revwalk.RevCommit;
 
 import pl.edu.mimuw.changeanalyzer.exceptions.DataSetBuilderException;
-import pl.edu.mimuw.changeanalyzer.extraction.AuthorInfo;
-import pl.edu.mimuw.changeanalyzer.extraction.AuthorInfoExtractor;
-import pl.edu.mimuw.changeanalyzer.extraction.CommitInfo;
-import pl.edu.mimuw.changeanalyzer.extraction.CommitInfoExtractor;
+import pl.edu.mimuw.changeanalyzer.extraction.AuthorTable;
+import pl.edu.mimuw.changeanalyzer.extraction.CommitTable;
+import pl.edu.mimuw.changeanalyzer.extraction.Mailmap;
 import pl.edu.mimuw.changeanalyzer.models.attributes.Attributes;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.SparseInstance;
 import ch.uzh.ifi.seal.changedistiller.model.classifiers.ChangeType;
 import ch.uzh.ifi.seal.changedistiller.model.entities.MethodHistory;
 import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
@@ -27,33 +31,95 @@ import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
  * and provides methods to produce instances with this attributes. Created 
  * instaces may represent commits, groups of commits, method snapshots, etc.
  * depending on the model used by a concrete builder.
+ * <p>
+ * Method histories are turned into {@link CompactMethodHistory} objects before
+ * instances are built, so that read histories don't retain ChangeDistiller's
+ * entity versions and changes. Read histories are kept in a {@link ChangeStore}.
+ * Method names are kept in a {@link MethodNameTable} of the builder, which also
+ * serves as the string attribute of produced instances, so values of this attribute
+ * are simply method IDs.
+ * <p>
+ * Instances may be built in parallel (see {@link #setParallelism(int)}). Each thread
+ * then uses its own worker builder (see {@link #createWorker()}), which shares read-only
+ * tables of commits, authors and method names with this builder. Histories are processed
+ * in batches, and instances built from a batch are passed on in order of the histories,
+ * so the result doesn't depend on the number of threads.
  * 
  * @author Adam Wierzbicki
  */
 public abstract class DataSetBuilder {
 	
-	public static final Attribute METHOD_NAME = new Attribute("methodName", (List<String>) null);
+	public static final String METHOD_NAME = "methodName";
 	
-	protected CommitInfoExtractor commitExtractor;
-	protected AuthorInfoExtractor authorExtractor;
+	private static final ChangeType[] CHANGE_TYPES = ChangeType.values();
+	
+	/**
+	 * Number of method histories processed in parallel at once
+	 */
+	public static final int BATCH_SIZE = 1024;
+	
+	protected CommitTable commits;
+	protected AuthorTable authors;
 	protected ChangeCounter changeCounter;
 	protected Attributes attributes;
+	private int methodNameIndex;
+	private int[] changeTypeIndices;
+	private MethodNameTable methodNames;
+	private ChangeStore methodHistories;
+	private boolean sparse;
+	private int parallelism;
+	private ForkJoinPool pool;
+	private ThreadLocal<DataSetBuilder> workers;
 	
 	/**
 	 * Default constructor.
 	 */
 	public DataSetBuilder() {
-		this.commitExtractor = new CommitInfoExtractor();
-		this.authorExtractor = new AuthorInfoExtractor();
+		this.commits = new CommitTable();
+		this.authors = this.commits.getAuthorTable();
 		this.changeCounter = new ChangeCounter();
 		this.attributes = new Attributes();
+		this.methodNames = new MethodNameTable(METHOD_NAME);
+		this.methodHistories = new HeapChangeStore();
+		this.parallelism = 1;
 		
-		this.attributes.addAttribute(METHOD_NAME);
-		for (ChangeType changeType: ChangeType.values()) {
+		this.methodNameIndex = this.attributes.getNumAttributes();
+		this.attributes.addAttribute(this.methodNames.getAttribute());
+		this.changeTypeIndices = new int[CHANGE_TYPES.length];
+		for (ChangeType changeType: CHANGE_TYPES) {
+			this.changeTypeIndices[changeType.ordinal()] = this.attributes.getNumAttributes();
 			this.attributes.addAttribute(new Attribute(changeType.name()));
 		}
 	}
 	
+	/**
+	 * Construct a worker builder, which shares tables of commits, authors and method
+	 * names as well as attributes with a given builder, but has its own state.
+	 * 
+	 * @param prototype Builder to share tables with
+	 */
+	protected DataSetBuilder(DataSetBuilder prototype) {
+		this.commits = prototype.commits;
+		this.authors = prototype.authors;
+		this.changeCounter = new ChangeCounter();
+		this.attributes = prototype.attributes;
+		this.methodNameIndex = prototype.methodNameIndex;
+		this.changeTypeIndices = prototype.changeTypeIndices;
+		this.methodNames = prototype.methodNames;
+		this.methodHistories = new HeapChangeStore();
+		this.sparse = prototype.sparse;
+		this.parallelism = 1;
+	}
+	
+	/**
+	 * Create a worker builder used by a single thread of a parallel build.
+	 * The worker should be created with {@link #DataSetBuilder(DataSetBuilder)}
+	 * and have the same settings (e.g. measures) as this builder.
+	 * 
+	 * @return A new worker builder
+	 */
+	protected abstract DataSetBuilder createWorker();
+	
 	/**
 	 * Get attributes of instances produced by this builder.
 	 * 
@@ -81,6 +147,60 @@ public abstract class DataSetBuilder {
 		return this.attributes.copyOf();
 	}
 	
+	/**
+	 * Set the store keeping read method histories until instances are built.
+	 * Histories already read are not moved to the new store.
+	 * 
+	 * @param store Store of compact method histories
+	 * @return This object
+	 */
+	public DataSetBuilder setChangeStore(ChangeStore store) {
+		this.methodHistories = store;
+		return this;
+	}
+	
+	/**
+	 * Set whether this builder produces sparse instances (see {@link SparseInstance}),
+	 * which store only non-zero values. Most change counts of a method version are zero,
+	 * so sparse instances take much less memory, and they are saved as sparse ARFF.
+	 * Disabled by default.
+	 * 
+	 * @param sparse True iff sparse instances should be produced
+	 * @return This object
+	 */
+	public DataSetBuilder setSparse(boolean sparse) {
+		this.sparse = sparse;
+		return this;
+	}
+	
+	/**
+	 * Set the number of threads building instances. Produced instances are the same
+	 * and come in the same order regardless of the number of threads.
+	 * 
+	 * @param parallelism Number of threads (at least 1)
+	 * @return This object
+	 */
+	public DataSetBuilder setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Number of threads must be positive: " + parallelism);
+		}
+		this.parallelism = parallelism;
+		return this;
+	}
+	
+	/**
+	 * Set the mapping of author identities (see {@link Mailmap}), so that different
+	 * spellings of the same author are counted as one author. It should be set
+	 * before commits are read.
+	 * 
+	 * @param mailmap Mapping of author identities
+	 * @return This object
+	 */
+	public DataSetBuilder setMailmap(Mailmap mailmap) {
+		this.authors.setMailmap(mailmap);
+		return this;
+	}
+	
 	/**
 	 * Read commits & store information needed for processing method histories.
 	 * This method should be called before invoking buildInstances or buildDataSet,
@@ -91,11 +211,50 @@ public abstract class DataSetBuilder {
 	 */
 	public DataSetBuilder readCommits(Iterable<RevCommit> commits) {
 		for (RevCommit commit: commits) {
-			this.commitExtractor.extractCommitInfo(commit);
+			this.commits.add(commit);
 		}
 		return this;
 	}
 	
+	/**
+	 * Get information about all read commits, including numbers of their changes
+	 * counted so far.
+	 * 
+	 * @return Table of read commits
+	 */
+	public CommitTable getCommitTable() {
+		return this.commits;
+	}
+	
+	/**
+	 * Add numbers of changes counted elsewhere (e.g. by another process extracting
+	 * a different shard of files) to the totals of a commit.
+	 * 
+	 * @param commitId		ID of the commit
+	 * @param numChanges	Number of changes
+	 * @param numEntities	Number of changed entities
+	 * @return This object
+	 * @throws DataSetBuilderException If the commit has not been read
+	 */
+	public DataSetBuilder addChangeTotals(AnyObjectId commitId, int numChanges, int numEntities)
+			throws DataSetBuilderException {
+		
+		int index = this.commits.getIndex(commitId);
+		if (index < 0) {
+			throw new DataSetBuilderException("Commit " + commitId.name() + " not found");
+		}
+		this.commits.addChanges(index, numChanges, numEntities);
+		return this;
+	}
+	
+	/**
+	 * Build model instances from a given compact method history.
+	 * 
+	 * @param history Compact method history to build instaces from
+	 * @return An iterable of model instances
+	 */
+	public abstract Iterable<Instance> buildInstances(CompactMethodHistory history);
+	
 	/**
 	 * Build model instances from a given method history. Prior to calling this
 	 * method, builder should be supplied with all commits referenced by this
@@ -105,37 +264,263 @@ public abstract class DataSetBuilder {
 	 * @return An iterable of model instances
 	 * @throws DataSetBuilderException If a commit referenced in the method history is not found
 	 */
-	public abstract Iterable<Instance> buildInstances(MethodHistory history) throws DataSetBuilderException;
+	public Iterable<Instance> buildInstances(MethodHistory history) throws DataSetBuilderException {
+		return this.buildInstances(this.compact(history));
+	}
 	
 	/**
-	 * Build model instances from given method histories. Prior to calling this
+	 * Turn a method history into its compact representation. Prior to calling this
 	 * method, builder should be supplied with all commits referenced by this
-	 * methods' histories.
+	 * method's history.
 	 * 
-	 * @param histories Method histories to build instaces from
-	 * @return An iterable of model instances
+	 * @param history Method history to be compacted
+	 * @return Compact method history
+	 * @throws DataSetBuilderException If a commit referenced in the method history is not found
+	 */
+	public CompactMethodHistory compact(MethodHistory history) throws DataSetBuilderException {
+		List<StructureEntityVersion> versions = history.getVersions();
+		int[] commitIndices = new int[versions.size()];
+		int index = 0;
+		for (StructureEntityVersion version: versions) {
+			commitIndices[index++] = this.getCommitIndex(version);
+		}
+		int methodId = this.methodNames.getId(history.getUniqueName());
+		return CompactMethodHistory.create(methodId, commitIndices, versions);
+	}
+	
+	/**
+	 * Get the index of the commit of a method version.
+	 * 
+	 * @param version Method version
+	 * @return Commit index
+	 * @throws DataSetBuilderException If the commit has not been read
+	 */
+	private int getCommitIndex(StructureEntityVersion version) throws DataSetBuilderException {
+		int index = this.commits.getIndex(version.getVersion());
+		if (index < 0) {
+			throw new DataSetBuilderException("Commit " + version.getVersion() + " not found");
+		}
+		return index;
+	}
+	
+	/**
+	 * Read method histories & add numbers of their changes to totals of commits.
+	 * Method histories may be read in parts (e.g. as soon as they are extracted),
+	 * but all of them must be read before building instances. Prior to calling
+	 * this method, builder should be supplied with all commits referenced by
+	 * this methods' histories.
+	 * 
+	 * @param histories Method histories to be read
+	 * @return This object
+	 * @throws DataSetBuilderException If a commit referenced in the method history is not found
+	 * @throws IOException If the store of read histories fails
+	 */
+	public DataSetBuilder readMethodHistories(Iterable<MethodHistory> histories)
+			throws DataSetBuilderException, IOException {
+		
+		for (MethodHistory history: histories) {
+			this.countChanges(history);
+			this.methodHistories.add(this.compact(history));
+		}
+		return this;
+	}
+	
+	/**
+	 * Add numbers of changes of method histories to totals of commits without
+	 * retaining the histories. Instances have to be built afterwards from the
+	 * same histories (see {@link #buildCountedInstances(Iterable, InstanceConsumer)}).
+	 * Prior to calling this method, builder should be supplied with all commits
+	 * referenced by this methods' histories.
+	 * 
+	 * @param histories Method histories to be counted
+	 * @return This object
 	 * @throws DataSetBuilderException If a commit referenced in the method history is not found
 	 */
-	public Iterable<Instance> buildInstances(Iterable<MethodHistory> histories) throws DataSetBuilderException {
+	public DataSetBuilder countChanges(Iterable<MethodHistory> histories) throws DataSetBuilderException {
 		for (MethodHistory history: histories) {
-			for (StructureEntityVersion version: history.getVersions()) {
-				this.commitExtractor.updateNumChanges(version);
+			this.countChanges(history);
+		}
+		return this;
+	}
+	
+	/**
+	 * Add numbers of changes of a method history to totals of commits.
+	 * 
+	 * @param history Method history to be counted
+	 * @throws DataSetBuilderException If a commit referenced in the method history is not found
+	 */
+	private void countChanges(MethodHistory history) throws DataSetBuilderException {
+		for (StructureEntityVersion version: history.getVersions()) {
+			this.commits.addChangedEntity(this.getCommitIndex(version), version.getSourceCodeChanges().size());
+		}
+	}
+	
+	/**
+	 * Recompute totals of authors (numbers of commits & changes) from totals of all commits.
+	 */
+	private void updateAuthorInfos() {
+		this.authors.resetTotals();
+		for (int commit = 0; commit < this.commits.size(); ++commit) {
+			this.authors.addCommit(this.commits.getAuthorId(commit), this.commits.getNumChanges(commit));
+		}
+	}
+	
+	/**
+	 * Build model instances from method histories whose changes have already been
+	 * counted (see {@link #countChanges(Iterable)}) and pass them to a consumer
+	 * as soon as they are built. Unlike {@link #buildInstances()}, this method doesn't
+	 * keep histories nor instances in memory, so histories may be read lazily.
+	 * 
+	 * @param histories	Counted method histories to build instances from
+	 * @param consumer	Consumer of built instances
+	 * @throws DataSetBuilderException If a commit referenced in the method history is not found
+	 * @throws IOException If the consumer fails
+	 */
+	public void buildCountedInstances(Iterable<MethodHistory> histories, InstanceConsumer consumer)
+			throws DataSetBuilderException, IOException {
+		
+		this.updateAuthorInfos();
+		this.startWorkers();
+		try {
+			List<CompactMethodHistory> batch = new ArrayList<CompactMethodHistory>();
+			for (MethodHistory history: histories) {
+				batch.add(this.compact(history));
+				this.buildBatch(batch, consumer, false);
 			}
+			this.buildBatch(batch, consumer, true);
+		} finally {
+			this.stopWorkers();
 		}
+	}
+	
+	/**
+	 * Build model instances from all read method histories and pass them to
+	 * a consumer as soon as they are built. Read histories are released afterwards.
+	 * 
+	 * @param consumer Consumer of built instances
+	 * @throws IOException If the consumer or the store of read histories fails
+	 */
+	public void buildReadInstances(InstanceConsumer consumer) throws IOException {
+		this.updateAuthorInfos();
+		this.startWorkers();
+		try {
+			List<CompactMethodHistory> batch = new ArrayList<CompactMethodHistory>();
+			for (CompactMethodHistory history: this.methodHistories) {
+				batch.add(history);
+				this.buildBatch(batch, consumer, false);
+			}
+			this.buildBatch(batch, consumer, true);
+		} finally {
+			this.stopWorkers();
+		}
+		this.methodHistories.clear();
+	}
+	
+	/**
+	 * Start the pool of threads building instances, if this builder builds them in parallel.
+	 */
+	private void startWorkers() {
+		if (this.parallelism > 1) {
+			this.pool = new ForkJoinPool(this.parallelism);
+			this.workers = ThreadLocal.withInitial(this::createWorker);
+		}
+	}
+	
+	/**
+	 * Stop the pool of threads building instances.
+	 */
+	private void stopWorkers() {
+		if (this.pool != null) {
+			this.pool.shutdown();
+			this.pool = null;
+			this.workers = null;
+		}
+	}
+	
+	/**
+	 * Build model instances from a batch of compact method histories and pass them to
+	 * a consumer in order of the histories. The batch is built only if it is full
+	 * (a single history is a full batch when instances are not built in parallel)
+	 * or if it is the last one. The built batch is cleared.
+	 * 
+	 * @param batch		Compact method histories to build instances from
+	 * @param consumer	Consumer of built instances
+	 * @param last		Is this the last batch
+	 * @throws IOException If the consumer fails
+	 */
+	private void buildBatch(List<CompactMethodHistory> batch, InstanceConsumer consumer, boolean last)
+			throws IOException {
 		
-		for (CommitInfo commitInfo: this.commitExtractor.getAllCommitInfos()) {
-			this.authorExtractor.updateAuthorInfo(commitInfo);
+		if (batch.isEmpty() || (!last && batch.size() < (this.pool != null ? BATCH_SIZE : 1))) {
+			return;
 		}
 		
-		List<Instance> instances = new LinkedList<Instance>();
-		for (MethodHistory history: histories) {
-			for (Instance instance: this.buildInstances(history)) {
-				instances.add(instance);
+		List<Iterable<Instance>> results;
+		if (this.pool != null) {
+			results = this.pool.submit(() -> batch.parallelStream()
+					.map(history -> this.workers.get().buildInstances(history))
+					.collect(Collectors.toList())
+			).join();
+		} else {
+			results = new ArrayList<Iterable<Instance>>(batch.size());
+			for (CompactMethodHistory history: batch) {
+				results.add(this.buildInstances(history));
 			}
 		}
+		
+		for (Iterable<Instance> instances: results) {
+			for (Instance instance: instances) {
+				consumer.consume(instance);
+			}
+		}
+		batch.clear();
+	}
+	
+	/**
+	 * Build model instances from all read method histories. Read histories
+	 * are released afterwards.
+	 * 
+	 * @return An iterable of model instances
+	 * @throws IOException If the store of read histories fails
+	 */
+	public Iterable<Instance> buildInstances() throws IOException {
+		List<Instance> instances = new LinkedList<Instance>();
+		this.buildReadInstances(instances::add);
 		return instances;
 	}
 	
+	/**
+	 * Build model instances from given method histories. Prior to calling this
+	 * method, builder should be supplied with all commits referenced by this
+	 * methods' histories.
+	 * 
+	 * @param histories Method histories to build instaces from
+	 * @return An iterable of model instances
+	 * @throws DataSetBuilderException If a commit referenced in the method history is not found
+	 * @throws IOException If the store of read histories fails
+	 */
+	public Iterable<Instance> buildInstances(Iterable<MethodHistory> histories)
+			throws DataSetBuilderException, IOException {
+		
+		return this.readMethodHistories(histories).buildInstances();
+	}
+	
+	/**
+	 * Build Weka-compatible data set containing model instances created from all
+	 * read method histories (see {@link #readMethodHistories(Iterable)}).
+	 * 
+	 * @param name Name for the data set
+	 * @return Data set containing instaces built from read method histories
+	 * @throws IOException If the store of read histories fails
+	 */
+	public Instances buildDataSet(String name) throws IOException {
+		Instances dataSet = new Instances(name, this.getAttributesVector(), 0);
+		for (Instance instance: this.buildInstances()) {
+			dataSet.add(instance);
+		}
+		return dataSet;
+	}
+	
 	/**
 	 * Build Weka-compatible data set containing model instances created from given 
 	 * method histories. Prior to calling this method, builder should be supplied with 
@@ -145,54 +530,64 @@ public abstract class DataSetBuilder {
 	 * @param histories	Method histories to build instaces from
 	 * @return Data set containing instaces built from the given method histories
 	 * @throws DataSetBuilderException If a commit referenced in the method history is not found
+	 * @throws IOException If the store of read histories fails
 	 */
-	public Instances buildDataSet(String name, Iterable<MethodHistory> histories) throws DataSetBuilderException {
-		Instances dataSet = new Instances(name, this.getAttributesVector(), 0);
-		for (Instance instance: this.buildInstances(histories)) {
-			dataSet.add(instance);
-		}
-		return dataSet;
+	public Instances buildDataSet(String name, Iterable<MethodHistory> histories)
+			throws DataSetBuilderException, IOException {
+		
+		return this.readMethodHistories(histories).buildDataSet(name);
 	}
 	
 	/**
 	 * Get a new instance.
 	 * 
-	 * @param version		Method version object to extract method name from
+	 * @param history Compact method history to extract method name from
 	 * @return A new instace
 	 */
-	protected Instance getInstance(StructureEntityVersion version) {
+	protected Instance getInstance(CompactMethodHistory history) {
+		if (this.sparse) {
+			return this.getSparseInstance(history);
+		}
+		
 		Instance instance = new DenseInstance(this.getNumAttrs());
 		
-		double methodName = METHOD_NAME.addStringValue(version.getUniqueName());
-		instance.setValue(METHOD_NAME, methodName);
+		instance.setValue(this.methodNameIndex, history.getMethodId());
 		
-		for (ChangeType changeType: ChangeType.values()) {
-			int changeCount = this.changeCounter.getCount(changeType);
-			int attributeIndex = this.attributes.getAttributeIndex(changeType.name());
-			instance.setValue(attributeIndex, changeCount);
+		for (int ordinal = 0; ordinal < this.changeTypeIndices.length; ++ordinal) {
+			instance.setValue(this.changeTypeIndices[ordinal], this.changeCounter.getCount(ordinal));
 		}
 		
 		return instance;
 	}
 	
 	/**
-	 * Get extracted information about commit containing a given method version.
-	 * 
-	 * @param version Method version to find commit information about
-	 * @return Information about the commit containing the given method version
-	 */
-	protected CommitInfo getCommitInfo(StructureEntityVersion version) {
-		return this.commitExtractor.getCommitInfo(version.getVersion());
-	}
-	
-	/**
-	 * Get extracted information about a given author.
+	 * Get a new sparse instance, holding the method name and non-zero change counts.
+	 * Values of the remaining attributes are zero until they are set.
 	 * 
-	 * @param name Name of the author to get information about
-	 * @return Informationa about the author with the given name
+	 * @param history Compact method history to extract method name from
+	 * @return A new sparse instance
 	 */
-	protected AuthorInfo getAuthorInfo(String name) {
-		return this.authorExtractor.getAuthorInfo(name);
+	private Instance getSparseInstance(CompactMethodHistory history) {
+		int numValues = 1;
+		for (int ordinal = 0; ordinal < this.changeTypeIndices.length; ++ordinal) {
+			if (this.changeCounter.getCount(ordinal) != 0) {
+				++numValues;
+			}
+		}
+		
+		double[] values = new double[numValues];
+		int[] indices = new int[numValues];
+		values[0] = history.getMethodId();
+		indices[0] = this.methodNameIndex;
+		int index = 1;
+		for (int ordinal = 0; ordinal < this.changeTypeIndices.length; ++ordinal) {
+			int changeCount = this.changeCounter.getCount(ordinal);
+			if (changeCount != 0) {
+				values[index] = changeCount;
+				indices[index++] = this.changeTypeIndices[ordinal];
+			}
+		}
+		return new SparseInstance(1.0, values, indices, this.getNumAttrs());
 	}
 
 }
@@ -2,20 +2,22 @@ package pl.edu.mimuw.changeanalyzer.models;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.util.Collections;
 
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 
 import pl.edu.mimuw.changeanalyzer.exceptions.ChangeAnalyzerException;
 import pl.edu.mimuw.changeanalyzer.extraction.ClassHistoryWrapper;
+import pl.edu.mimuw.changeanalyzer.extraction.ExtractionConfig;
+import pl.edu.mimuw.changeanalyzer.extraction.HistorySpool;
 import pl.edu.mimuw.changeanalyzer.extraction.RepoHistoryExtractor;
 import weka.core.Attribute;
 import weka.core.Instances;
 import weka.core.converters.ConverterUtils.DataSource;
 import weka.filters.Filter;
 import weka.filters.unsupervised.instance.RemoveWithValues;
-import ch.uzh.ifi.seal.changedistiller.model.entities.ClassHistory;
 
 
 /**
@@ -31,6 +33,7 @@ public class DataSetProvider {
 	private RepoHistoryExtractor extractor;
 	private DataSetBuilder builder;
 	private DataSetProcessor processor;
+	private ExtractionConfig config;
 	private Instances dataSet;
 	
 	/**
@@ -42,6 +45,16 @@ public class DataSetProvider {
 	public DataSetProvider(DataSetBuilder builder, DataSetProcessor processor) {
 		this.builder = builder;
 		this.processor = processor;
+		this.config = new ExtractionConfig();
+	}
+	
+	/**
+	 * Set the extraction settings used for extracting data from repositories.
+	 * 
+	 * @param config Extraction settings
+	 */
+	public void setExtractionConfig(ExtractionConfig config) {
+		this.config = config;
 	}
 
 	/**
@@ -52,7 +65,7 @@ public class DataSetProvider {
 	 * @throws ChangeAnalyzerException
 	 */
 	public void extractDataFromRepository(Repository repository) throws IOException, ChangeAnalyzerException {
-		this.extractor = new RepoHistoryExtractor(repository);
+		this.extractor = new RepoHistoryExtractor(repository, this.config);
 		this.extractData();
 	}
 	
@@ -64,7 +77,7 @@ public class DataSetProvider {
 	 * @throws ChangeAnalyzerException
 	 */
 	public void extractDataFromRepository(File repoDir) throws IOException, ChangeAnalyzerException {
-		this.extractor = new RepoHistoryExtractor(repoDir);
+		this.extractor = new RepoHistoryExtractor(repoDir, this.config);
 		this.extractData();
 	}
 	
@@ -76,7 +89,7 @@ public class DataSetProvider {
 	 * @throws ChangeAnalyzerException
 	 */
 	public void extractDataFromRepository(String repoPath) throws IOException, ChangeAnalyzerException {
-		this.extractor = new RepoHistoryExtractor(repoPath);
+		this.extractor = new RepoHistoryExtractor(repoPath, this.config);
 		this.extractData();
 	}
 	
@@ -88,12 +101,74 @@ public class DataSetProvider {
 	 * @throws ChangeAnalyzerException
 	 */
 	private void extractData() throws IOException, ChangeAnalyzerException {
-		Map<String, ClassHistory> classHistoryMap = this.extractor.extractClassHistories();
-		ClassHistoryWrapper histories = new ClassHistoryWrapper(classHistoryMap.values());
 		Iterable<RevCommit> commits = this.extractor.extractCommits();
+		this.builder.setMailmap(this.extractor.extractMailmap());
+		this.builder.setParallelism(this.config.getNumBuildThreads());
+		this.builder.setSparse(this.config.isSparseInstances());
+		this.builder.readCommits(commits);
 		
-		this.dataSet = this.builder.readCommits(commits).buildDataSet("", histories);
-		this.dataSet = this.processor.processDataSet(this.dataSet);
+		Instances dataSet = new Instances("", this.builder.getAttributesVector(), 0);
+		try {
+			if (this.config.isOffHeapChanges()) {
+				this.extractToChangeStore(dataSet);
+			} else {
+				this.extractToSpool(dataSet);
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		this.dataSet = this.processor.processDataSet(dataSet);
+	}
+	
+	/**
+	 * Extract class histories and build instances from them. Changes of class histories
+	 * are counted by the builder as soon as they are extracted, and histories are spooled
+	 * to a temporary file until instances can be built.
+	 * 
+	 * @param dataSet Data set to add built instances to
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private void extractToSpool(Instances dataSet) throws IOException, ChangeAnalyzerException {
+		HistorySpool spool = new HistorySpool(this.config.getScratchDir());
+		try {
+			this.extractor.extractClassHistories((path, history) -> {
+				synchronized (this.builder) {
+					this.builder.countChanges(new ClassHistoryWrapper(Collections.singleton(history)));
+				}
+				spool.consume(path, history);
+			});
+			this.builder.buildCountedInstances(spool, dataSet::add);
+			this.extractor.finishExtraction();
+		} finally {
+			spool.close();
+		}
+	}
+	
+	/**
+	 * Extract class histories and build instances from them. Class histories are read
+	 * by the builder as soon as they are extracted, and kept in a {@link MappedChangeStore}
+	 * until instances can be built.
+	 * 
+	 * @param dataSet Data set to add built instances to
+	 * @throws IOException
+	 * @throws ChangeAnalyzerException
+	 */
+	private void extractToChangeStore(Instances dataSet) throws IOException, ChangeAnalyzerException {
+		MappedChangeStore store = new MappedChangeStore(this.config.getScratchDir());
+		this.builder.setChangeStore(store);
+		try {
+			this.extractor.extractClassHistories((path, history) -> {
+				synchronized (this.builder) {
+					this.builder.readMethodHistories(new ClassHistoryWrapper(Collections.singleton(history)));
+				}
+			});
+			this.builder.buildReadInstances(dataSet::add);
+			this.extractor.finishExtraction();
+		} finally {
+			this.builder.setChangeStore(new HeapChangeStore());
+			store.close();
+		}
 	}
 	
 	/**
@@ -0,0 +1,297 @@
+package pl.edu.mimuw.changeanalyzer.models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+import pl.edu.mimuw.changeanalyzer.exceptions.DataSetBuilderException;
+import pl.edu.mimuw.changeanalyzer.extraction.CommitTable;
+import pl.edu.mimuw.changeanalyzer.extraction.HistorySpool;
+import pl.edu.mimuw.changeanalyzer.extraction.MethodVersionCodec;
+import ch.uzh.ifi.seal.changedistiller.model.entities.MethodHistory;
+
+
+/**
+ * Partial result of an extraction process handling a single shard of files
+ * (see {@link pl.edu.mimuw.changeanalyzer.extraction.ExtractionConfig#setShard(int, int)}).
+ * Instances cannot be built by a single shard, since they depend on totals of
+ * commits which are changed in other shards as well. Therefore a shard file holds
+ * partial per-commit totals and class histories of the shard, and instances
+ * are built by {@link #merge(List, DataSetBuilder, InstanceConsumer)}.
+ * <p>
+ * The file consists of a header (magic number, format version, extracted HEAD commit,
+ * shard index and number of shards), totals of all commits with changes in the shard
+ * and class histories copied from a {@link HistorySpool}. Only shards extracted from
+ * the same HEAD can be merged.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class DataSetShard {
+	
+	private static final int MAGIC = 0x43415348;
+	private static final int HEADER_SIZE = 20 + Constants.OBJECT_ID_LENGTH;
+	private static final int TOTALS_SIZE = Constants.OBJECT_ID_LENGTH + 8;
+	
+	private File file;
+	private ObjectId head;
+	private int shardIndex;
+	private int numShards;
+	private int numCommits;
+	
+	/**
+	 * Open a shard file and read its header.
+	 * 
+	 * @param file Shard file
+	 * @throws IOException When the file is not a valid shard file
+	 */
+	public DataSetShard(File file) throws IOException {
+		this.file = file;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a shard file: " + file);
+			}
+			if (in.readInt() != MethodVersionCodec.FORMAT_VERSION) {
+				throw new IOException("Incompatible format version of shard file " + file);
+			}
+			byte[] headId = new byte[Constants.OBJECT_ID_LENGTH];
+			in.readFully(headId);
+			this.head = ObjectId.fromRaw(headId);
+			this.shardIndex = in.readInt();
+			this.numShards = in.readInt();
+			this.numCommits = in.readInt();
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Get the HEAD commit the shard has been extracted from.
+	 * 
+	 * @return ID of the HEAD commit
+	 */
+	public ObjectId getHead() {
+		return this.head;
+	}
+	
+	/**
+	 * Get the index of the shard.
+	 * 
+	 * @return Shard index (from 0 to {@link #getNumShards()} - 1)
+	 */
+	public int getShardIndex() {
+		return this.shardIndex;
+	}
+	
+	/**
+	 * Get the number of shards files have been partitioned into.
+	 * 
+	 * @return Number of shards
+	 */
+	public int getNumShards() {
+		return this.numShards;
+	}
+	
+	/**
+	 * Add partial totals of commits stored in this shard to totals of a builder.
+	 * The builder should be supplied with all commits first.
+	 * 
+	 * @param builder Builder to add the totals to
+	 * @throws IOException
+	 * @throws DataSetBuilderException If a commit stored in this shard has not been read by the builder
+	 */
+	public void addChangeTotals(DataSetBuilder builder) throws IOException, DataSetBuilderException {
+		DataInputStream in = this.open(HEADER_SIZE);
+		try {
+			byte[] commitId = new byte[Constants.OBJECT_ID_LENGTH];
+			for (int i = 0; i < this.numCommits; ++i) {
+				in.readFully(commitId);
+				int numChanges = in.readInt();
+				int numEntities = in.readInt();
+				builder.addChangeTotals(ObjectId.fromRaw(commitId), numChanges, numEntities);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Get method histories stored in this shard. They are read lazily, one class
+	 * at a time; iterators throw an {@link UncheckedIOException} if reading fails.
+	 * 
+	 * @return Iterable of method histories
+	 */
+	public Iterable<MethodHistory> getMethodHistories() {
+		return () -> {
+			try {
+				long offset = HEADER_SIZE + (long) this.numCommits * TOTALS_SIZE;
+				return HistorySpool.read(this.open(offset), this.file.getPath());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		};
+	}
+	
+	/**
+	 * Open the shard file at a given offset.
+	 * 
+	 * @param offset Offset from the beginning of the file
+	 * @return Input stream positioned at the offset
+	 * @throws IOException
+	 */
+	private DataInputStream open(long offset) throws IOException {
+		FileInputStream in = new FileInputStream(this.file);
+		try {
+			in.getChannel().position(offset);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return new DataInputStream(new BufferedInputStream(in));
+	}
+	
+	/**
+	 * Write a shard file.
+	 * 
+	 * @param file			File to write the shard into
+	 * @param head			HEAD commit the shard has been extracted from
+	 * @param shardIndex	Index of the shard
+	 * @param numShards		Number of shards
+	 * @param builder		Builder which has counted changes of all class histories of the shard
+	 * 						(see {@link DataSetBuilder#countChanges(Iterable)})
+	 * @param spool			Spool with all class histories of the shard
+	 * @throws IOException
+	 */
+	public static void write(File file, ObjectId head, int shardIndex, int numShards, DataSetBuilder builder,
+			HistorySpool spool) throws IOException {
+		
+		CommitTable commits = builder.getCommitTable();
+		int numCommits = 0;
+		for (int commit = 0; commit < commits.size(); ++commit) {
+			if (commits.getNumEntities(commit) > 0) {
+				++numCommits;
+			}
+		}
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(MethodVersionCodec.FORMAT_VERSION);
+			byte[] headId = new byte[Constants.OBJECT_ID_LENGTH];
+			head.copyRawTo(headId, 0);
+			out.write(headId);
+			out.writeInt(shardIndex);
+			out.writeInt(numShards);
+			out.writeInt(numCommits);
+			
+			byte[] commitId = new byte[Constants.OBJECT_ID_LENGTH];
+			for (int commit = 0; commit < commits.size(); ++commit) {
+				if (commits.getNumEntities(commit) > 0) {
+					commits.getId(commit).copyRawTo(commitId, 0);
+					out.write(commitId);
+					out.writeInt(commits.getNumChanges(commit));
+					out.writeInt(commits.getNumEntities(commit));
+				}
+			}
+			spool.copyTo(out);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Merge all shards of an extraction and build instances from them. Totals of
+	 * commits are summed up first, so built instances are the same as the ones
+	 * built by a single process extracting all files. The builder should be supplied
+	 * with all commits reachable from the HEAD the shards have been extracted from,
+	 * but should not count any changes itself.
+	 * 
+	 * @param shards	All shards of an extraction
+	 * @param builder	Builder to build instances with
+	 * @param consumer	Consumer of built instances
+	 * @throws IOException
+	 * @throws DataSetBuilderException If shards are missing or inconsistent (e.g. extracted from different HEADs)
+	 */
+	public static void merge(List<DataSetShard> shards, DataSetBuilder builder, InstanceConsumer consumer)
+			throws IOException, DataSetBuilderException {
+		
+		boolean[] present = new boolean[shards.isEmpty() ? 0 : shards.get(0).getNumShards()];
+		ObjectId head = shards.isEmpty() ? null : shards.get(0).getHead();
+		for (DataSetShard shard: shards) {
+			if (!shard.getHead().equals(head)) {
+				throw new DataSetBuilderException("Shard " + shard.file + " has been extracted from a different HEAD: "
+						+ shard.getHead().name() + " instead of " + head.name());
+			}
+			if (shard.getNumShards() != present.length || shard.getShardIndex() < 0
+					|| shard.getShardIndex() >= present.length) {
+				throw new DataSetBuilderException("Shard " + shard.file + " belongs to a different extraction");
+			}
+			if (present[shard.getShardIndex()]) {
+				throw new DataSetBuilderException("Duplicate shard " + shard.getShardIndex() + ": " + shard.file);
+			}
+			present[shard.getShardIndex()] = true;
+		}
+		if (shards.size() != present.length || present.length == 0) {
+			throw new DataSetBuilderException("Missing shards: " + shards.size() + " of " + present.length + " given");
+		}
+		
+		for (DataSetShard shard: shards) {
+			shard.addChangeTotals(builder);
+		}
+		try {
+			builder.buildCountedInstances(() -> new ShardsIterator(shards.iterator()), consumer);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Iterator over method histories of consecutive shards.
+	 */
+	private static class ShardsIterator implements Iterator<MethodHistory> {
+		
+		private Iterator<DataSetShard> shards;
+		private Iterator<MethodHistory> current;
+		
+		/**
+		 * Construct a new ShardsIterator.
+		 * 
+		 * @param shards Iterator over shards
+		 */
+		public ShardsIterator(Iterator<DataSetShard> shards) {
+			this.shards = shards;
+			this.current = Collections.emptyIterator();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (!this.current.hasNext() && this.shards.hasNext()) {
+				this.current = this.shards.next().getMethodHistories().iterator();
+			}
+			return this.current.hasNext();
+		}
+		
+		@Override
+		public MethodHistory next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return this.current.next();
+		}
+	
+	}
+
+}
@@ -0,0 +1,45 @@
+package pl.edu.mimuw.changeanalyzer.models;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * Store keeping compact method histories in the heap. It is used by
+ * data set builders by default.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class HeapChangeStore implements ChangeStore {
+	
+	private List<CompactMethodHistory> histories;
+	
+	/**
+	 * Construct a new, empty HeapChangeStore.
+	 */
+	public HeapChangeStore() {
+		this.histories = new ArrayList<CompactMethodHistory>();
+	}
+	
+	@Override
+	public void add(CompactMethodHistory history) {
+		this.histories.add(history);
+	}
+	
+	@Override
+	public Iterator<CompactMethodHistory> iterator() {
+		return this.histories.iterator();
+	}
+	
+	@Override
+	public void clear() {
+		this.histories = new ArrayList<CompactMethodHistory>();
+	}
+	
+	@Override
+	public void close() {
+		this.clear();
+	}
+
+}
@@ -0,0 +1,25 @@
+package pl.edu.mimuw.changeanalyzer.models;
+
+import java.io.IOException;
+
+import weka.core.Instance;
+
+
+/**
+ * Consumer of model instances, receiving them as soon as they are built
+ * (see {@link DataSetBuilder#buildCountedInstances(Iterable, InstanceConsumer)}).
+ * 
+ * @author Adam Wierzbicki
+ */
+@FunctionalInterface
+public interface InstanceConsumer {
+	
+	/**
+	 * Consume a built model instance.
+	 * 
+	 * @param instance Model instance
+	 * @throws IOException
+	 */
+	public void consume(Instance instance) throws IOException;
+
+}
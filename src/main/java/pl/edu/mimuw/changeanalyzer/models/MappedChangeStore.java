@@ -0,0 +1,210 @@
+package pl.edu.mimuw.changeanalyzer.models;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Store keeping compact method histories outside of the heap, in a temporary
+ * memory-mapped file, so that the number of stored changes is limited by disk
+ * space only. The file consists of fixed-width records of three ints:
+ * <ul>
+ * 		<li>a history header: method ID, {@link #HISTORY_MARKER}, number of records of the history,</li>
+ * 		<li>a change record: number of records of its version in the first record of
+ * 			a version (0 in the others), commit index, packed change type and count
+ * 			(see {@link CompactMethodHistory}), or 0 for a version without changes.</li>
+ * </ul>
+ * Change records of a version are consecutive. Versions are delimited by their first
+ * records, so consecutive versions of a method may have the same commit. The file
+ * is mapped in regions of {@link #RECORDS_PER_REGION}
+ * records, written when histories are added and read sequentially when they are iterated.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class MappedChangeStore implements ChangeStore {
+	
+	public static final int RECORD_SIZE = 12;
+	public static final int RECORDS_PER_REGION = 1 << 22;
+	public static final int HISTORY_MARKER = -1;
+	
+	private static final long REGION_SIZE = (long) RECORD_SIZE * RECORDS_PER_REGION;
+	
+	private File file;
+	private FileChannel channel;
+	private MappedByteBuffer region;
+	private long numRecords;
+	
+	/**
+	 * Construct a new, empty MappedChangeStore.
+	 * 
+	 * @param dir Directory to create the temporary file in (null for the default one)
+	 * @throws IOException
+	 */
+	public MappedChangeStore(File dir) throws IOException {
+		this.file = File.createTempFile("changes", ".store", dir);
+		this.file.deleteOnExit();
+		this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+	
+	@Override
+	public synchronized void add(CompactMethodHistory history) throws IOException {
+		int methodId = history.getMethodId();
+		int numHistoryRecords = 0;
+		for (int version = 0; version < history.getNumVersions(); ++version) {
+			numHistoryRecords += Math.max(history.getNumChangeTypes(version), 1);
+		}
+		
+		this.write(methodId, HISTORY_MARKER, numHistoryRecords);
+		for (int version = 0; version < history.getNumVersions(); ++version) {
+			int commitIndex = history.getCommitIndex(version);
+			int numChangeTypes = history.getNumChangeTypes(version);
+			if (numChangeTypes == 0) {
+				this.write(1, commitIndex, 0);
+			}
+			for (int i = 0; i < numChangeTypes; ++i) {
+				this.write(i == 0 ? numChangeTypes : 0, commitIndex, history.getPackedChange(version, i));
+			}
+		}
+	}
+	
+	/**
+	 * Write a record at the end of the file, mapping a new region if needed.
+	 * 
+	 * @param first	Method ID or number of records of a version (0 if not the first record of a version)
+	 * @param commit	Commit index or {@link #HISTORY_MARKER}
+	 * @param value		Packed change or number of records of a history
+	 * @throws IOException
+	 */
+	private void write(int first, int commit, int value) throws IOException {
+		if (this.region == null || !this.region.hasRemaining()) {
+			this.region = this.channel.map(MapMode.READ_WRITE, this.numRecords * RECORD_SIZE, REGION_SIZE);
+		}
+		this.region.putInt(first).putInt(commit).putInt(value);
+		++this.numRecords;
+	}
+	
+	/**
+	 * Get the number of records in this store.
+	 * 
+	 * @return Number of records
+	 */
+	public synchronized long getNumRecords() {
+		return this.numRecords;
+	}
+	
+	@Override
+	public synchronized Iterator<CompactMethodHistory> iterator() {
+		this.region = null;
+		return new StoreIterator(this.numRecords);
+	}
+	
+	@Override
+	public synchronized void clear() throws IOException {
+		this.region = null;
+		this.numRecords = 0;
+		this.channel.truncate(0);
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		this.region = null;
+		this.numRecords = 0;
+		this.channel.close();
+		this.file.delete();
+	}
+	
+	/**
+	 * Iterator reading records of the store sequentially and grouping them
+	 * into method histories.
+	 */
+	private class StoreIterator implements Iterator<CompactMethodHistory> {
+		
+		private long numRecords;
+		private long position;
+		private MappedByteBuffer region;
+		private int[] record;
+		
+		/**
+		 * Construct a new StoreIterator.
+		 * 
+		 * @param numRecords Number of records to be read
+		 */
+		public StoreIterator(long numRecords) {
+			this.numRecords = numRecords;
+			this.record = new int[3];
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return this.position < this.numRecords;
+		}
+		
+		@Override
+		public CompactMethodHistory next() {
+			if (!this.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			this.read();
+			if (this.record[1] != HISTORY_MARKER || this.record[2] <= 0 || this.record[2] > this.numRecords - this.position) {
+				throw new UncheckedIOException(new IOException("Malformed change store " + MappedChangeStore.this.file));
+			}
+			int methodId = this.record[0];
+			int numHistoryRecords = this.record[2];
+			int[] commits = new int[numHistoryRecords];
+			int[] offsets = new int[numHistoryRecords + 1];
+			int[] changes = new int[numHistoryRecords];
+			int numVersions = 0;
+			int numChanges = 0;
+			
+			int versionEnd = 0;
+			for (int i = 0; i < numHistoryRecords; ++i) {
+				this.read();
+				if (this.record[0] > 0 && i == versionEnd) {
+					versionEnd = i + this.record[0];
+					offsets[numVersions] = numChanges;
+					commits[numVersions++] = this.record[1];
+				} else if (this.record[0] != 0 || i >= versionEnd) {
+					throw new UncheckedIOException(new IOException("Malformed change store " + MappedChangeStore.this.file));
+				}
+				if (this.record[2] != 0) {
+					changes[numChanges++] = this.record[2];
+				}
+			}
+			if (versionEnd != numHistoryRecords) {
+				throw new UncheckedIOException(new IOException("Malformed change store " + MappedChangeStore.this.file));
+			}
+			offsets[numVersions] = numChanges;
+			return new CompactMethodHistory(methodId, Arrays.copyOf(commits, numVersions),
+					Arrays.copyOf(offsets, numVersions + 1), Arrays.copyOf(changes, numChanges));
+		}
+		
+		/**
+		 * Read the next record, mapping the next region if needed.
+		 */
+		private void read() {
+			try {
+				if (this.region == null || !this.region.hasRemaining()) {
+					long offset = this.position * RECORD_SIZE;
+					long size = Math.min(REGION_SIZE, this.numRecords * RECORD_SIZE - offset);
+					this.region = MappedChangeStore.this.channel.map(MapMode.READ_ONLY, offset, size);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			this.record[0] = this.region.getInt();
+			this.record[1] = this.region.getInt();
+			this.record[2] = this.region.getInt();
+			++this.position;
+		}
+	
+	}
+
+}
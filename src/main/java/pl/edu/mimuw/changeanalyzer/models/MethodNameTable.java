@@ -0,0 +1,77 @@
+package pl.edu.mimuw.changeanalyzer.models;
+
+import java.util.List;
+
+import weka.core.Attribute;
+
+
+/**
+ * Table of method names (unique names of methods, as given by ChangeDistiller)
+ * assigning each name a dense int ID, so that compact method histories
+ * (see {@link CompactMethodHistory}) don't have to hold strings.
+ * <p>
+ * Names are stored only once, as values of a string attribute owned by the table,
+ * and the ID of a name is the index of its value. Instances may therefore refer
+ * to method names by IDs. ID 0 is reserved for an empty placeholder name, so that
+ * no method has the value 0, which is not stored by sparse instances. Each data set
+ * builder has its own table, which is released together with the builder and data
+ * sets built by it. The table is thread-safe.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class MethodNameTable {
+	
+	public static final String PLACEHOLDER_NAME = "";
+	
+	private Attribute attribute;
+	
+	/**
+	 * Construct a new, empty MethodNameTable.
+	 * 
+	 * @param attributeName Name of the string attribute holding method names
+	 */
+	public MethodNameTable(String attributeName) {
+		this.attribute = new Attribute(attributeName, (List<String>) null);
+		this.attribute.addStringValue(PLACEHOLDER_NAME);
+	}
+	
+	/**
+	 * Get the string attribute whose values are method names of this table.
+	 * Values should be added to the attribute only through this table.
+	 * 
+	 * @return Attribute holding method names
+	 */
+	public Attribute getAttribute() {
+		return this.attribute;
+	}
+	
+	/**
+	 * Get ID of a method name, assigning a new one if the name is not in the table.
+	 * 
+	 * @param name Unique name of a method
+	 * @return Method ID
+	 */
+	public synchronized int getId(String name) {
+		return this.attribute.addStringValue(name);
+	}
+	
+	/**
+	 * Get the method name with a given ID.
+	 * 
+	 * @param id Method ID
+	 * @return Unique name of the method
+	 */
+	public synchronized String getName(int id) {
+		return this.attribute.value(id);
+	}
+	
+	/**
+	 * Get the number of names in this table (not counting the placeholder).
+	 * 
+	 * @return Number of names
+	 */
+	public synchronized int size() {
+		return this.attribute.numValues() - 1;
+	}
+
+}
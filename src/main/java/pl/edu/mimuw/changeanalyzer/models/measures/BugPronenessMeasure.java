@@ -1,8 +1,6 @@
 package pl.edu.mimuw.changeanalyzer.models.measures;
 
-import java.util.List;
-
-import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
+import pl.edu.mimuw.changeanalyzer.models.CompactMethodHistory;
 
 
 /**
@@ -20,9 +18,11 @@ public interface BugPronenessMeasure {
 	 * Start a new chunk. This method should be invoked before processing
 	 * each chunk of commits, otherwise an undesired behavior can occurr.
 	 * 
-	 * @param chunk
+	 * @param history	Compact method history containing the chunk
+	 * @param from		Index of the first version of the chunk
+	 * @param to		Index of the version following the chunk
 	 */
-	public void startNewChunk(List<StructureEntityVersion> chunk);
+	public void startNewChunk(CompactMethodHistory history, int from, int to);
 	
 	/**
 	 * Get the bug-proneness score of a commit.
@@ -38,5 +38,12 @@ public interface BugPronenessMeasure {
 	 * @return Name of this measure
 	 */
 	public String getName();
+	
+	/**
+	 * Create a new measure with the same parameters and a separate state.
+	 * 
+	 * @return A new measure
+	 */
+	public BugPronenessMeasure copy();
 
 }
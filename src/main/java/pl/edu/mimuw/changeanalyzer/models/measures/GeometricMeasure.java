@@ -1,8 +1,6 @@
 package pl.edu.mimuw.changeanalyzer.models.measures;
 
-import java.util.List;
-
-import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
+import pl.edu.mimuw.changeanalyzer.models.CompactMethodHistory;
 
 
 /**
@@ -26,10 +24,10 @@ public class GeometricMeasure implements BugPronenessMeasure {
 	}
 
 	@Override
-	public void startNewChunk(List<StructureEntityVersion> chunk) {
-		this.bugProneness = new double[chunk.size()];
+	public void startNewChunk(CompactMethodHistory history, int from, int to) {
+		this.bugProneness = new double[to - from];
 		double bugProneness = 1.0;
-		for (int i = chunk.size() - 1; i >= 0; --i) {
+		for (int i = to - from - 1; i >= 0; --i) {
 			this.bugProneness[i] = bugProneness;
 			bugProneness *= this.ratio;
 		}
@@ -44,5 +42,10 @@ public class GeometricMeasure implements BugPronenessMeasure {
 	public String getName() {
 		return "geomBugProneness" + this.ratio;
 	}
+	
+	@Override
+	public BugPronenessMeasure copy() {
+		return new GeometricMeasure(this.ratio);
+	}
 
 }
@@ -1,8 +1,6 @@
 package pl.edu.mimuw.changeanalyzer.models.measures;
 
-import java.util.List;
-
-import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
+import pl.edu.mimuw.changeanalyzer.models.CompactMethodHistory;
 
 
 /**
@@ -26,8 +24,8 @@ public class LinearMeasure implements BugPronenessMeasure {
 	}
 
 	@Override
-	public void startNewChunk(List<StructureEntityVersion> chunk) {
-		this.chunkSize = chunk.size();
+	public void startNewChunk(CompactMethodHistory history, int from, int to) {
+		this.chunkSize = to - from;
 	}
 
 	@Override
@@ -39,5 +37,10 @@ public class LinearMeasure implements BugPronenessMeasure {
 	public String getName() {
 		return "linBugProneness" + this.initialProneness;
 	}
+	
+	@Override
+	public BugPronenessMeasure copy() {
+		return new LinearMeasure(this.initialProneness);
+	}
 
 }
@@ -1,9 +1,7 @@
 package pl.edu.mimuw.changeanalyzer.models.measures;
 
-import java.util.List;
-
+import pl.edu.mimuw.changeanalyzer.models.CompactMethodHistory;
 import pl.edu.mimuw.changeanalyzer.models.standard.StandardDataSetBuilder;
-import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
 
 
 /**
@@ -21,13 +19,12 @@ public class WeightedMeasure implements BugPronenessMeasure {
 	private int totalNumChanges;
 
 	@Override
-	public void startNewChunk(List<StructureEntityVersion> chunk) {
+	public void startNewChunk(CompactMethodHistory history, int from, int to) {
 		this.totalNumChanges = 0;
-		this.numChanges = new int[chunk.size()];
-		int i = 0;
-		for (StructureEntityVersion version: chunk) {
-			this.totalNumChanges += version.getSourceCodeChanges().size();
-			this.numChanges[i++] = this.totalNumChanges;
+		this.numChanges = new int[to - from];
+		for (int version = from; version < to; ++version) {
+			this.totalNumChanges += history.getNumChanges(version);
+			this.numChanges[version - from] = this.totalNumChanges;
 		}
 	}
 
@@ -40,5 +37,10 @@ public class WeightedMeasure implements BugPronenessMeasure {
 	public String getName() {
 		return "weightBugProneness";
 	}
+	
+	@Override
+	public BugPronenessMeasure copy() {
+		return new WeightedMeasure();
+	}
 
 }
@@ -0,0 +1,106 @@
+package pl.edu.mimuw.changeanalyzer.models.standard;
+
+import java.util.Arrays;
+
+
+/**
+ * Incremental sum of absolute differences between all pairs of values
+ * of a sequence. Values are appended one by one, and the sum is updated
+ * in O(log n) time using two Fenwick trees (counts and sums of appended values)
+ * indexed by ranks of values.
+ * <p>
+ * All values which may be appended have to be known in advance (see
+ * {@link #reset(int[], int)}), so that they can be ranked. Arrays of
+ * the structure are reused between sequences.
+ * 
+ * @author Adam Wierzbicki
+ */
+public class PairwiseDifferenceSum {
+	
+	private int[] values;
+	private int numValues;
+	private int[] counts;
+	private long[] sums;
+	private int count;
+	private long total;
+	private long differencesSum;
+	
+	/**
+	 * Construct a new PairwiseDifferenceSum.
+	 */
+	public PairwiseDifferenceSum() {
+		this.values = new int[0];
+		this.counts = new int[1];
+		this.sums = new long[1];
+	}
+	
+	/**
+	 * Start a new, empty sequence.
+	 * 
+	 * @param values	Values which may be appended to the sequence (the array is not modified)
+	 * @param length	Number of values in the array
+	 */
+	public void reset(int[] values, int length) {
+		if (this.values.length < length) {
+			this.values = new int[length];
+			this.counts = new int[length + 1];
+			this.sums = new long[length + 1];
+		}
+		System.arraycopy(values, 0, this.values, 0, length);
+		Arrays.sort(this.values, 0, length);
+		
+		this.numValues = 0;
+		for (int i = 0; i < length; ++i) {
+			if (i == 0 || this.values[i] != this.values[i - 1]) {
+				this.values[this.numValues++] = this.values[i];
+			}
+		}
+		
+		Arrays.fill(this.counts, 0, this.numValues + 1, 0);
+		Arrays.fill(this.sums, 0, this.numValues + 1, 0L);
+		this.count = 0;
+		this.total = 0L;
+		this.differencesSum = 0L;
+	}
+	
+	/**
+	 * Append a value to the sequence.
+	 * 
+	 * @param value Value to be appended (one of the values given on reset)
+	 * @return Sum of absolute differences between all pairs of values in the sequence
+	 */
+	public long add(int value) {
+		int rank = Arrays.binarySearch(this.values, 0, this.numValues, value) + 1;
+		if (rank <= 0) {
+			throw new IllegalArgumentException("Unexpected value: " + value);
+		}
+		
+		int countNotGreater = 0;
+		long sumNotGreater = 0L;
+		for (int i = rank; i > 0; i -= i & -i) {
+			countNotGreater += this.counts[i];
+			sumNotGreater += this.sums[i];
+		}
+		int countGreater = this.count - countNotGreater;
+		long sumGreater = this.total - sumNotGreater;
+		this.differencesSum += (long) value * countNotGreater - sumNotGreater + sumGreater - (long) value * countGreater;
+		
+		for (int i = rank; i <= this.numValues; i += i & -i) {
+			this.counts[i]++;
+			this.sums[i] += value;
+		}
+		this.count++;
+		this.total += value;
+		return this.differencesSum;
+	}
+	
+	/**
+	 * Get the sum of absolute differences between all pairs of values in the sequence.
+	 * 
+	 * @return Sum of absolute differences
+	 */
+	public long getSum() {
+		return this.differencesSum;
+	}
+
+}
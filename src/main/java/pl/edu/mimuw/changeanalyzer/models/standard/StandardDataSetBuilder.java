@@ -1,19 +1,15 @@
 package pl.edu.mimuw.changeanalyzer.models.standard;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.BitSet;
 
 import org.eclipse.jgit.revwalk.RevCommit;
 
-import pl.edu.mimuw.changeanalyzer.extraction.AuthorInfo;
-import pl.edu.mimuw.changeanalyzer.extraction.CommitInfo;
 import pl.edu.mimuw.changeanalyzer.models.ChangeCounter;
 import pl.edu.mimuw.changeanalyzer.models.ChunkDataSetBuilder;
+import pl.edu.mimuw.changeanalyzer.models.CompactMethodHistory;
 import pl.edu.mimuw.changeanalyzer.models.measures.BugPronenessMeasure;
 import weka.core.Attribute;
 import weka.core.Instance;
-import ch.uzh.ifi.seal.changedistiller.model.entities.StructureEntityVersion;
 
 
 /**
@@ -36,7 +32,10 @@ public class StandardDataSetBuilder extends ChunkDataSetBuilder {
 	public static final Attribute CHANGE_GINI = new Attribute("changeGini");
 	public static final Attribute TIME_SINCE_LAST_FIX = new Attribute("timeSinceLastFix");
 	
-	private Set<String> authors;
+	private ChangeCounter versionChangeCounter;
+	private BitSet chunkAuthors;
+	private int[] chunkChanges;
+	private PairwiseDifferenceSum changeDiffs;
 	private int firstCommitTime;
 
 	/**
@@ -44,7 +43,10 @@ public class StandardDataSetBuilder extends ChunkDataSetBuilder {
 	 */
 	public StandardDataSetBuilder() {
 		super(false);
-		this.authors = new HashSet<String>();
+		this.versionChangeCounter = new ChangeCounter();
+		this.chunkAuthors = new BitSet();
+		this.chunkChanges = new int[0];
+		this.changeDiffs = new PairwiseDifferenceSum();
 		this.firstCommitTime = 0;
 		
 		this.attributes.addAttribute(NUM_COMMITS);
@@ -58,11 +60,30 @@ public class StandardDataSetBuilder extends ChunkDataSetBuilder {
 		this.attributes.addAttribute(TIME_SINCE_LAST_FIX);
 	}
 	
+	/**
+	 * Construct a worker StandardDataSetBuilder (see {@link #createWorker()}).
+	 * 
+	 * @param prototype Builder to share tables with
+	 */
+	protected StandardDataSetBuilder(StandardDataSetBuilder prototype) {
+		super(prototype);
+		this.versionChangeCounter = new ChangeCounter();
+		this.chunkAuthors = new BitSet();
+		this.chunkChanges = new int[0];
+		this.changeDiffs = new PairwiseDifferenceSum();
+		this.firstCommitTime = prototype.firstCommitTime;
+	}
+	
+	@Override
+	protected StandardDataSetBuilder createWorker() {
+		return new StandardDataSetBuilder(this);
+	}
+	
 	@Override
 	public StandardDataSetBuilder readCommits(Iterable<RevCommit> commits) {
 		super.readCommits(commits);
-		for (CommitInfo commitInfo: this.commitExtractor.getAllCommitInfos()) {
-			this.firstCommitTime = Math.min(this.firstCommitTime, commitInfo.getTime());
+		for (int commit = 0; commit < this.commits.size(); ++commit) {
+			this.firstCommitTime = Math.min(this.firstCommitTime, this.commits.getTime(commit));
 		}
 		return this;
 	}
@@ -74,46 +95,46 @@ public class StandardDataSetBuilder extends ChunkDataSetBuilder {
 	}
 	
 	@Override
-	protected void processChunk(List<StructureEntityVersion> versions, CommitInfo lastFix, boolean isFixed) {
-		ChangeCounter versionChangeCounter = new ChangeCounter();
+	protected void processChunk(CompactMethodHistory history, int from, int to, int lastFix, boolean isFixed) {
+		ChangeCounter versionChangeCounter = this.versionChangeCounter;
 		this.changeCounter.reset();
-		this.authors.clear();
+		this.chunkAuthors.clear();
+		this.resetChangeDiffs(history, from, to);
 		
 		int index = 0;
+		int numAuthors = 0;
 		int totalChanges = 0;
 		int totalEntities = 0;
 		int totalAuthorCommits = 0;
 		int totalAuthorChanges = 0;
 		double changeRatio = 0.0;
-		int[] numChanges = new int[versions.size()];
-		int numChangesDiffsSum = 0;
+		long numChangesDiffsSum = 0L;
 		
-		int lastFixTime = lastFix != null ? lastFix.getTime() : this.firstCommitTime;
+		int lastFixTime = lastFix >= 0 ? this.commits.getTime(lastFix) : this.firstCommitTime;
 		
-		for (StructureEntityVersion version: versions) {
-			versionChangeCounter.reset().countChanges(version);
+		for (int version = from; version < to; ++version) {
+			versionChangeCounter.reset().countChanges(history, version);
 			this.changeCounter.add(versionChangeCounter);
 			
-			CommitInfo commitInfo = this.getCommitInfo(version);
-			AuthorInfo authorInfo = this.getAuthorInfo(commitInfo.getAuthor());
-			totalChanges += commitInfo.getNumChanges();
-			totalEntities += commitInfo.getNumEntities();
-			totalAuthorCommits += authorInfo.getNumCommits();
-			totalAuthorChanges += authorInfo.getNumChanges();
+			int commit = history.getCommitIndex(version);
+			int author = this.commits.getAuthorId(commit);
+			totalChanges += this.commits.getNumChanges(commit);
+			totalEntities += this.commits.getNumEntities(commit);
+			totalAuthorCommits += this.authors.getNumCommits(author);
+			totalAuthorChanges += this.authors.getNumChanges(author);
 			int numVersionChanges = versionChangeCounter.getTotalSum();
-			changeRatio += (double) numVersionChanges / commitInfo.getNumChanges();
+			changeRatio += (double) numVersionChanges / this.commits.getNumChanges(commit);
 			
-			numChanges[index] = numVersionChanges;
-			for (int i = 0; i < index; ++i) {
-				numChangesDiffsSum += Math.abs(numChanges[i] - numChanges[index]);
-			}
+			numChangesDiffsSum = this.changeDiffs.add(numVersionChanges);
 			
-			this.authors.add(commitInfo.getAuthor());
+			if (!this.chunkAuthors.get(author)) {
+				this.chunkAuthors.set(author);
+				++numAuthors;
+			}
 			int numCommits = index + 1;
-			int numAuthors = this.authors.size();
 			
-			if (isFixed || index == versions.size() - 1) {
-				Instance instance = this.getInstance(version, index, isFixed);
+			if (isFixed || version == to - 1) {
+				Instance instance = this.getInstance(history, index, isFixed);
 				
 				instance.setValue(NUM_COMMITS, numCommits);
 				instance.setValue(NUM_AUTHORS, numAuthors);
@@ -124,7 +145,7 @@ public class StandardDataSetBuilder extends ChunkDataSetBuilder {
 				instance.setValue(AVG_CHANGE_RATIO, changeRatio / numCommits);
 				instance.setValue(CHANGE_GINI,
 						(double) numChangesDiffsSum / (numCommits * this.changeCounter.getTotalSum()));
-				instance.setValue(TIME_SINCE_LAST_FIX, commitInfo.getTime() - lastFixTime);
+				instance.setValue(TIME_SINCE_LAST_FIX, this.commits.getTime(commit) - lastFixTime);
 				
 				this.addToResult(instance);
 			}
@@ -132,5 +153,22 @@ public class StandardDataSetBuilder extends ChunkDataSetBuilder {
 			++index;
 		}
 	}
+	
+	/**
+	 * Prepare the sum of pairwise differences of numbers of changes for a new chunk.
+	 * 
+	 * @param history	Compact method history
+	 * @param from		Index of the first version of the chunk
+	 * @param to		Index of the version after the last version of the chunk
+	 */
+	private void resetChangeDiffs(CompactMethodHistory history, int from, int to) {
+		if (this.chunkChanges.length < to - from) {
+			this.chunkChanges = new int[Math.max(to - from, 2 * this.chunkChanges.length)];
+		}
+		for (int version = from; version < to; ++version) {
+			this.chunkChanges[version - from] = history.getNumChanges(version);
+		}
+		this.changeDiffs.reset(this.chunkChanges, to - from);
+	}
 
 }